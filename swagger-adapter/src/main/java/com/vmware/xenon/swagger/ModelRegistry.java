@@ -13,13 +13,21 @@
 
 package com.vmware.xenon.swagger;
 
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -36,20 +44,47 @@ import io.swagger.models.properties.Property;
 import io.swagger.models.properties.RefProperty;
 import io.swagger.models.properties.StringProperty;
 import io.swagger.models.properties.StringProperty.Format;
+import io.swagger.util.Json;
 
+import com.vmware.xenon.common.FNVHash;
 import com.vmware.xenon.common.ServiceDocument;
 import com.vmware.xenon.common.ServiceDocumentDescription.PropertyDescription;
 import com.vmware.xenon.common.ServiceDocumentDescription.PropertyUsageOption;
+import com.vmware.xenon.common.ServiceDocumentDescription.TypeName;
 
 /**
  * Aggregates and indexes ServiceDocumentDescription's by their kind.
+ *
+ * Models are cached for the whole process, by kind and by a hash of their description, so that
+ * registries of other descriptor services, or of later builds, reuse them instead of loading
+ * them again. A model is loaded again, and replaces the cached one, when its description
+ * changes.
  */
 class ModelRegistry {
 
     private static final Logger logger = Logger.getLogger(ModelRegistry.class.getName());
 
+    private static final ConcurrentMap<String, CachedModel> cachedModels = new ConcurrentHashMap<>();
+
+    /**
+     * A model shared between registries, and the hash of the description it was loaded from.
+     */
+    private static final class CachedModel {
+        private final long hash;
+        private final ModelImpl model;
+        private final Set<String> references;
+
+        private CachedModel(long hash, ModelImpl model, Set<String> references) {
+            this.hash = hash;
+            this.model = model;
+            this.references = references;
+        }
+    }
+
     private final TreeMap<String, Model> byKind;
+    private final Map<String, Set<String>> references = new HashMap<>();
     private Set<String> stripPackagePrefixes;
+    private Set<String> usedKinds;
 
     public ModelRegistry() {
         this.byKind = new TreeMap<>();
@@ -64,29 +99,109 @@ class ModelRegistry {
     }
 
     public ModelImpl getModel(ServiceDocument template) {
-        String kind = getStrippedKind(template.documentKind);
+        return getModel(getStrippedKind(template.documentKind),
+                () -> template.documentDescription.propertyDescriptions.entrySet());
+    }
+
+    public ModelImpl getModel(PropertyDescription desc) {
+        return getModel(getStrippedKind(desc.kind), () -> desc.fieldDescriptions.entrySet());
+    }
+
+    private ModelImpl getModel(String kind,
+            Supplier<Collection<Entry<String, PropertyDescription>>> desc) {
+        if (this.usedKinds != null) {
+            this.usedKinds.add(kind);
+        }
+
         ModelImpl model = (ModelImpl) this.byKind.get(kind);
+        if (model != null) {
+            return model;
+        }
 
-        if (model == null) {
-            model = load(template.documentDescription.propertyDescriptions.entrySet());
-            model.setName(getStrippedKind(template.documentKind));
-            this.byKind.put(kind, model);
+        Collection<Entry<String, PropertyDescription>> properties = desc.get();
+        long hash = hash(properties);
+        CachedModel cached = cachedModels.get(kind);
+        if (cached != null && cached.hash == hash) {
+            this.byKind.put(kind, cached.model);
+            this.references.put(kind, cached.references);
+            // the models referred to are cached on their own
+            for (Entry<String, PropertyDescription> e : properties) {
+                if (!isIgnored(e.getValue())) {
+                    loadReferences(e.getValue());
+                }
+            }
+            return cached.model;
+        }
+
+        model = load(properties);
+        model.setName(kind);
+        this.byKind.put(kind, model);
+        Set<String> references = new HashSet<>();
+        if (model.getProperties() != null) {
+            collectReferences(model.getProperties().values(), references);
         }
+        this.references.put(kind, references);
+        cachedModels.put(kind, new CachedModel(hash, model, Collections.unmodifiableSet(references)));
 
         return model;
     }
 
-    public ModelImpl getModel(PropertyDescription desc) {
-        String kind = getStrippedKind(desc.kind);
-        ModelImpl model = (ModelImpl) this.byKind.get(kind);
+    /**
+     * Hashes what the model of the given properties is loaded from. Models referred to are
+     * only hashed by kind, as they are cached on their own.
+     */
+    private long hash(Collection<Entry<String, PropertyDescription>> desc) {
+        long hash = FNVHash.FNV_OFFSET_MINUS_MSB;
+        for (Entry<String, PropertyDescription> e : desc) {
+            PropertyDescription pd = e.getValue();
+            if (isIgnored(pd)) {
+                continue;
+            }
+            hash = hash(e.getKey(), hash);
+            hash = hash(pd.propertyDocumentation, hash);
+            hash = hash(pd, hash);
+        }
+        return hash;
+    }
 
-        if (model == null) {
-            model = load(desc.fieldDescriptions.entrySet());
-            model.setName(kind);
-            this.byKind.put(kind, model);
+    private long hash(PropertyDescription pd, long hash) {
+        hash = FNVHash.compute(pd.typeName.ordinal(), hash);
+        switch (pd.typeName) {
+        case COLLECTION:
+            return hash(pd.elementDescription, hash);
+        case ENUM:
+            if (pd.enumValues != null) {
+                for (String value : pd.enumValues) {
+                    hash = hash(value, hash);
+                }
+            }
+            return hash;
+        case PODO:
+            return hash(getStrippedKind(pd.kind), hash);
+        default:
+            return hash;
         }
+    }
 
-        return model;
+    private static long hash(String value, long hash) {
+        if (value == null) {
+            return FNVHash.compute(-1, hash);
+        }
+        // terminated so that consecutive values cannot be confused
+        return FNVHash.compute(0, FNVHash.compute(value, hash));
+    }
+
+    private void loadReferences(PropertyDescription pd) {
+        if (pd.typeName == TypeName.PODO) {
+            getModel(pd);
+        } else if (pd.typeName == TypeName.COLLECTION) {
+            loadReferences(pd.elementDescription);
+        }
+    }
+
+    private static boolean isIgnored(PropertyDescription pd) {
+        return pd.usageOptions.contains(PropertyUsageOption.INFRASTRUCTURE)
+                || pd.usageOptions.contains(PropertyUsageOption.SERVICE_USE);
     }
 
     @SuppressWarnings("unchecked")
@@ -96,8 +211,7 @@ class ModelRegistry {
         for (Entry<String, PropertyDescription> e : desc) {
             String name = e.getKey();
             PropertyDescription pd = e.getValue();
-            if (pd.usageOptions.contains(PropertyUsageOption.INFRASTRUCTURE)
-                    || pd.usageOptions.contains(PropertyUsageOption.SERVICE_USE)) {
+            if (isIgnored(pd)) {
                 continue;
             }
             Property property = makeProperty(pd);
@@ -154,19 +268,64 @@ class ModelRegistry {
     }
 
     private RefProperty refProperty(PropertyDescription pd) {
-        String kind = getStrippedKind(pd.kind);
-        ModelImpl model = (ModelImpl) this.byKind.get(kind);
-        if (model == null) {
-            model = load(pd.fieldDescriptions.entrySet());
-            model.setName(kind);
-            this.byKind.put(kind, model);
+        return new RefProperty(getModel(pd).getName());
+    }
+
+    private void collectReferences(Collection<Property> properties, Set<String> res) {
+        for (Property property : properties) {
+            if (property instanceof RefProperty) {
+                res.add(((RefProperty) property).getSimpleRef());
+            } else if (property instanceof ArrayProperty) {
+                collectReferences(Collections.singleton(((ArrayProperty) property).getItems()), res);
+            }
         }
+    }
 
-        return new RefProperty(kind);
+    /**
+     * Records the kinds of all models looked up from now on into the given set,
+     * or stops recording if null.
+     */
+    public void setUsedKinds(Set<String> usedKinds) {
+        this.usedKinds = usedKinds;
+    }
+
+    /**
+     * Returns the models of the given kinds and of all the kinds they refer to, sorted by kind.
+     */
+    public Map<String, Model> getDefinitions(Collection<String> kinds) {
+        Map<String, Model> res = new TreeMap<>();
+        Deque<String> pending = new ArrayDeque<>(kinds);
+        while (!pending.isEmpty()) {
+            String kind = pending.pop();
+            Model model = this.byKind.get(kind);
+            if (model == null || res.put(kind, model) != null) {
+                continue;
+            }
+            pending.addAll(this.references.getOrDefault(kind, Collections.emptySet()));
+        }
+        return res;
     }
 
-    public Map<String, Model> getDefinitions() {
-        return this.byKind;
+    /**
+     * Returns deep copies of the models returned by {@link #getDefinitions}, which can be
+     * modified without affecting the models shared with other registries.
+     */
+    public Map<String, Model> copyDefinitions(Collection<String> kinds) {
+        Map<String, Model> res = getDefinitions(kinds);
+        for (Entry<String, Model> e : res.entrySet()) {
+            Model copy;
+            try {
+                copy = Json.mapper().treeToValue(Json.mapper().valueToTree(e.getValue()), Model.class);
+            } catch (IOException ex) {
+                throw new IllegalStateException("cannot copy model " + e.getKey(), ex);
+            }
+            if (copy instanceof ModelImpl) {
+                // the name is not serialized
+                ((ModelImpl) copy).setName(e.getKey());
+            }
+            e.setValue(copy);
+        }
+        return res;
     }
 
     private Map<String, String> strippedNames = new HashMap<>();
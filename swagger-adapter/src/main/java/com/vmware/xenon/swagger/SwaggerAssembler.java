@@ -16,26 +16,32 @@ package com.vmware.xenon.swagger;
 import static org.apache.commons.lang3.StringUtils.isBlank;
 import static org.apache.commons.lang3.StringUtils.isNotBlank;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Objects;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Stream;
 
-import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.gson.JsonObject;
 import io.swagger.models.Info;
 import io.swagger.models.Model;
@@ -57,10 +63,8 @@ import io.swagger.models.properties.Property;
 import io.swagger.models.properties.RefProperty;
 import io.swagger.models.properties.StringProperty;
 import io.swagger.util.Json;
-import io.swagger.util.Yaml;
 
 import com.vmware.xenon.common.Operation;
-import com.vmware.xenon.common.OperationJoin;
 import com.vmware.xenon.common.RequestRouter;
 import com.vmware.xenon.common.RequestRouter.Route;
 import com.vmware.xenon.common.RequestRouter.Route.SupportLevel;
@@ -81,8 +85,18 @@ import com.vmware.xenon.common.ServiceSubscriptionState.ServiceSubscriber;
 import com.vmware.xenon.common.UriUtils;
 import com.vmware.xenon.common.Utils;
 import com.vmware.xenon.services.common.ServiceUriPaths;
+import com.vmware.xenon.swagger.SwaggerDocument.Encoding;
+import com.vmware.xenon.swagger.SwaggerDocument.Format;
+import com.vmware.xenon.swagger.SwaggerDocument.Representation;
 
 /**
+ * Assembles the swagger descriptor of a host.
+ *
+ * An assembler is kept for the lifetime of a {@link SwaggerDescriptorService}, and caches the
+ * part of the descriptor generated from each service, as well as the assembled and serialized
+ * descriptor. When the set of services changes, only the templates of the newly started services
+ * are retrieved, the parts of the stopped services are dropped, and the descriptor is
+ * reassembled from the cached parts.
  */
 class SwaggerAssembler {
 
@@ -94,18 +108,105 @@ class SwaggerAssembler {
     public static final String CONTENT_TYPE_YML = "yml";
     public static final String CONTENT_TYPE_YAML = "yaml";
     public static final String AS_SEPARATOR = "_as_";
+    public static final String ETAG_HEADER = "etag";
+    public static final String IF_NONE_MATCH_HEADER = "if-none-match";
+    public static final String VARY_HEADER = "vary";
+
+    /**
+     * Maximum number of descriptors cached, one per value of the Host header.
+     */
+    public static final int MAX_CACHED_DOCUMENTS = 16;
+
+    /**
+     * Vendor extension listing the services left out of the descriptor because their
+     * template could not be retrieved in time.
+     */
+    public static final String EXTENSION_TIMED_OUT_SERVICES = "x-timed-out-services";
+
+    private static final Logger logger = Logger.getLogger(SwaggerAssembler.class.getName());
+
+    private static final String FIELD_NAME_PATHS = "paths";
+    private static final String FIELD_NAME_TAGS = "tags";
+    private static final String FIELD_NAME_DEFINITIONS = "definitions";
+
+    // descriptions built by reflection, cached for the lifetime of their class
+    private static final ClassValue<PropertyDescription> podoDescriptions =
+            new ClassValue<PropertyDescription>() {
+                @Override
+                protected PropertyDescription computeValue(Class<?> type) {
+                    PropertyDescription pd = Builder.create().buildPodoPropertyDescription(type);
+                    pd.kind = Utils.buildKind(type);
+                    return pd;
+                }
+            };
+    private static final ClassValue<ServiceDocumentDescription> documentDescriptions =
+            new ClassValue<ServiceDocumentDescription>() {
+                @Override
+                protected ServiceDocumentDescription computeValue(Class<?> type) {
+                    return Builder.create().buildDescription(type.asSubclass(ServiceDocument.class));
+                }
+            };
 
     private final Service service;
     private Info info;
-    private ServiceDocumentQueryResult documentQueryResult;
-    private Swagger swagger;
-    private Operation get;
     private ModelRegistry modelRegistry;
     private Tag currentTag;
+    private Fragment currentFragment;
     private Set<String> excludedPrefixes;
     private boolean excludeUtilities;
     private SupportLevel supportLevel = SupportLevel.DEPRECATED;
-    private Consumer<Swagger> postprocessor;
+    private volatile Consumer<Swagger> postprocessor;
+    private int maxTemplateRequestsInFlight = TemplateFetcher.DEFAULT_MAX_IN_FLIGHT;
+    private long templateRequestTimeoutMicros = TemplateFetcher.DEFAULT_TIMEOUT_MICROS;
+    private boolean isStreaming;
+
+    // Guarded by this. The fragments are keyed and sorted by service link.
+    private final Map<String, Fragment> fragments = new TreeMap<>();
+    private final Map<String, SwaggerDocument> documents = new LinkedHashMap<String, SwaggerDocument>(
+            MAX_CACHED_DOCUMENTS, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SwaggerDocument> eldest) {
+            return size() > MAX_CACHED_DOCUMENTS;
+        }
+    };
+    private Set<String> links;
+    private Set<String> requestedLinks;
+    private final Set<String> failedLinks = new HashSet<>();
+    private Set<String> timedOutLinks = Collections.emptySet();
+    // services with a template request in flight, possibly from a previous update
+    private final Set<String> outstandingLinks = ConcurrentHashMap.newKeySet();
+    private List<Operation> pendingGets = new ArrayList<>();
+    private boolean isUpdating;
+
+    /**
+     * The paths and tag generated from a single service, and the kinds of the models they use.
+     * In streaming mode, the paths are only kept serialized.
+     */
+    private static final class Fragment {
+        private Tag tag;
+        private final Map<String, Path> paths = new LinkedHashMap<>();
+        private final Set<String> kinds = new HashSet<>();
+        private byte[] serializedPaths;
+
+        /**
+         * Serializes the paths as a compact JSON object, and drops their model.
+         */
+        private void serialize() throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (JsonGenerator generator = Json.mapper().getFactory().createGenerator(out)) {
+                generator.writeStartObject();
+                for (Entry<String, Path> e : this.paths.entrySet()) {
+                    generator.writeFieldName(e.getKey());
+                    Json.mapper().writeValue(generator, e.getValue());
+                }
+                generator.writeEndObject();
+            }
+            this.serializedPaths = out.toByteArray();
+            this.paths.clear();
+        }
+    }
 
     private SwaggerAssembler(Service service) {
         this.service = service;
@@ -141,136 +242,398 @@ class SwaggerAssembler {
         return this;
     }
 
-    public SwaggerAssembler setQueryResult(ServiceDocumentQueryResult documentQueryResult) {
-        this.documentQueryResult = documentQueryResult;
-        return this;
+    /**
+     * Completes the given GET with the descriptor of the services in the given query result,
+     * first updating the cached descriptor if these services changed.
+     */
+    public void build(Operation get, ServiceDocumentQueryResult documentQueryResult) {
+        Set<String> links = new TreeSet<>();
+        for (String link : documentQueryResult.documentLinks) {
+            if (isDocumented(link)) {
+                links.add(link);
+            }
+        }
+
+        synchronized (this) {
+            this.requestedLinks = links;
+            if (this.isUpdating || !links.equals(this.links) || !this.timedOutLinks.isEmpty()) {
+                // complete once the update, current or new, is done
+                this.pendingGets.add(get);
+                if (this.isUpdating) {
+                    return;
+                }
+                this.isUpdating = true;
+            } else {
+                links = null;
+            }
+        }
+
+        if (links == null) {
+            complete(get);
+        } else {
+            update(links);
+        }
     }
 
-    public void build(Operation get) {
-        this.get = get;
-        this.swagger = new Swagger();
-        prepareSwagger(get);
-
-        Stream<Operation> ops = this.documentQueryResult.documentLinks
-                .stream()
-                .map(link -> {
-                    if (this.service.getSelfLink().equals(link)) {
-                        // skip self
-                        return null;
-                    } else if (link.startsWith(ServiceUriPaths.NODE_SELECTOR_PREFIX)) {
-                        // skip node selectors
-                        return null;
-                    } else if (link
-                            .startsWith(ServiceUriPaths.CORE + ServiceUriPaths.UI_PATH_SUFFIX)) {
-                        // skip UI
-                        return null;
-                    } else if (link.startsWith(ServiceUriPaths.UI_RESOURCES)) {
-                        // skip UI
-                        return null;
-                    } else {
-                        if (this.excludedPrefixes != null) {
-                            for (String prefix : this.excludedPrefixes) {
-                                if (link.startsWith(prefix)) {
-                                    return null;
-                                }
-                            }
-                        }
+    private boolean isDocumented(String link) {
+        if (this.service.getSelfLink().equals(link)) {
+            // skip self
+            return false;
+        } else if (link.startsWith(ServiceUriPaths.NODE_SELECTOR_PREFIX)) {
+            // skip node selectors
+            return false;
+        } else if (link.startsWith(ServiceUriPaths.CORE + ServiceUriPaths.UI_PATH_SUFFIX)) {
+            // skip UI
+            return false;
+        } else if (link.startsWith(ServiceUriPaths.UI_RESOURCES)) {
+            // skip UI
+            return false;
+        } else if (this.excludedPrefixes != null) {
+            for (String prefix : this.excludedPrefixes) {
+                if (link.startsWith(prefix)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
 
-                        return Operation.createGet(this.service,
-                                link + ServiceHost.SERVICE_URI_SUFFIX_TEMPLATE);
-                    }
-                })
-                .filter(Objects::nonNull);
+    /**
+     * Retrieves the templates of the services that are not part of the cached descriptor yet.
+     * Services whose template could not be retrieved are retried once the set of services
+     * changes, and services that timed out are retried on the next GET once their previous
+     * request completed.
+     */
+    private void update(Set<String> links) {
+        List<String> missingLinks = new ArrayList<>();
+        synchronized (this) {
+            if (!links.equals(this.links)) {
+                this.failedLinks.clear();
+            }
+            for (String link : links) {
+                if (!this.fragments.containsKey(link) && !this.failedLinks.contains(link)) {
+                    missingLinks.add(link);
+                }
+            }
+        }
 
-        OperationJoin.create(ops)
-                .setCompletion(this::completion)
-                .sendWith(this.service);
+        // in streaming mode, templates are turned into serialized fragments as they are retrieved
+        FragmentWriter writer = this.isStreaming ? new FragmentWriter() : null;
+        TemplateFetcher fetcher = TemplateFetcher.create(this.service, missingLinks)
+                .setMaxInFlight(this.maxTemplateRequestsInFlight)
+                .setTimeoutMicros(this.templateRequestTimeoutMicros)
+                .setOutstandingLinks(this.outstandingLinks)
+                .setCompletion((templates, failedLinks, timedOutLinks) ->
+                        completion(links, templates, writer, failedLinks, timedOutLinks));
+        if (writer != null) {
+            fetcher.setResultHandler(writer::write);
+        }
+        fetcher.start();
     }
 
-    private void prepareSwagger(Operation get) {
-        List<String> json = Collections.singletonList(Operation.MEDIA_TYPE_APPLICATION_JSON);
-        this.swagger.setConsumes(json);
-        this.swagger.setProduces(json);
+    /**
+     * Updates the cached fragments, either from the templates retrieved or from the
+     * fragments written in streaming mode, and completes the pending GETs.
+     */
+    private void completion(Set<String> links, Map<String, ServiceDocumentQueryResult> templates,
+            FragmentWriter writer, Set<String> failedLinks, Set<String> timedOutLinks) {
+        Set<String> nextLinks = null;
+        List<Operation> gets = null;
+        Exception failure = null;
+        synchronized (this) {
+            try {
+                this.fragments.keySet().retainAll(links);
+                if (writer != null) {
+                    this.fragments.putAll(writer.finish());
+                } else {
+                    for (Map.Entry<String, ServiceDocumentQueryResult> e : templates.entrySet()) {
+                        this.fragments.put(e.getKey(), buildFragment(e.getKey(), e.getValue()));
+                    }
+                }
+                this.failedLinks.addAll(failedLinks);
+                this.timedOutLinks = new TreeSet<>(timedOutLinks);
+                this.links = links;
+            } catch (Exception e) {
+                this.links = null;
+                failure = e;
+            }
+            this.documents.clear();
+
+            if (failure == null && !links.equals(this.requestedLinks)) {
+                // services were started or stopped during the update
+                nextLinks = this.requestedLinks;
+            } else {
+                gets = this.pendingGets;
+                this.pendingGets = new ArrayList<>();
+                this.isUpdating = false;
+            }
+        }
 
-        this.swagger.setHost(get.getRequestHeader(Operation.HOST_HEADER));
+        if (!timedOutLinks.isEmpty()) {
+            logger.log(Level.WARNING, "Timed out retrieving the template of services: "
+                    + new TreeSet<>(timedOutLinks));
+        }
 
-        this.swagger.setSchemes(new ArrayList<>());
+        if (nextLinks != null) {
+            update(nextLinks);
+            return;
+        }
 
-        this.swagger.setInfo(this.info);
-        this.swagger.setBasePath(UriUtils.URI_PATH_CHAR);
+        for (Operation get : gets) {
+            if (failure != null) {
+                get.fail(failure);
+            } else {
+                complete(get);
+            }
+        }
     }
 
-    private void completion(Map<Long, Operation> ops, Map<Long, Throwable> errors) {
+    private void complete(Operation get) {
+        Format format = Format.fromAccept(get.getRequestHeader(Operation.ACCEPT_HEADER));
+        // the descriptor is only compressed when sent over the network, and the
+        // Accept-Encoding header is removed so that the host does not compress it again
+        Encoding encoding = Encoding.IDENTITY;
+        if (get.isRemote()) {
+            encoding = Encoding.fromAcceptEncoding(
+                    get.getAndRemoveRequestHeaderAsIs(Operation.ACCEPT_ENCODING_HEADER));
+        }
+
+        Representation representation;
         try {
-            Map<String, Operation> sortedOps = new TreeMap<>();
-            for (Map.Entry<Long, Operation> e : ops.entrySet()) {
-                // ignore failed ops
-                if (errors != null && errors.containsKey(e.getKey())) {
-                    continue;
-                }
+            representation = getDocument(get.getRequestHeader(Operation.HOST_HEADER))
+                    .getRepresentation(format, encoding);
+        } catch (Exception e) {
+            get.fail(e);
+            return;
+        }
+
+        get.addResponseHeader(ETAG_HEADER, representation.getEtag());
+        get.addResponseHeader(VARY_HEADER,
+                Operation.ACCEPT_HEADER + ", " + Operation.ACCEPT_ENCODING_HEADER);
+        if (isNotModified(get.getRequestHeader(IF_NONE_MATCH_HEADER), representation.getEtag())) {
+            get.setStatusCode(Operation.STATUS_CODE_NOT_MODIFIED);
+            get.complete();
+            return;
+        }
 
-                String uri = UriUtils.getParentPath(e.getValue().getUri().getPath());
+        get.setContentType(format.getContentType());
+        if (encoding != Encoding.IDENTITY) {
+            get.addResponseHeader(Operation.CONTENT_ENCODING_HEADER, encoding.getContentEncoding());
+        }
+        if (get.isRemote()) {
+            get.setBodyNoCloning(representation.getBody());
+        } else {
+            get.setBodyNoCloning(new String(representation.getBody(), StandardCharsets.UTF_8));
+        }
+        get.complete();
+    }
 
-                sortedOps.put(uri, e.getValue());
+    private boolean isNotModified(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
             }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the descriptor for the given Host header, assembling it from the cached fragments
+     * if needed.
+     */
+    private synchronized SwaggerDocument getDocument(String host) throws IOException {
+        SwaggerDocument document = this.documents.get(host);
+        if (document != null) {
+            return document;
+        }
+
+        if (this.isStreaming) {
+            document = new SwaggerDocument(writeDocument(host));
+            this.documents.put(host, document);
+            return document;
+        }
+
+        Swagger swagger = new Swagger();
+        prepareSwagger(swagger, host);
 
-            // Add operations in sorted order
-            for (Map.Entry<String, Operation> e : sortedOps.entrySet()) {
-                this.addOperation(e.getKey(), e.getValue());
+        Set<String> kinds = new HashSet<>();
+        for (Fragment fragment : this.fragments.values()) {
+            if (fragment.tag != null) {
+                swagger.addTag(fragment.tag);
             }
+            fragment.paths.forEach(swagger::path);
+            kinds.addAll(fragment.kinds);
+        }
+        // the postprocessor is given copies of the models shared with other assemblers
+        swagger.setDefinitions(this.postprocessor != null
+                ? this.modelRegistry.copyDefinitions(kinds) : this.modelRegistry.getDefinitions(kinds));
+        if (!this.timedOutLinks.isEmpty()) {
+            swagger.setVendorExtension(EXTENSION_TIMED_OUT_SERVICES,
+                    new ArrayList<>(this.timedOutLinks));
+        }
 
-            this.swagger.setDefinitions(this.modelRegistry.getDefinitions());
+        if (this.postprocessor != null) {
+            this.postprocessor.accept(swagger);
+        }
 
-            ObjectWriter writer;
-            String accept = this.get.getRequestHeader(Operation.ACCEPT_HEADER);
-            if (accept != null && (accept.contains(CONTENT_TYPE_YML) || accept.contains(
-                    CONTENT_TYPE_YAML))) {
-                this.get.addResponseHeader(Operation.CONTENT_TYPE_HEADER,
-                        Operation.MEDIA_TYPE_TEXT_YAML);
-                writer = Yaml.pretty();
-            } else {
-                this.get.addResponseHeader(Operation.CONTENT_TYPE_HEADER,
-                        Operation.MEDIA_TYPE_APPLICATION_JSON);
-                writer = Json.pretty();
+        document = new SwaggerDocument(swagger);
+        this.documents.put(host, document);
+        return document;
+    }
+
+    /**
+     * Writes the descriptor as compact JSON, copying the serialized paths of the fragments
+     * as is.
+     */
+    private byte[] writeDocument(String host) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonGenerator generator = Json.mapper().getFactory().createGenerator(out)) {
+            generator.writeStartObject();
+
+            Swagger swagger = new Swagger();
+            prepareSwagger(swagger, host);
+            ObjectNode fields = Json.mapper().valueToTree(swagger);
+            fields.remove(FIELD_NAME_PATHS);
+            Iterator<Entry<String, JsonNode>> it = fields.fields();
+            while (it.hasNext()) {
+                Entry<String, JsonNode> field = it.next();
+                generator.writeFieldName(field.getKey());
+                generator.writeTree(field.getValue());
             }
 
-            if (this.postprocessor != null) {
-                this.postprocessor.accept(this.swagger);
+            generator.writeFieldName(FIELD_NAME_PATHS);
+            generator.writeStartObject();
+            generator.flush();
+            // the members of each serialized object, written without the enclosing braces
+            Map<String, Tag> tags = new LinkedHashMap<>();
+            Set<String> kinds = new HashSet<>();
+            boolean isFirst = true;
+            for (Fragment fragment : this.fragments.values()) {
+                if (fragment.tag != null) {
+                    tags.putIfAbsent(fragment.tag.getName(), fragment.tag);
+                }
+                kinds.addAll(fragment.kinds);
+
+                byte[] paths = fragment.serializedPaths;
+                if (paths.length > 2) {
+                    if (!isFirst) {
+                        out.write(',');
+                    }
+                    out.write(paths, 1, paths.length - 2);
+                    isFirst = false;
+                }
             }
+            generator.writeEndObject();
 
-            this.get.setBody(writer.writeValueAsString(this.swagger));
-            this.get.complete();
-        } catch (Exception e) {
-            this.get.fail(e);
+            if (!tags.isEmpty()) {
+                generator.writeFieldName(FIELD_NAME_TAGS);
+                Json.mapper().writeValue(generator, tags.values());
+            }
+
+            generator.writeFieldName(FIELD_NAME_DEFINITIONS);
+            generator.writeStartObject();
+            for (Entry<String, Model> e : this.modelRegistry.getDefinitions(kinds).entrySet()) {
+                generator.writeFieldName(e.getKey());
+                Json.mapper().writeValue(generator, e.getValue());
+            }
+            generator.writeEndObject();
+
+            if (!this.timedOutLinks.isEmpty()) {
+                generator.writeFieldName(EXTENSION_TIMED_OUT_SERVICES);
+                Json.mapper().writeValue(generator, this.timedOutLinks);
+            }
+
+            generator.writeEndObject();
         }
+        return out.toByteArray();
     }
 
-    private void addOperation(String uri, Operation op) {
-        ServiceDocumentQueryResult q = op.getBody(ServiceDocumentQueryResult.class);
+    /**
+     * Builds and serializes the fragments of the services whose template is retrieved in
+     * streaming mode, one at a time.
+     */
+    private final class FragmentWriter {
+        private final Map<String, Fragment> fragments = new HashMap<>();
+        private IOException failure;
 
-        // use service base path as tag if there is no custom value present
-        this.currentTag = new Tag();
-        this.currentTag.setName(uri);
+        private void write(String link, ServiceDocumentQueryResult template) {
+            if (this.failure != null) {
+                return;
+            }
 
-        if (q.documents != null) {
-            Object firstDoc = q.documents.values().iterator().next();
-            ServiceDocument serviceDocument = Utils.fromJson(firstDoc, ServiceDocument.class);
-            // Override the custom tag and description if present as part of documentDescription
-            updateCurrentTag(this.currentTag, serviceDocument.documentDescription);
-            addFactory(uri, serviceDocument);
+            Fragment fragment;
+            synchronized (SwaggerAssembler.this) {
+                fragment = buildFragment(link, template);
+            }
+            try {
+                fragment.serialize();
+            } catch (IOException e) {
+                this.failure = e;
+                return;
+            }
+            this.fragments.put(link, fragment);
+        }
 
-            this.swagger.addTag(this.currentTag);
-        } else if (q.documentDescription != null
-                && q.documentDescription.serviceRequestRoutes != null
-                && !q.documentDescription.serviceRequestRoutes.isEmpty()) {
-            updateCurrentTag(this.currentTag, q.documentDescription);
-            Map<String, Path> map = pathByRoutes(q.documentDescription.serviceRequestRoutes.values(),
-                    Path::new);
-            for (Entry<String, Path> entry : map.entrySet()) {
-                this.swagger.path(uri + entry.getKey(), entry.getValue());
+        private Map<String, Fragment> finish() throws IOException {
+            if (this.failure != null) {
+                throw this.failure;
             }
+            return this.fragments;
+        }
+    }
+
+    private void prepareSwagger(Swagger swagger, String host) {
+        List<String> json = Collections.singletonList(Operation.MEDIA_TYPE_APPLICATION_JSON);
+        swagger.setConsumes(json);
+        swagger.setProduces(json);
+
+        swagger.setHost(host);
 
-            this.swagger.addTag(this.currentTag);
+        swagger.setSchemes(new ArrayList<>());
+
+        swagger.setInfo(this.info);
+        swagger.setBasePath(UriUtils.URI_PATH_CHAR);
+    }
+
+    private Fragment buildFragment(String uri, ServiceDocumentQueryResult q) {
+        this.currentFragment = new Fragment();
+        this.modelRegistry.setUsedKinds(this.currentFragment.kinds);
+        try {
+            // use service base path as tag if there is no custom value present
+            this.currentTag = new Tag();
+            this.currentTag.setName(uri);
+
+            if (q.documents != null) {
+                Object firstDoc = q.documents.values().iterator().next();
+                ServiceDocument serviceDocument = Utils.fromJson(firstDoc, ServiceDocument.class);
+                // Override the custom tag and description if present as part of documentDescription
+                updateCurrentTag(this.currentTag, serviceDocument.documentDescription);
+                addFactory(uri, serviceDocument);
+
+                this.currentFragment.tag = this.currentTag;
+            } else if (q.documentDescription != null
+                    && q.documentDescription.serviceRequestRoutes != null
+                    && !q.documentDescription.serviceRequestRoutes.isEmpty()) {
+                updateCurrentTag(this.currentTag, q.documentDescription);
+                Map<String, Path> map = pathByRoutes(q.documentDescription.serviceRequestRoutes.values(),
+                        Path::new);
+                for (Entry<String, Path> entry : map.entrySet()) {
+                    this.currentFragment.paths.put(uri + entry.getKey(), entry.getValue());
+                }
+
+                this.currentFragment.tag = this.currentTag;
+            }
+            return this.currentFragment;
+        } finally {
+            this.modelRegistry.setUsedKinds(null);
+            this.currentFragment = null;
         }
     }
 
@@ -291,36 +654,38 @@ class SwaggerAssembler {
     }
 
     private void addFactory(String uri, ServiceDocument doc) {
-        this.swagger.path(uri, path2Factory(doc));
+        this.currentFragment.paths.put(uri, path2Factory(doc));
 
         if (!this.excludeUtilities) {
-            this.swagger.path(uri + ServiceHost.SERVICE_URI_SUFFIX_STATS, path2UtilStats(null));
-            this.swagger.path(uri + ServiceHost.SERVICE_URI_SUFFIX_CONFIG, path2UtilConfig(null));
-            this.swagger.path(uri + ServiceHost.SERVICE_URI_SUFFIX_SUBSCRIPTIONS,
+            this.currentFragment.paths.put(uri + ServiceHost.SERVICE_URI_SUFFIX_STATS,
+                    path2UtilStats(null));
+            this.currentFragment.paths.put(uri + ServiceHost.SERVICE_URI_SUFFIX_CONFIG,
+                    path2UtilConfig(null));
+            this.currentFragment.paths.put(uri + ServiceHost.SERVICE_URI_SUFFIX_SUBSCRIPTIONS,
                     path2UtilSubscriptions(null));
-            this.swagger
-                    .path(uri + ServiceHost.SERVICE_URI_SUFFIX_TEMPLATE, path2UtilTemplate(null));
-            this.swagger
-                    .path(uri + ServiceHost.SERVICE_URI_SUFFIX_AVAILABLE, path2UtilAvailable(null));
+            this.currentFragment.paths.put(uri + ServiceHost.SERVICE_URI_SUFFIX_TEMPLATE,
+                    path2UtilTemplate(null));
+            this.currentFragment.paths.put(uri + ServiceHost.SERVICE_URI_SUFFIX_AVAILABLE,
+                    path2UtilAvailable(null));
         }
 
         Parameter idParam = paramId();
         String base = uri + PREFIX_ID;
         Map<String, Path> paths = path2Instance(doc);
         paths.forEach((suffix, path) -> {
-            this.swagger.path(base + suffix, path);
+            this.currentFragment.paths.put(base + suffix, path);
         });
 
         if (!this.excludeUtilities) {
-            this.swagger.path(uri + PREFIX_ID + ServiceHost.SERVICE_URI_SUFFIX_STATS,
+            this.currentFragment.paths.put(uri + PREFIX_ID + ServiceHost.SERVICE_URI_SUFFIX_STATS,
                     path2UtilStats(idParam));
-            this.swagger.path(uri + PREFIX_ID + ServiceHost.SERVICE_URI_SUFFIX_CONFIG,
+            this.currentFragment.paths.put(uri + PREFIX_ID + ServiceHost.SERVICE_URI_SUFFIX_CONFIG,
                     path2UtilConfig(idParam));
-            this.swagger.path(uri + PREFIX_ID + ServiceHost.SERVICE_URI_SUFFIX_SUBSCRIPTIONS,
+            this.currentFragment.paths.put(uri + PREFIX_ID + ServiceHost.SERVICE_URI_SUFFIX_SUBSCRIPTIONS,
                     path2UtilSubscriptions(idParam));
-            this.swagger.path(uri + PREFIX_ID + ServiceHost.SERVICE_URI_SUFFIX_TEMPLATE,
+            this.currentFragment.paths.put(uri + PREFIX_ID + ServiceHost.SERVICE_URI_SUFFIX_TEMPLATE,
                     path2UtilTemplate(idParam));
-            this.swagger.path(uri + PREFIX_ID + ServiceHost.SERVICE_URI_SUFFIX_AVAILABLE,
+            this.currentFragment.paths.put(uri + PREFIX_ID + ServiceHost.SERVICE_URI_SUFFIX_AVAILABLE,
                     path2UtilAvailable(idParam));
         }
     }
@@ -591,10 +956,7 @@ class SwaggerAssembler {
     }
 
     private ModelImpl modelForPodo(Class<?> type) {
-        PropertyDescription pd = Builder.create()
-                .buildPodoPropertyDescription(type);
-        pd.kind = Utils.buildKind(type);
-        return this.modelRegistry.getModel(pd);
+        return this.modelRegistry.getModel(podoDescriptions.get(type));
     }
 
     private Response responseOk(ServiceDocument template) {
@@ -617,9 +979,7 @@ class SwaggerAssembler {
     }
 
     private ServiceDocument template(Class<? extends ServiceDocument> type) {
-        ServiceDocumentDescription desc = ServiceDocumentDescription.Builder
-                .create()
-                .buildDescription(type);
+        ServiceDocumentDescription desc = documentDescriptions.get(type);
 
         try {
             ServiceDocument res = type.newInstance();
@@ -929,6 +1289,21 @@ class SwaggerAssembler {
         return this;
     }
 
+    public SwaggerAssembler setMaxTemplateRequestsInFlight(int maxTemplateRequestsInFlight) {
+        this.maxTemplateRequestsInFlight = maxTemplateRequestsInFlight;
+        return this;
+    }
+
+    public SwaggerAssembler setTemplateRequestTimeoutMicros(long templateRequestTimeoutMicros) {
+        this.templateRequestTimeoutMicros = templateRequestTimeoutMicros;
+        return this;
+    }
+
+    public SwaggerAssembler setStreaming(boolean isStreaming) {
+        this.isStreaming = isStreaming;
+        return this;
+    }
+
     public SwaggerAssembler setPostprocessor(Consumer<Swagger> postprocessor) {
         this.postprocessor = postprocessor;
         return this;
@@ -30,6 +30,10 @@ import com.vmware.xenon.services.common.ServiceUriPaths;
 /**
  * Stateless service that serves a swagger 2.0 compatible descriptor of all factory
  * services started on a host.
+ *
+ * The descriptor is cached, and is only updated for the services started or stopped since the
+ * previous GET. Responses carry an ETag, and GETs with a matching If-None-Match header complete
+ * with 304 (Not Modified).
  */
 public class SwaggerDescriptorService extends StatelessService {
     public static final String SELF_LINK = ServiceUriPaths.SWAGGER;
@@ -44,6 +48,13 @@ public class SwaggerDescriptorService extends StatelessService {
 
     private Consumer<Swagger> swaggerPostprocessor;
 
+    private int maxTemplateRequestsInFlight = TemplateFetcher.DEFAULT_MAX_IN_FLIGHT;
+    private long templateRequestTimeoutMicros = TemplateFetcher.DEFAULT_TIMEOUT_MICROS;
+    private boolean isStreaming;
+
+    // recreated when the settings change, to rebuild the cached descriptor
+    private volatile SwaggerAssembler assembler;
+
     public SwaggerDescriptorService() {
         super(ServiceDocument.class);
         toggleOption(ServiceOption.HTML_USER_INTERFACE, true);
@@ -57,6 +68,7 @@ public class SwaggerDescriptorService extends StatelessService {
      */
     public void setExcludedPrefixes(String... excludedPrefixes) {
         this.excludedPrefixes = excludedPrefixes;
+        this.assembler = null;
     }
 
     /**
@@ -64,11 +76,19 @@ public class SwaggerDescriptorService extends StatelessService {
      * Intended to be used in cases where complex customizations are easier to express in an
      * imperative style, for example skip a DELETE operation only on a single service etc.
      *
-     * The postprocessor in invoked every time a Swagger instance is built from the the current host.
+     * The postprocessor in invoked every time a Swagger instance is built from the the current host,
+     * which happens when services are started or stopped. Paths are shared with the previously
+     * built instances, so the postprocessor should be idempotent. Definitions are copies of the
+     * models cached for the whole process, and can be modified. Postprocessors are not supported
+     * in streaming mode.
      * @param swaggerPostprocessor
      */
     public void setSwaggerPostprocessor(Consumer<Swagger> swaggerPostprocessor) {
+        if (swaggerPostprocessor != null && this.isStreaming) {
+            throw new IllegalStateException("A swagger postprocessor cannot be set in streaming mode");
+        }
         this.swaggerPostprocessor = swaggerPostprocessor;
+        this.assembler = null;
     }
 
     /**
@@ -81,6 +101,7 @@ public class SwaggerDescriptorService extends StatelessService {
      */
     public void setStripPackagePrefixes(String... stripPackagePrefixes) {
         this.stripPackagePrefixes = stripPackagePrefixes;
+        this.assembler = null;
     }
 
     /**
@@ -90,6 +111,7 @@ public class SwaggerDescriptorService extends StatelessService {
      */
     public void setInfo(Info info) {
         this.info = info;
+        this.assembler = null;
     }
 
     /**
@@ -98,6 +120,7 @@ public class SwaggerDescriptorService extends StatelessService {
      */
     public void setExcludeUtilities(boolean excludeUtilities) {
         this.excludeUtilities = excludeUtilities;
+        this.assembler = null;
     }
 
     /**
@@ -107,6 +130,44 @@ public class SwaggerDescriptorService extends StatelessService {
      */
     public void setSupportLevel(SupportLevel supportLevel) {
         this.supportLevel = supportLevel;
+        this.assembler = null;
+    }
+
+    /**
+     * Limits the number of services whose template is retrieved at the same time when
+     * building the descriptor, so that large hosts are not flooded with requests.
+     */
+    public void setMaxTemplateRequestsInFlight(int maxTemplateRequestsInFlight) {
+        if (maxTemplateRequestsInFlight <= 0) {
+            throw new IllegalArgumentException("maxTemplateRequestsInFlight must be positive");
+        }
+        this.maxTemplateRequestsInFlight = maxTemplateRequestsInFlight;
+        this.assembler = null;
+    }
+
+    /**
+     * Services whose template is not retrieved within this timeout are left out of the
+     * descriptor, and listed in its x-timed-out-services extension. They are retried on
+     * the next GET.
+     */
+    public void setTemplateRequestTimeoutMicros(long templateRequestTimeoutMicros) {
+        this.templateRequestTimeoutMicros = templateRequestTimeoutMicros;
+        this.assembler = null;
+    }
+
+    /**
+     * In streaming mode, the paths of each service are serialized as its template is retrieved,
+     * and the complete model is never held in memory. When services are started or stopped,
+     * only the templates of the new services are retrieved, and the descriptor is written
+     * again from the serialized paths. A swagger postprocessor, which needs the model, cannot
+     * be set in streaming mode.
+     */
+    public void setStreaming(boolean isStreaming) {
+        if (isStreaming && this.swaggerPostprocessor != null) {
+            throw new IllegalStateException("Streaming mode cannot be enabled with a swagger postprocessor");
+        }
+        this.isStreaming = isStreaming;
+        this.assembler = null;
     }
 
     @Override
@@ -118,18 +179,14 @@ public class SwaggerDescriptorService extends StatelessService {
 
     @Override
     public void handleGet(Operation get) {
+        SwaggerAssembler assembler = getAssembler();
         Operation op = Operation.createGet(this, "/");
         op.setCompletion((o, e) -> {
-            SwaggerAssembler
-                    .create(this)
-                    .setExcludedPrefixes(this.excludedPrefixes)
-                    .setStripPackagePrefixes(this.stripPackagePrefixes)
-                    .setSupportLevel(this.supportLevel)
-                    .setInfo(this.info)
-                    .setPostprocessor(this.swaggerPostprocessor)
-                    .setExcludeUtilities(this.excludeUtilities)
-                    .setQueryResult(o.getBody(ServiceDocumentQueryResult.class))
-                    .build(get);
+            if (e != null) {
+                get.fail(e);
+                return;
+            }
+            assembler.build(get, o.getBody(ServiceDocumentQueryResult.class));
         });
 
         getHost().queryServiceUris(
@@ -140,4 +197,24 @@ public class SwaggerDescriptorService extends StatelessService {
                 // exclude factory items
                 EnumSet.of(ServiceOption.FACTORY_ITEM));
     }
+
+    private SwaggerAssembler getAssembler() {
+        // concurrent GETs may create two assemblers, only one is kept
+        SwaggerAssembler assembler = this.assembler;
+        if (assembler == null) {
+            assembler = SwaggerAssembler
+                    .create(this)
+                    .setExcludedPrefixes(this.excludedPrefixes)
+                    .setStripPackagePrefixes(this.stripPackagePrefixes)
+                    .setSupportLevel(this.supportLevel)
+                    .setInfo(this.info)
+                    .setPostprocessor(this.swaggerPostprocessor)
+                    .setExcludeUtilities(this.excludeUtilities)
+                    .setMaxTemplateRequestsInFlight(this.maxTemplateRequestsInFlight)
+                    .setTemplateRequestTimeoutMicros(this.templateRequestTimeoutMicros)
+                    .setStreaming(this.isStreaming);
+            this.assembler = assembler;
+        }
+        return assembler;
+    }
 }
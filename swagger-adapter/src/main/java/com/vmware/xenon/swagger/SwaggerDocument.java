@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.swagger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import io.swagger.models.Swagger;
+import io.swagger.util.Json;
+import io.swagger.util.Yaml;
+
+import com.vmware.xenon.common.FNVHash;
+import com.vmware.xenon.common.Operation;
+
+/**
+ * An assembled swagger descriptor, and its serialized representations.
+ *
+ * Each combination of {@link Format} and {@link Encoding} is serialized once, on first use, and
+ * then served as is. A descriptor generated in streaming mode is only available as compact
+ * JSON, which the other formats are converted from token by token.
+ */
+class SwaggerDocument {
+
+    public static final String CONTENT_ENCODING_DEFLATE = "deflate";
+
+    /**
+     * Serialization formats of the descriptor.
+     */
+    enum Format {
+        JSON(Operation.MEDIA_TYPE_APPLICATION_JSON),
+        PRETTY_JSON(Operation.MEDIA_TYPE_APPLICATION_JSON),
+        YAML(Operation.MEDIA_TYPE_TEXT_YAML);
+
+        private final String contentType;
+
+        Format(String contentType) {
+            this.contentType = contentType;
+        }
+
+        public String getContentType() {
+            return this.contentType;
+        }
+
+        /**
+         * Chooses a format from an Accept header: YAML if requested, compact JSON for clients
+         * explicitly accepting JSON, and pretty-printed JSON for others, e.g. browsers.
+         */
+        public static Format fromAccept(String accept) {
+            if (accept == null) {
+                return PRETTY_JSON;
+            }
+            if (accept.contains(SwaggerAssembler.CONTENT_TYPE_YML)
+                    || accept.contains(SwaggerAssembler.CONTENT_TYPE_YAML)) {
+                return YAML;
+            }
+            if (accept.contains(Operation.MEDIA_TYPE_APPLICATION_JSON)) {
+                return JSON;
+            }
+            return PRETTY_JSON;
+        }
+    }
+
+    /**
+     * Content encodings of the descriptor.
+     */
+    enum Encoding {
+        IDENTITY(null),
+        GZIP(Operation.CONTENT_ENCODING_GZIP),
+        DEFLATE(CONTENT_ENCODING_DEFLATE);
+
+        private final String contentEncoding;
+
+        Encoding(String contentEncoding) {
+            this.contentEncoding = contentEncoding;
+        }
+
+        /**
+         * Returns the value of the Content-Encoding header, or null for {@link #IDENTITY}.
+         */
+        public String getContentEncoding() {
+            return this.contentEncoding;
+        }
+
+        /**
+         * Chooses an encoding from an Accept-Encoding header, preferring gzip over deflate.
+         * Codings with a zero quality value are not chosen.
+         */
+        public static Encoding fromAcceptEncoding(String acceptEncoding) {
+            if (acceptEncoding == null) {
+                return IDENTITY;
+            }
+            Encoding res = IDENTITY;
+            for (String coding : acceptEncoding.split(",")) {
+                String[] params = coding.split(";");
+                if (isRejected(params)) {
+                    continue;
+                }
+                String name = params[0].trim().toLowerCase();
+                if (name.equals(GZIP.contentEncoding) || name.equals("*")) {
+                    return GZIP;
+                }
+                if (name.equals(DEFLATE.contentEncoding)) {
+                    res = DEFLATE;
+                }
+            }
+            return res;
+        }
+
+        private static boolean isRejected(String[] params) {
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (!param.startsWith("q=")) {
+                    continue;
+                }
+                try {
+                    return Double.parseDouble(param.substring(2)) <= 0;
+                } catch (NumberFormatException e) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private OutputStream wrap(OutputStream out) throws IOException {
+            switch (this) {
+            case GZIP:
+                return new GZIPOutputStream(out);
+            case DEFLATE:
+                return new DeflaterOutputStream(out);
+            default:
+                return out;
+            }
+        }
+    }
+
+    /**
+     * A serialized descriptor, in a given format and encoding.
+     */
+    static final class Representation {
+        private final byte[] body;
+        private final String etag;
+
+        private Representation(byte[] body, String etag) {
+            this.body = body;
+            this.etag = etag;
+        }
+
+        public byte[] getBody() {
+            return this.body;
+        }
+
+        public String getEtag() {
+            return this.etag;
+        }
+    }
+
+    private final Swagger swagger;
+    private final byte[] json;
+    private final AtomicReferenceArray<Representation> representations = new AtomicReferenceArray<>(
+            Format.values().length * Encoding.values().length);
+
+    SwaggerDocument(Swagger swagger) {
+        this.swagger = swagger;
+        this.json = null;
+    }
+
+    SwaggerDocument(byte[] json) {
+        this.swagger = null;
+        this.json = json;
+    }
+
+    /**
+     * Returns the descriptor serialized in the given format and encoding.
+     */
+    public Representation getRepresentation(Format format, Encoding encoding) throws IOException {
+        // Concurrent GETs may serialize the descriptor twice, with the same result
+        int index = format.ordinal() * Encoding.values().length + encoding.ordinal();
+        Representation res = this.representations.get(index);
+        if (res != null) {
+            return res;
+        }
+
+        if (encoding == Encoding.IDENTITY) {
+            byte[] body = this.swagger != null ? serialize(format) : convert(format);
+            res = new Representation(body,
+                    "\"" + Long.toHexString(FNVHash.compute(body, 0, body.length)) + "\"");
+        } else {
+            Representation identity = getRepresentation(format, Encoding.IDENTITY);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(identity.body.length / 4);
+            try (OutputStream encoded = encoding.wrap(out)) {
+                encoded.write(identity.body);
+            }
+            // distinct from the identity ETag, as required for strong validators
+            res = new Representation(out.toByteArray(), identity.etag.substring(0,
+                    identity.etag.length() - 1) + "-" + encoding.contentEncoding + "\"");
+        }
+
+        this.representations.set(index, res);
+        return res;
+    }
+
+    private byte[] serialize(Format format) throws IOException {
+        ObjectWriter writer;
+        switch (format) {
+        case YAML:
+            writer = Yaml.pretty();
+            break;
+        case PRETTY_JSON:
+            writer = Json.pretty();
+            break;
+        default:
+            writer = Json.mapper().writer();
+        }
+        return writer.writeValueAsBytes(this.swagger);
+    }
+
+    private byte[] convert(Format format) throws IOException {
+        if (format == Format.JSON) {
+            return this.json;
+        }
+
+        JsonFactory factory = format == Format.YAML
+                ? Yaml.mapper().getFactory() : Json.mapper().getFactory();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(this.json.length * 2);
+        try (JsonParser parser = Json.mapper().getFactory().createParser(this.json);
+                JsonGenerator generator = factory.createGenerator(out)) {
+            if (format == Format.PRETTY_JSON) {
+                generator.useDefaultPrettyPrinter();
+            }
+            parser.nextToken();
+            generator.copyCurrentStructure(parser);
+        }
+        return out.toByteArray();
+    }
+}
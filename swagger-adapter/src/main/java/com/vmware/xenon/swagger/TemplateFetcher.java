@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.swagger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.Service;
+import com.vmware.xenon.common.ServiceDocumentQueryResult;
+import com.vmware.xenon.common.ServiceHost;
+import com.vmware.xenon.common.Utils;
+
+/**
+ * Retrieves the templates of a set of services, with a bounded number of requests in flight.
+ *
+ * A service that does not respond within the timeout is given up on, and reported as timed out,
+ * so that a single slow service does not hold back the others. Its request is not cancelled, and
+ * keeps counting against the window until its response or expiration arrives. While it is
+ * outstanding, its service is not sent another request, by this fetcher or by any other one
+ * sharing the same {@link #setOutstandingLinks outstanding links}, and is reported as timed out.
+ *
+ * With a {@link ResultHandler}, templates are handed over one at a time in the order of the
+ * links instead of being collected, and the window bounds the requests in flight plus the
+ * templates waiting for a slower predecessor.
+ */
+class TemplateFetcher {
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 16;
+    public static final long DEFAULT_TIMEOUT_MICROS = TimeUnit.SECONDS.toMicros(5);
+
+    @FunctionalInterface
+    interface CompletionHandler {
+        /**
+         * @param templates The templates retrieved, by service link. Empty if a
+         *                  {@link ResultHandler} is set.
+         * @param failedLinks The services whose template could not be retrieved.
+         * @param timedOutLinks The services that did not respond within the timeout.
+         */
+        void handle(Map<String, ServiceDocumentQueryResult> templates, Set<String> failedLinks,
+                Set<String> timedOutLinks);
+    }
+
+    @FunctionalInterface
+    interface ResultHandler {
+        /**
+         * Called serially, in the order of the links, for every template retrieved.
+         */
+        void handle(String link, ServiceDocumentQueryResult template);
+    }
+
+    private final Service service;
+    private final List<String> links;
+    private final Map<String, ServiceDocumentQueryResult> templates = new HashMap<>();
+    private final Set<String> failedLinks = new HashSet<>();
+    private final Set<String> timedOutLinks = new HashSet<>();
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private long timeoutMicros = DEFAULT_TIMEOUT_MICROS;
+    private CompletionHandler completion;
+    private ResultHandler resultHandler;
+    private Set<String> outstandingLinks = ConcurrentHashMap.newKeySet();
+
+    // Guarded by this. With a result handler, results are kept by index until handed over.
+    private final ServiceDocumentQueryResult[] results;
+    private final boolean[] isDone;
+    private int sentCount;
+    private int doneCount;
+    private int handedOverCount;
+    // requests given up on whose response or expiration has not arrived yet
+    private int abandonedCount;
+
+    private TemplateFetcher(Service service, Collection<String> links) {
+        this.service = service;
+        this.links = new ArrayList<>(links);
+        this.results = new ServiceDocumentQueryResult[this.links.size()];
+        this.isDone = new boolean[this.links.size()];
+    }
+
+    public static TemplateFetcher create(Service service, Collection<String> links) {
+        return new TemplateFetcher(service, links);
+    }
+
+    public TemplateFetcher setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+        return this;
+    }
+
+    public TemplateFetcher setTimeoutMicros(long timeoutMicros) {
+        this.timeoutMicros = timeoutMicros;
+        return this;
+    }
+
+    public TemplateFetcher setCompletion(CompletionHandler completion) {
+        this.completion = completion;
+        return this;
+    }
+
+    public TemplateFetcher setResultHandler(ResultHandler resultHandler) {
+        this.resultHandler = resultHandler;
+        return this;
+    }
+
+    /**
+     * Sets the thread-safe set of the services with a template request in flight, to share
+     * with the fetchers of previous and later updates.
+     */
+    public TemplateFetcher setOutstandingLinks(Set<String> outstandingLinks) {
+        this.outstandingLinks = outstandingLinks;
+        return this;
+    }
+
+    public void start() {
+        if (this.links.isEmpty()) {
+            this.completion.handle(this.templates, this.failedLinks, this.timedOutLinks);
+            return;
+        }
+
+        sendMore();
+    }
+
+    private void sendMore() {
+        boolean isOrdered = this.resultHandler != null;
+        int maxInFlight = this.maxInFlight;
+        while (true) {
+            List<Integer> indexes = new ArrayList<>();
+            synchronized (this) {
+                // without a result handler, every template done is handed over right away
+                int handedOver = isOrdered ? this.handedOverCount : this.doneCount;
+                while (this.sentCount < this.links.size()
+                        && this.sentCount - handedOver + this.abandonedCount < maxInFlight) {
+                    indexes.add(this.sentCount++);
+                }
+            }
+
+            // services whose previous request is still outstanding are not sent another one
+            List<Integer> skippedIndexes = new ArrayList<>();
+            for (int index : indexes) {
+                if (!send(index)) {
+                    skippedIndexes.add(index);
+                }
+            }
+            if (skippedIndexes.isEmpty()) {
+                return;
+            }
+            for (int index : skippedIndexes) {
+                if (setDone(index, null, true)) {
+                    this.completion.handle(this.templates, this.failedLinks, this.timedOutLinks);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends the template request of the given service, unless its previous request is still
+     * outstanding. Returns false if not sent.
+     */
+    private boolean send(int index) {
+        String link = this.links.get(index);
+        if (!this.outstandingLinks.add(link)) {
+            return false;
+        }
+
+        // set by whichever comes first, the response or the timeout
+        AtomicBoolean isDone = new AtomicBoolean();
+        Operation get = Operation
+                .createGet(this.service, link + ServiceHost.SERVICE_URI_SUFFIX_TEMPLATE)
+                .setExpiration(Utils.fromNowMicrosUtc(this.timeoutMicros))
+                .setCompletion((o, e) -> {
+                    this.outstandingLinks.remove(link);
+                    if (!isDone.compareAndSet(false, true)) {
+                        // given up on, the request no longer counts against the window
+                        synchronized (this) {
+                            this.abandonedCount--;
+                        }
+                        sendMore();
+                        return;
+                    }
+                    if (e instanceof TimeoutException) {
+                        onDone(index, null, true);
+                        return;
+                    }
+                    onDone(index, e == null ? getTemplate(o) : null, false);
+                });
+
+        this.service.getHost().schedule(() -> {
+            synchronized (this) {
+                if (!isDone.compareAndSet(false, true)) {
+                    return;
+                }
+                this.abandonedCount++;
+            }
+            onDone(index, null, true);
+        }, this.timeoutMicros, TimeUnit.MICROSECONDS);
+
+        this.service.sendRequest(get);
+        return true;
+    }
+
+    private static ServiceDocumentQueryResult getTemplate(Operation o) {
+        try {
+            return o.getBody(ServiceDocumentQueryResult.class);
+        } catch (Exception e) {
+            // reported as failed
+            return null;
+        }
+    }
+
+    private void onDone(int index, ServiceDocumentQueryResult template, boolean isTimedOut) {
+        if (setDone(index, template, isTimedOut)) {
+            this.completion.handle(this.templates, this.failedLinks, this.timedOutLinks);
+        } else {
+            sendMore();
+        }
+    }
+
+    /**
+     * Records the outcome of the request of the given service. Returns true if all the services
+     * are done.
+     */
+    private boolean setDone(int index, ServiceDocumentQueryResult template, boolean isTimedOut) {
+        String link = this.links.get(index);
+        ResultHandler resultHandler = this.resultHandler;
+        synchronized (this) {
+            if (isTimedOut) {
+                this.timedOutLinks.add(link);
+            } else if (template == null) {
+                this.failedLinks.add(link);
+            }
+
+            if (resultHandler == null) {
+                if (template != null) {
+                    this.templates.put(link, template);
+                }
+            } else {
+                this.results[index] = template;
+                this.isDone[index] = true;
+                while (this.handedOverCount < this.links.size()
+                        && this.isDone[this.handedOverCount]) {
+                    ServiceDocumentQueryResult result = this.results[this.handedOverCount];
+                    this.results[this.handedOverCount] = null;
+                    if (result != null) {
+                        resultHandler.handle(this.links.get(this.handedOverCount), result);
+                    }
+                    this.handedOverCount++;
+                }
+            }
+            return ++this.doneCount == this.links.size();
+        }
+    }
+}
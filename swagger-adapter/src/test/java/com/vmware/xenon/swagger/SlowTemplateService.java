@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.swagger;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.RequestRouter.Route.RouteDocumentation;
+import com.vmware.xenon.common.Service;
+import com.vmware.xenon.common.ServiceHost;
+import com.vmware.xenon.common.StatelessService;
+import com.vmware.xenon.common.UtilityService;
+
+/**
+ * A service that holds requests for its template until released.
+ */
+public class SlowTemplateService extends StatelessService {
+
+    public static final String SELF_LINK = "/slow-template";
+
+    private final List<Operation> heldOps = new ArrayList<>();
+    private boolean isSlow = true;
+
+    @RouteDocumentation(description = "get nothing")
+    @Override
+    public void handleGet(Operation get) {
+        get.complete();
+    }
+
+    @Override
+    public Service getUtilityService(String uriPath) {
+        Service utilityService = super.getUtilityService(uriPath);
+        if (!uriPath.endsWith(ServiceHost.SERVICE_URI_SUFFIX_TEMPLATE)) {
+            return utilityService;
+        }
+
+        return new UtilityService() {
+            @Override
+            public void handleRequest(Operation op) {
+                synchronized (SlowTemplateService.this) {
+                    if (SlowTemplateService.this.isSlow) {
+                        SlowTemplateService.this.heldOps.add(op);
+                        return;
+                    }
+                }
+                utilityService.handleRequest(op);
+            }
+        };
+    }
+
+    /**
+     * Returns the number of template requests held.
+     */
+    public synchronized int getHeldCount() {
+        return this.heldOps.size();
+    }
+
+    /**
+     * Handles the held template requests, and the following ones right away.
+     */
+    public void release() {
+        List<Operation> ops;
+        synchronized (this) {
+            this.isSlow = false;
+            ops = new ArrayList<>(this.heldOps);
+            this.heldOps.clear();
+        }
+        Service utilityService = super.getUtilityService(ServiceHost.SERVICE_URI_SUFFIX_TEMPLATE);
+        ops.forEach(utilityService::handleRequest);
+    }
+}
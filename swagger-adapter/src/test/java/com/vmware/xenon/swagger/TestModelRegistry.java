@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.swagger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import io.swagger.models.Model;
+import io.swagger.models.ModelImpl;
+import org.junit.Test;
+
+import com.vmware.xenon.common.ServiceDocumentDescription.Builder;
+import com.vmware.xenon.common.ServiceDocumentDescription.PropertyDescription;
+import com.vmware.xenon.common.Utils;
+
+/**
+ */
+public class TestModelRegistry {
+
+    public static class Wheel {
+        public String brand;
+    }
+
+    public static class Vehicle {
+        public String name;
+        public List<Wheel> wheels;
+    }
+
+    @Test
+    public void reuseCachedModels() {
+        ModelImpl model = newRegistry().getModel(describe(Vehicle.class));
+
+        // another registry gets the cached models, and their references
+        ModelRegistry registry = newRegistry();
+        assertSame(model, registry.getModel(describe(Vehicle.class)));
+        Map<String, Model> definitions = registry
+                .getDefinitions(Collections.singleton(model.getName()));
+        assertEquals(2, definitions.size());
+        assertSame(model, definitions.get(model.getName()));
+
+        // a changed description replaces the cached model
+        PropertyDescription changed = describe(Vehicle.class);
+        changed.fieldDescriptions.get("name").propertyDocumentation = "the name";
+        ModelImpl changedModel = newRegistry().getModel(changed);
+        assertNotSame(model, changedModel);
+        assertEquals("the name", changedModel.getProperties().get("name").getDescription());
+        assertSame(changedModel, newRegistry().getModel(changed));
+
+        // which is reloaded when the description changes back
+        assertNotSame(changedModel, newRegistry().getModel(describe(Vehicle.class)));
+    }
+
+    @Test
+    public void copyDefinitions() {
+        ModelRegistry registry = newRegistry();
+        ModelImpl model = registry.getModel(describe(Vehicle.class));
+        Map<String, Model> copies = registry.copyDefinitions(Collections.singleton(model.getName()));
+        assertEquals(2, copies.size());
+
+        // copies can be modified without affecting the cached models
+        ModelImpl copy = (ModelImpl) copies.get(model.getName());
+        assertNotSame(model, copy);
+        assertEquals(model.getName(), copy.getName());
+        assertEquals(model.getProperties().keySet(), copy.getProperties().keySet());
+        copy.getProperties().get("name").setDescription("changed");
+        copy.getProperties().remove("wheels");
+        assertNull(model.getProperties().get("name").getDescription());
+        assertNotNull(model.getProperties().get("wheels"));
+        assertSame(model, newRegistry().getModel(describe(Vehicle.class)));
+    }
+
+    private static ModelRegistry newRegistry() {
+        ModelRegistry res = new ModelRegistry();
+        res.setStripPackagePrefixes(Collections.singleton("com:vmware:xenon:swagger:"));
+        return res;
+    }
+
+    private static PropertyDescription describe(Class<?> type) {
+        PropertyDescription pd = Builder.create().buildPodoPropertyDescription(type);
+        pd.kind = Utils.buildKind(type);
+        return pd;
+    }
+}
@@ -15,16 +15,27 @@ package com.vmware.xenon.swagger;
 
 import static org.hamcrest.CoreMatchers.containsString;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 import com.google.common.collect.Ordering;
 import io.swagger.models.Info;
@@ -165,6 +176,211 @@ public class TestSwaggerDescriptorService {
         assertDescriptorYaml(result);
     }
 
+    @Test
+    public void getCachedDescription() throws Throwable {
+        TestRequestSender sender = host.getTestRequestSender();
+        URI uri = UriUtils.buildUri(host, SwaggerDescriptorService.SELF_LINK);
+
+        Operation result = sender.sendAndWait(Operation.createGet(uri));
+        String etag = result.getResponseHeader(SwaggerAssembler.ETAG_HEADER);
+        assertNotNull(etag);
+
+        // unchanged descriptor
+        result = sender.sendAndWait(Operation.createGet(uri)
+                .addRequestHeader(SwaggerAssembler.IF_NONE_MATCH_HEADER, etag));
+        assertEquals(Operation.STATUS_CODE_NOT_MODIFIED, result.getStatusCode());
+        assertEquals(etag, result.getResponseHeader(SwaggerAssembler.ETAG_HEADER));
+
+        // the YAML descriptor has its own ETag
+        result = sender.sendAndWait(Operation.createGet(uri)
+                .addRequestHeader(Operation.ACCEPT_HEADER, "text/x-yaml")
+                .addRequestHeader(SwaggerAssembler.IF_NONE_MATCH_HEADER, etag));
+        assertEquals(Operation.STATUS_CODE_OK, result.getStatusCode());
+        assertDescriptorYaml(result);
+
+        // a started service is added to the descriptor
+        String link = "/extra-tokens";
+        host.startServiceAndWait(new TokenService(), link, null);
+        result = sender.sendAndWait(Operation.createGet(uri)
+                .addRequestHeader(SwaggerAssembler.IF_NONE_MATCH_HEADER, etag));
+        assertEquals(Operation.STATUS_CODE_OK, result.getStatusCode());
+        String addedEtag = result.getResponseHeader(SwaggerAssembler.ETAG_HEADER);
+        assertNotEquals(etag, addedEtag);
+        Swagger swagger = Json.mapper().readValue(result.getBody(String.class), Swagger.class);
+        assertNotNull(swagger.getPath(link));
+        assertSwagger(swagger);
+
+        // and a stopped one is removed
+        sender.sendAndWait(Operation.createDelete(UriUtils.buildUri(host, link)));
+        result = sender.sendAndWait(Operation.createGet(uri)
+                .addRequestHeader(SwaggerAssembler.IF_NONE_MATCH_HEADER, addedEtag));
+        assertEquals(Operation.STATUS_CODE_OK, result.getStatusCode());
+        assertEquals(etag, result.getResponseHeader(SwaggerAssembler.ETAG_HEADER));
+        swagger = Json.mapper().readValue(result.getBody(String.class), Swagger.class);
+        assertNull(swagger.getPath(link));
+        assertSwagger(swagger);
+    }
+
+    @Test
+    public void getEncodedDescription() throws Throwable {
+        URL url = UriUtils.buildUri(host, SwaggerDescriptorService.SELF_LINK).toURL();
+
+        for (String encoding : new String[] { "gzip", "deflate" }) {
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setRequestProperty(Operation.ACCEPT_HEADER,
+                    Operation.MEDIA_TYPE_APPLICATION_JSON);
+            connection.setRequestProperty(Operation.ACCEPT_ENCODING_HEADER,
+                    "br;q=0, " + encoding);
+            assertEquals(Operation.STATUS_CODE_OK, connection.getResponseCode());
+            assertEquals(encoding, connection.getHeaderField(Operation.CONTENT_ENCODING_HEADER));
+            assertThat(connection.getHeaderField(SwaggerAssembler.ETAG_HEADER),
+                    containsString(encoding));
+
+            String body;
+            try (InputStream in = encoding.equals("gzip")
+                    ? new GZIPInputStream(connection.getInputStream())
+                    : new InflaterInputStream(connection.getInputStream())) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                int count;
+                while ((count = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, count);
+                }
+                body = out.toString(StandardCharsets.UTF_8.name());
+            }
+
+            // clients explicitly accepting JSON get it without whitespace
+            assertFalse(body.contains("\n"));
+            assertSwagger(Json.mapper().readValue(body, Swagger.class));
+        }
+    }
+
+    @Test
+    public void getDescriptionWithTimedOutService() throws Throwable {
+        TestRequestSender sender = host.getTestRequestSender();
+
+        SwaggerDescriptorService swagger = new SwaggerDescriptorService();
+        swagger.setExcludedPrefixes("/core/", SwaggerDescriptorService.SELF_LINK);
+        swagger.setMaxTemplateRequestsInFlight(2);
+        swagger.setTemplateRequestTimeoutMicros(TimeUnit.MILLISECONDS.toMicros(500));
+        String swaggerLink = "/swagger-with-timeout";
+        host.startServiceAndWait(swagger, swaggerLink, null);
+
+        SlowTemplateService slowService = new SlowTemplateService();
+        host.startServiceAndWait(slowService, SlowTemplateService.SELF_LINK, null);
+
+        try {
+            // the other services are still documented
+            Operation result = sender.sendAndWait(
+                    Operation.createGet(UriUtils.buildUri(host, swaggerLink)));
+            Swagger description = Json.mapper()
+                    .readValue(result.getBody(String.class), Swagger.class);
+            assertNull(description.getPath(SlowTemplateService.SELF_LINK));
+            assertNotNull(description.getPath("/cars"));
+            assertNotNull(description.getPath(TokenService.SELF_LINK));
+            assertEquals(Collections.singletonList(SlowTemplateService.SELF_LINK),
+                    description.getVendorExtensions()
+                            .get(SwaggerAssembler.EXTENSION_TIMED_OUT_SERVICES));
+
+            // the stuck request is not sent again while outstanding
+            result = sender.sendAndWait(Operation.createGet(UriUtils.buildUri(host, swaggerLink)));
+            description = Json.mapper().readValue(result.getBody(String.class), Swagger.class);
+            assertNull(description.getPath(SlowTemplateService.SELF_LINK));
+            assertEquals(1, slowService.getHeldCount());
+
+            // and the timed out one is retried
+            slowService.release();
+            result = sender.sendAndWait(Operation.createGet(UriUtils.buildUri(host, swaggerLink)));
+            description = Json.mapper().readValue(result.getBody(String.class), Swagger.class);
+            assertNotNull(description.getPath(SlowTemplateService.SELF_LINK));
+            Map<String, Object> extensions = description.getVendorExtensions();
+            assertTrue(extensions == null
+                    || !extensions.containsKey(SwaggerAssembler.EXTENSION_TIMED_OUT_SERVICES));
+        } finally {
+            sender.sendAndWait(Operation.createDelete(
+                    UriUtils.buildUri(host, SlowTemplateService.SELF_LINK)));
+            sender.sendAndWait(Operation.createDelete(UriUtils.buildUri(host, swaggerLink)));
+        }
+    }
+
+    @Test
+    public void getStreamedDescription() throws Throwable {
+        TestRequestSender sender = host.getTestRequestSender();
+
+        String modelLink = "/swagger-model";
+        String streamingLink = "/swagger-streaming";
+        for (String link : new String[] { modelLink, streamingLink }) {
+            SwaggerDescriptorService swagger = new SwaggerDescriptorService();
+            swagger.setExcludedPrefixes("/core/", SwaggerDescriptorService.SELF_LINK, "/swagger-");
+            swagger.setStripPackagePrefixes("com:vmware:xenon:common:");
+            swagger.setMaxTemplateRequestsInFlight(2);
+            swagger.setStreaming(link.equals(streamingLink));
+            host.startServiceAndWait(swagger, link, null);
+        }
+
+        try {
+            // the streamed descriptor is the same as the one built from the model
+            Operation model = sender.sendAndWait(Operation.createGet(UriUtils.buildUri(host, modelLink))
+                    .addRequestHeader(Operation.ACCEPT_HEADER, Operation.MEDIA_TYPE_APPLICATION_JSON));
+            Operation streamed = sender.sendAndWait(Operation.createGet(UriUtils.buildUri(host, streamingLink))
+                    .addRequestHeader(Operation.ACCEPT_HEADER, Operation.MEDIA_TYPE_APPLICATION_JSON));
+            assertEquals(Json.mapper().readTree(model.getBody(String.class)),
+                    Json.mapper().readTree(streamed.getBody(String.class)));
+
+            // and is converted to the other formats
+            streamed = sender.sendAndWait(Operation.createGet(UriUtils.buildUri(host, streamingLink))
+                    .addRequestHeader(Operation.ACCEPT_HEADER, "text/x-yaml"));
+            Swagger description = Yaml.mapper()
+                    .readValue(streamed.getBody(String.class), Swagger.class);
+            assertNotNull(description.getPath("/cars"));
+            assertNotNull(description.getDefinitions().get("ServiceErrorResponse"));
+
+            // started and stopped services are reflected in the streamed descriptor
+            String link = "/streamed-tokens";
+            host.startServiceAndWait(new TokenService(), link, null);
+            assertStreamedDescription(modelLink, streamingLink, link, true);
+            sender.sendAndWait(Operation.createDelete(UriUtils.buildUri(host, link)));
+            assertStreamedDescription(modelLink, streamingLink, link, false);
+        } finally {
+            sender.sendAndWait(Operation.createDelete(UriUtils.buildUri(host, modelLink)));
+            sender.sendAndWait(Operation.createDelete(UriUtils.buildUri(host, streamingLink)));
+        }
+    }
+
+    private void assertStreamedDescription(String modelLink, String streamingLink, String link,
+            boolean isStarted) throws IOException {
+        TestRequestSender sender = host.getTestRequestSender();
+        Operation model = sender.sendAndWait(Operation.createGet(UriUtils.buildUri(host, modelLink))
+                .addRequestHeader(Operation.ACCEPT_HEADER, Operation.MEDIA_TYPE_APPLICATION_JSON));
+        Operation streamed = sender.sendAndWait(Operation.createGet(UriUtils.buildUri(host, streamingLink))
+                .addRequestHeader(Operation.ACCEPT_HEADER, Operation.MEDIA_TYPE_APPLICATION_JSON));
+        assertEquals(Json.mapper().readTree(model.getBody(String.class)),
+                Json.mapper().readTree(streamed.getBody(String.class)));
+        Swagger description = Json.mapper().readValue(streamed.getBody(String.class), Swagger.class);
+        assertEquals(isStarted, description.getPath(link) != null);
+    }
+
+    @Test
+    public void streamingWithPostprocessor() {
+        SwaggerDescriptorService swagger = new SwaggerDescriptorService();
+        swagger.setStreaming(true);
+        try {
+            swagger.setSwaggerPostprocessor(s -> { });
+            fail("postprocessor set in streaming mode");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        swagger = new SwaggerDescriptorService();
+        swagger.setSwaggerPostprocessor(s -> { });
+        try {
+            swagger.setStreaming(true);
+            fail("streaming mode enabled with a postprocessor");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
     private void assertDescriptorYaml(Operation o) {
         try {
             Swagger swagger = Yaml.mapper().readValue(o.getBody(String.class), Swagger.class);
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2014-2015 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.gateway;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vmware.xenon.common.Service.Action;
+import com.vmware.xenon.common.test.VerificationHost;
+
+/**
+ * Measures reads of the {@link GatewayCache} snapshot, as done once per
+ * request by the dispatch threads, with and without concurrent updates
+ * publishing new snapshots.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GatewayCacheBenchmark {
+
+    private static final int PATH_COUNT = 1000;
+    private static final int REQUEST_PATH_COUNT = 1024;
+
+    private VerificationHost host;
+    private GatewayCache cache;
+    private String[] requestPaths;
+    private long updateVersion;
+
+    /**
+     * Per-thread position in the request paths.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        int index;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        this.host = VerificationHost.create(0);
+        this.host.start();
+        // Keep the log of every published snapshot out of the measurements.
+        this.host.setLoggingLevel(java.util.logging.Level.WARNING);
+        this.cache = GatewayCache.create(this.host, this.host.getUri(),
+                GatewayUriPaths.DEFAULT_CONFIG_PATH);
+
+        List<Object> documents = new ArrayList<>();
+        GatewayConfigService.State config = new GatewayConfigService.State();
+        config.documentSelfLink = GatewayUriPaths.DEFAULT_CONFIG_PATH;
+        config.documentKind = GatewayConfigService.State.KIND;
+        config.documentUpdateAction = Action.POST.toString();
+        config.status = GatewayStatus.AVAILABLE;
+        documents.add(config);
+        for (GatewayPathService.State path : GatewayPathMatcherBenchmark
+                .createPaths(PATH_COUNT).values()) {
+            documents.add(createPathUpdate(path.path, Action.POST, 0));
+        }
+        this.cache.applyUpdates(documents);
+        this.requestPaths = GatewayPathMatcherBenchmark.createRequestPaths(
+                PATH_COUNT, REQUEST_PATH_COUNT);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.host.tearDown();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public GatewayPathService.State read(Cursor cursor) {
+        return readPath(cursor);
+    }
+
+    @Benchmark
+    @Group("readWhileUpdating")
+    @GroupThreads(3)
+    public GatewayPathService.State readers(Cursor cursor) {
+        return readPath(cursor);
+    }
+
+    @Benchmark
+    @Group("readWhileUpdating")
+    @GroupThreads(1)
+    public long writer() {
+        // Each update changes the version of a single path, and
+        // publishes a new snapshot with a rebuilt matcher.
+        List<Object> documents = new ArrayList<>();
+        documents.add(createPathUpdate(GatewayPathMatcherBenchmark.createPath(0),
+                Action.PUT, ++this.updateVersion));
+        this.cache.applyUpdates(documents);
+        return this.cache.getSnapshot().version;
+    }
+
+    private GatewayPathService.State readPath(Cursor cursor) {
+        GatewayCache.CachedState snapshot = this.cache.getSnapshot();
+        return snapshot.findPath(this.requestPaths[cursor.index++ & (REQUEST_PATH_COUNT - 1)]);
+    }
+
+    private static GatewayPathService.State createPathUpdate(String path, Action action,
+                                                             long version) {
+        GatewayPathService.State state = new GatewayPathService.State();
+        state.path = path;
+        state.documentKind = GatewayPathService.State.KIND;
+        state.documentUpdateAction = action.toString();
+        state.documentVersion = version;
+        return state;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2014-2015 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.gateway;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vmware.xenon.common.UriUtils;
+
+/**
+ * Compares the {@link GatewayPathMatcher} trie with the exact map lookup
+ * plus parent-path fallback it replaced, for growing numbers of
+ * registered paths. Request paths are a mix of exact matches, child
+ * paths and unknown paths.
+ *
+ * The map lookup only resolves paths up to one level below a registered
+ * path, so it does less work than the trie on deep child paths.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GatewayPathMatcherBenchmark {
+
+    // A power of two, so that request paths can be picked with a mask.
+    private static final int REQUEST_PATH_COUNT = 1024;
+
+    @Param({ "100", "10000", "50000" })
+    public int pathCount;
+
+    private Map<String, GatewayPathService.State> paths;
+    private GatewayPathMatcher matcher;
+    private String[] requestPaths;
+    private int index;
+
+    @Setup
+    public void setUp() {
+        this.paths = createPaths(this.pathCount);
+        this.matcher = GatewayPathMatcher.build(this.paths);
+        this.requestPaths = createRequestPaths(this.pathCount, REQUEST_PATH_COUNT);
+    }
+
+    @Benchmark
+    public GatewayPathService.State trieMatch() {
+        return this.matcher.match(nextRequestPath());
+    }
+
+    @Benchmark
+    public GatewayPathService.State mapLookup() {
+        String path = nextRequestPath();
+        GatewayPathService.State state = this.paths.get(path);
+        if (state == null) {
+            String parentPath = UriUtils.getParentPath(path);
+            state = parentPath != null ? this.paths.get(parentPath) : null;
+        }
+        return state;
+    }
+
+    private String nextRequestPath() {
+        return this.requestPaths[this.index++ & (REQUEST_PATH_COUNT - 1)];
+    }
+
+    /**
+     * Returns paths registered under a few shared prefixes, as
+     * factories of several services would be.
+     */
+    static Map<String, GatewayPathService.State> createPaths(int count) {
+        Map<String, GatewayPathService.State> paths = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            GatewayPathService.State state = new GatewayPathService.State();
+            state.path = createPath(i);
+            paths.put(state.path, state);
+        }
+        return paths;
+    }
+
+    /**
+     * Returns request paths for the passed number of registered paths.
+     * Uses a fixed seed, so that runs of different commits are comparable.
+     */
+    static String[] createRequestPaths(int pathCount, int count) {
+        Random random = new Random(42);
+        String[] requestPaths = new String[count];
+        for (int i = 0; i < count; i++) {
+            String path = createPath(random.nextInt(pathCount));
+            switch (i % 4) {
+            case 0:
+                requestPaths[i] = path;
+                break;
+            case 1:
+                requestPaths[i] = path + "/" + Integer.toHexString(random.nextInt());
+                break;
+            case 2:
+                requestPaths[i] = path + "/" + Integer.toHexString(random.nextInt()) + "/stats";
+                break;
+            default:
+                requestPaths[i] = "/unknown" + path;
+                break;
+            }
+        }
+        return requestPaths;
+    }
+
+    static String createPath(int i) {
+        return "/api/v" + (i % 4) + "/service-" + i;
+    }
+}
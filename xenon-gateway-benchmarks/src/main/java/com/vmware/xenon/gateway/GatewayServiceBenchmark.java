@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2014-2015 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.gateway;
+
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.ServiceDocument;
+import com.vmware.xenon.common.ServiceHost;
+import com.vmware.xenon.common.StatelessService;
+import com.vmware.xenon.common.UriUtils;
+import com.vmware.xenon.common.test.VerificationHost;
+import com.vmware.xenon.gateway.hosts.GatewayConfigHost;
+import com.vmware.xenon.gateway.hosts.GatewayDispatchHost;
+import com.vmware.xenon.gateway.hosts.GatewayHost;
+
+/**
+ * Measures the end-to-end throughput of {@link GatewayService#handleRequest}
+ * for GETs forwarded to a stub service on an in-process backend host.
+ *
+ * Requests are sent in-process to the dispatch host, so the inbound hop
+ * does not go through the network stack. The forwarded requests do, as
+ * they would in a deployment.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GatewayServiceBenchmark {
+
+    private static final String STUB_SERVICE_LINK = "/stub";
+
+    // Number of concurrent requests sent by each benchmark thread.
+    private static final int BATCH_SIZE = 64;
+
+    private static final long TIMEOUT_SECONDS = 30;
+
+    /**
+     * Forwards requests over pooled HTTP/2 connections when true.
+     */
+    @Param({ "false", "true" })
+    public boolean backendHttp2Enabled;
+
+    private VerificationHost backendHost;
+    private BenchmarkGatewayHost gatewayHost;
+    private GatewayDispatchHost dispatchHost;
+
+    /**
+     * Responds to GETs right away, with an empty document.
+     */
+    public static class StubService extends StatelessService {
+        @Override
+        public void handleGet(Operation get) {
+            get.setBody(new ServiceDocument());
+            get.complete();
+        }
+    }
+
+    /**
+     * Exposes the config host of the Gateway.
+     */
+    private static class BenchmarkGatewayHost extends GatewayHost {
+        GatewayConfigHost getConfigHost() {
+            return this.configHost;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        this.backendHost = VerificationHost.create(0);
+        this.backendHost.start();
+        this.backendHost.startServiceAndWait(new StubService(), STUB_SERVICE_LINK, null);
+
+        GatewayHost.Arguments args = new GatewayHost.Arguments();
+        args.port = 0;
+        args.dispatchPort = 0;
+        args.dispatchCacheSnapshot = false;
+        args.sandbox = Files.createTempDirectory(GatewayServiceBenchmark.class.getSimpleName());
+        this.gatewayHost = new BenchmarkGatewayHost();
+        CompletableFuture<Void> started = new CompletableFuture<>();
+        this.gatewayHost.start(args, t -> {
+            if (t != null) {
+                started.completeExceptionally(t);
+                return;
+            }
+            started.complete(null);
+        });
+        started.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        this.dispatchHost = this.gatewayHost.getDispatchHosts().get(0);
+
+        GatewayConfigService.State config = new GatewayConfigService.State();
+        config.documentSelfLink = GatewayUriPaths.DEFAULT_CONFIG_PATH;
+        config.status = GatewayStatus.AVAILABLE;
+        config.forwardingUri = this.backendHost.getUri();
+        config.backendHttp2Enabled = this.backendHttp2Enabled;
+        ServiceHost configHost = this.gatewayHost.getConfigHost();
+        send(Operation.createPost(configHost, GatewayConfigService.FACTORY_LINK).setBody(config));
+        GatewayPathService.State path = new GatewayPathService.State();
+        path.path = STUB_SERVICE_LINK;
+        send(Operation.createPost(configHost, GatewayPathFactoryService.SELF_LINK).setBody(path));
+
+        // Wait for the Dispatch host to receive the configuration.
+        long expiration = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (true) {
+            GatewayCache.CachedState state = send(Operation.createGet(this.dispatchHost.getUri()))
+                    .getBody(GatewayCache.CachedState.class);
+            if (state.configState.status == GatewayStatus.AVAILABLE
+                    && state.paths.containsKey(STUB_SERVICE_LINK)) {
+                break;
+            }
+            if (System.nanoTime() > expiration) {
+                throw new IllegalStateException("Timed out waiting for the Gateway configuration");
+            }
+            Thread.sleep(100);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.gatewayHost.stop();
+        this.backendHost.tearDown();
+    }
+
+    @Benchmark
+    @Threads(4)
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void forwardGet() throws Throwable {
+        CountDownLatch latch = new CountDownLatch(BATCH_SIZE);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            Operation op = Operation
+                    .createGet(UriUtils.buildUri(this.dispatchHost, STUB_SERVICE_LINK))
+                    .setReferer(this.dispatchHost.getUri())
+                    .setCompletion((o, e) -> {
+                        if (e != null) {
+                            failure.set(e);
+                        }
+                        latch.countDown();
+                    });
+            this.dispatchHost.sendRequest(op);
+        }
+        if (!latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Timed out waiting for responses");
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    private Operation send(Operation op) throws Throwable {
+        CompletableFuture<Operation> response = new CompletableFuture<>();
+        op.setReferer(this.backendHost.getUri()).setCompletion((o, e) -> {
+            if (e != null) {
+                response.completeExceptionally(e);
+                return;
+            }
+            response.complete(o);
+        });
+        this.backendHost.sendRequest(op);
+        return response.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2014-2015 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.gateway;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the rewrite of request URIs to the selected backend,
+ * done by the {@link GatewayService} for every forwarded request.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GatewayUriBenchmark {
+
+    private final URI backendUri = URI.create("http://10.0.0.12:8000");
+    private final URI requestUri = URI.create(
+            "http://gateway.local:8080/core/examples/4f2a?expand&$limit=100");
+    private final URI requestUriWithoutQuery = URI.create(
+            "http://gateway.local:8080/core/examples/4f2a");
+
+    @Benchmark
+    public URI createNewUri() {
+        return GatewayService.createNewUri(this.backendUri, this.requestUri);
+    }
+
+    @Benchmark
+    public URI createNewUriWithoutQuery() {
+        return GatewayService.createNewUri(this.backendUri, this.requestUriWithoutQuery);
+    }
+}
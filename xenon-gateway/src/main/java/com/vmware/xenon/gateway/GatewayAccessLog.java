@@ -0,0 +1,377 @@
+/*
+ * Copyright (c) 2014-2015 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.gateway;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+
+import com.vmware.xenon.common.Service.Action;
+import com.vmware.xenon.common.Utils;
+
+/**
+ * Access log of the {@link GatewayService}.
+ *
+ * Requests are recorded as fixed-layout records in a pre-allocated ring
+ * buffer, and written to a file by a background thread, in batches.
+ * Recording never blocks and does not allocate: if the buffer is full,
+ * the record is dropped and counted instead. Optionally, only one in
+ * every N requests is recorded.
+ *
+ * The file is rotated once it reaches the configured size. Rotated files
+ * are suffixed with .1 (the most recent) up to the configured count.
+ *
+ * Records are written in the following format:
+ * Time - Action - Requested UriPath - StatusCode - ContentLength (in bytes) - Time taken (in milliseconds)
+ * Sample: 2016-01-01T00:00:00.000Z POST /core/examples 200 416B 11.00ms
+ */
+public class GatewayAccessLog {
+
+    public static final String PROPERTY_NAME_FILE = Utils.PROPERTY_NAME_PREFIX
+            + "gatewayService.accessLogFile";
+    public static final String PROPERTY_NAME_BUFFER_SIZE = Utils.PROPERTY_NAME_PREFIX
+            + "gatewayService.accessLogBufferSize";
+    public static final String PROPERTY_NAME_SAMPLE_RATE = Utils.PROPERTY_NAME_PREFIX
+            + "gatewayService.accessLogSampleRate";
+    public static final String PROPERTY_NAME_MAX_FILE_SIZE_BYTES = Utils.PROPERTY_NAME_PREFIX
+            + "gatewayService.accessLogMaxFileSizeBytes";
+    public static final String PROPERTY_NAME_MAX_FILE_COUNT = Utils.PROPERTY_NAME_PREFIX
+            + "gatewayService.accessLogMaxFileCount";
+
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+    public static final long DEFAULT_MAX_FILE_SIZE_BYTES = 64L * 1024 * 1024;
+    public static final int DEFAULT_MAX_FILE_COUNT = 5;
+
+    private static final Action[] ACTIONS = Action.values();
+    private static final int BATCH_SIZE = 256;
+    private static final long IDLE_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    // Fields of a record, as offsets in the record data array.
+    private static final int FIELD_TIME = 0;
+    private static final int FIELD_ACTION_AND_STATUS = 1;
+    private static final int FIELD_CONTENT_LENGTH = 2;
+    private static final int FIELD_LATENCY = 3;
+    private static final int FIELD_COUNT = 4;
+
+    private final Path file;
+    private final int sampleRate;
+    private final long maxFileSizeBytes;
+    private final int maxFileCount;
+
+    // The ring buffer. Producers claim a sequence number by advancing the
+    // tail, fill in the slot, then publish it by storing the sequence number
+    // in the sequences array. The writer advances the head once it has
+    // consumed a slot. The plain arrays are made visible by the volatile
+    // store and load of the slot's sequence number.
+    private final int mask;
+    private final long[] data;
+    private final String[] paths;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+
+    private final AtomicLong writtenCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+    private final StringBuilder line = new StringBuilder(256);
+    private FileChannel channel;
+    private long fileSizeBytes;
+
+    // Number of records in the buffer, counted as written or
+    // dropped once the buffer is flushed.
+    private int bufferedCount;
+
+    private volatile boolean isStopped;
+    private Thread writer;
+
+    /**
+     * Creates an access log with the settings from the system properties.
+     */
+    public static GatewayAccessLog create(Path defaultFile) {
+        String file = System.getProperty(PROPERTY_NAME_FILE);
+        return new GatewayAccessLog(file != null ? Paths.get(file) : defaultFile,
+                Integer.getInteger(PROPERTY_NAME_BUFFER_SIZE, DEFAULT_BUFFER_SIZE),
+                Integer.getInteger(PROPERTY_NAME_SAMPLE_RATE, 1),
+                Long.getLong(PROPERTY_NAME_MAX_FILE_SIZE_BYTES, DEFAULT_MAX_FILE_SIZE_BYTES),
+                Integer.getInteger(PROPERTY_NAME_MAX_FILE_COUNT, DEFAULT_MAX_FILE_COUNT));
+    }
+
+    /**
+     * @param file The file to write to. Appended to if it exists.
+     * @param bufferSize Number of records the ring buffer holds. Rounded
+     *                   up to a power of two.
+     * @param sampleRate Record one in every sampleRate requests.
+     * @param maxFileSizeBytes Size after which the file is rotated.
+     * @param maxFileCount Number of rotated files to keep.
+     */
+    public GatewayAccessLog(Path file, int bufferSize, int sampleRate,
+                            long maxFileSizeBytes, int maxFileCount) {
+        if (bufferSize <= 0 || sampleRate <= 0 || maxFileSizeBytes <= 0 || maxFileCount < 0) {
+            throw new IllegalArgumentException("Invalid access log settings");
+        }
+        this.file = file;
+        this.sampleRate = sampleRate;
+        this.maxFileSizeBytes = maxFileSizeBytes;
+        this.maxFileCount = maxFileCount;
+
+        int capacity = bufferSize > 1 ? Integer.highestOneBit(bufferSize - 1) << 1 : 1;
+        this.mask = capacity - 1;
+        this.data = new long[capacity * FIELD_COUNT];
+        this.paths = new String[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            this.sequences.set(i, -1);
+        }
+    }
+
+    /**
+     * Opens the file and starts the background writer.
+     */
+    public void start() throws IOException {
+        Path parent = this.file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        openFile();
+        this.writer = new Thread(this::runWriter, "gateway-access-log");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Stops the background writer, after writing the pending
+     * records, and closes the file.
+     */
+    public void stop() {
+        this.isStopped = true;
+        Thread writer = this.writer;
+        if (writer == null) {
+            return;
+        }
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public Path getFile() {
+        return this.file;
+    }
+
+    /**
+     * Returns the number of records written to the file.
+     */
+    public long getWrittenCount() {
+        return this.writtenCount.get();
+    }
+
+    /**
+     * Returns the number of records dropped because the buffer was
+     * full, or because they could not be written to the file.
+     */
+    public long getDroppedCount() {
+        return this.droppedCount.get();
+    }
+
+    /**
+     * Records a completed request. Never blocks.
+     */
+    public void log(Action action, String path, int statusCode, long contentLength,
+                    long startTimeMicros, long latencyMicros) {
+        if (this.isStopped || (this.sampleRate > 1
+                && ThreadLocalRandom.current().nextInt(this.sampleRate) != 0)) {
+            return;
+        }
+
+        long sequence;
+        do {
+            sequence = this.tail.get();
+            if (sequence - this.head.get() > this.mask) {
+                this.droppedCount.incrementAndGet();
+                return;
+            }
+        } while (!this.tail.compareAndSet(sequence, sequence + 1));
+
+        int slot = (int) sequence & this.mask;
+        int offset = slot * FIELD_COUNT;
+        this.data[offset + FIELD_TIME] = startTimeMicros;
+        this.data[offset + FIELD_ACTION_AND_STATUS] =
+                ((long) (action != null ? action.ordinal() : -1) << 32) | statusCode;
+        this.data[offset + FIELD_CONTENT_LENGTH] = contentLength;
+        this.data[offset + FIELD_LATENCY] = latencyMicros;
+        this.paths[slot] = path;
+        this.sequences.set(slot, sequence);
+    }
+
+    private void runWriter() {
+        try {
+            while (true) {
+                boolean isStopped = this.isStopped;
+                int count = drain();
+                if (count == 0) {
+                    if (isStopped) {
+                        break;
+                    }
+                    LockSupport.parkNanos(this, IDLE_WAIT_NANOS);
+                }
+            }
+        } finally {
+            closeFile();
+        }
+    }
+
+    // Writes up to BATCH_SIZE published records to the file, and
+    // returns the number of records consumed.
+    private int drain() {
+        long sequence = this.head.get();
+        int count = 0;
+        while (count < BATCH_SIZE) {
+            int slot = (int) sequence & this.mask;
+            if (this.sequences.get(slot) != sequence) {
+                break;
+            }
+            appendRecord(slot);
+            this.bufferedCount++;
+            this.paths[slot] = null;
+            sequence++;
+            count++;
+            this.head.lazySet(sequence);
+        }
+        if (count > 0) {
+            flush();
+        }
+        return count;
+    }
+
+    private void appendRecord(int slot) {
+        int offset = slot * FIELD_COUNT;
+        long startTimeMicros = this.data[offset + FIELD_TIME];
+        long actionAndStatus = this.data[offset + FIELD_ACTION_AND_STATUS];
+        int actionOrdinal = (int) (actionAndStatus >> 32);
+
+        StringBuilder sb = this.line;
+        sb.setLength(0);
+        sb.append(Instant.ofEpochMilli(TimeUnit.MICROSECONDS.toMillis(startTimeMicros)));
+        sb.append(' ').append(actionOrdinal >= 0 ? ACTIONS[actionOrdinal] : null);
+        sb.append(' ').append(this.paths[slot]);
+        sb.append(' ').append((int) actionAndStatus);
+        sb.append(' ').append(this.data[offset + FIELD_CONTENT_LENGTH]).append('B');
+        sb.append(' ').append(String.format("%.2f", this.data[offset + FIELD_LATENCY] / 1000.0))
+                .append("ms\n");
+
+        CharBuffer chars = CharBuffer.wrap(sb);
+        while (true) {
+            this.encoder.encode(chars, this.buffer, true);
+            if (!chars.hasRemaining()) {
+                break;
+            }
+            flush();
+        }
+        this.encoder.reset();
+    }
+
+    // Writes the buffer to the file. If the file could not be opened or
+    // written to, the buffered records are dropped, and opening the file
+    // is retried on the next flush.
+    private void flush() {
+        this.buffer.flip();
+        try {
+            if (this.channel == null) {
+                openFile();
+            }
+            if (this.fileSizeBytes + this.buffer.remaining() > this.maxFileSizeBytes
+                    && this.fileSizeBytes > 0) {
+                rotate();
+            }
+            while (this.buffer.hasRemaining()) {
+                this.fileSizeBytes += this.channel.write(this.buffer);
+            }
+            this.writtenCount.addAndGet(this.bufferedCount);
+        } catch (IOException e) {
+            Utils.log(getClass(), this.file.toString(), Level.WARNING,
+                    "Failed to write access log: %s", e.toString());
+            this.droppedCount.addAndGet(this.bufferedCount);
+        } finally {
+            this.bufferedCount = 0;
+            this.buffer.clear();
+        }
+    }
+
+    // Rotates the files, then reopens the file. If the files could not be
+    // rotated, writing to the file continues, and rotating is retried on
+    // the next flush.
+    private void rotate() throws IOException {
+        closeFile();
+        try {
+            if (this.maxFileCount == 0) {
+                Files.deleteIfExists(this.file);
+            } else {
+                Files.deleteIfExists(getRotatedFile(this.maxFileCount));
+                for (int i = this.maxFileCount - 1; i >= 1; i--) {
+                    Path rotated = getRotatedFile(i);
+                    if (Files.exists(rotated)) {
+                        Files.move(rotated, getRotatedFile(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+                Files.move(this.file, getRotatedFile(1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            Utils.log(getClass(), this.file.toString(), Level.WARNING,
+                    "Failed to rotate access log: %s", e.toString());
+        }
+        openFile();
+    }
+
+    Path getRotatedFile(int index) {
+        return this.file.resolveSibling(this.file.getFileName() + "." + index);
+    }
+
+    private void openFile() throws IOException {
+        this.channel = FileChannel.open(this.file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.fileSizeBytes = this.channel.size();
+    }
+
+    private void closeFile() {
+        if (this.channel == null) {
+            return;
+        }
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            Utils.log(getClass(), this.file.toString(), Level.WARNING,
+                    "Failed to close access log: %s", e.toString());
+        }
+        this.channel = null;
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.gateway;
+
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.Service.Action;
+import com.vmware.xenon.common.ServiceErrorResponse;
+
+/**
+ * Decides whether requests are forwarded, and to which backend. Shared by
+ * the {@link GatewayService} and the {@link GatewayStreamingProxy}, so that
+ * requests get the same path matching, filtering, rate limits, concurrency
+ * limit and circuit breakers whichever port they are received on.
+ *
+ * Requests are admitted in stages, between which callers apply their own
+ * handling, such as queueing while PAUSED or serving from the cache:
+ * {@link #checkRequest}, then {@link #checkRateLimit} once the request is
+ * known not to be queued, then {@link #acquireBackend}. Each stage returns
+ * null if the request may proceed, otherwise the error response to fail
+ * the request with.
+ *
+ * The permits taken by {@link #acquireBackend} are held by the
+ * {@link Admission} of the request, and must be given back through
+ * {@link Admission#onResponse} or {@link Admission#release}.
+ */
+public class GatewayAdmissionController {
+
+    // Maximum number of backends tried when the circuit
+    // of the selected backend is open.
+    static final int MAX_BACKEND_SELECTIONS = 3;
+
+    private static final long SECOND_IN_MICROS = TimeUnit.SECONDS.toMicros(1);
+
+    /**
+     * The admission state of a single request, or of a hedged copy of it.
+     * Not thread-safe: each stage, and the response, must happen-after
+     * the previous one.
+     */
+    public static final class Admission {
+        private final GatewayCache.CachedState snapshot;
+        private final Action action;
+        private final String rawPath;
+        private final String path;
+        private final GatewayPathService.State pathState;
+
+        private GatewayBackend backend;
+        private GatewayCircuitBreaker circuitBreaker;
+        private GatewayCircuitBreaker.Permit permit = GatewayCircuitBreaker.Permit.ALLOWED;
+        private GatewayConcurrencyLimiter concurrencyLimiter;
+
+        private Admission(GatewayCache.CachedState snapshot, Action action, String rawPath,
+                String path, GatewayPathService.State pathState) {
+            this.snapshot = snapshot;
+            this.action = action;
+            this.rawPath = rawPath;
+            this.path = path;
+            this.pathState = pathState;
+        }
+
+        public GatewayCache.CachedState getSnapshot() {
+            return this.snapshot;
+        }
+
+        /**
+         * Returns the decoded request path, or the raw
+         * request path if it is not canonical.
+         */
+        public String getPath() {
+            return this.path != null ? this.path : this.rawPath;
+        }
+
+        /**
+         * Returns the registered path matching the request, or null.
+         */
+        public GatewayPathService.State getPathState() {
+            return this.pathState;
+        }
+
+        /**
+         * Returns the backend selected by {@link #acquireBackend}.
+         */
+        public GatewayBackend getBackend() {
+            return this.backend;
+        }
+
+        public boolean isPaused() {
+            return this.snapshot.configState.status == GatewayStatus.PAUSED;
+        }
+
+        /**
+         * Gives back the permits of a forwarded request, and records
+         * its outcome. Does nothing if they were already given back.
+         *
+         * @param failed True if the request timed out or failed with a 5xx.
+         * @param latencyMicros Time spent waiting on the backend.
+         */
+        public void onResponse(boolean failed, long latencyMicros) {
+            if (this.circuitBreaker != null) {
+                this.circuitBreaker.onResponse(this.permit, failed, latencyMicros);
+                this.circuitBreaker = null;
+            }
+            if (this.concurrencyLimiter != null) {
+                this.concurrencyLimiter.onResponse(latencyMicros, failed);
+                this.concurrencyLimiter = null;
+            }
+        }
+
+        /**
+         * Gives back the permits of a request that was not forwarded, or
+         * whose response will never be known. Does nothing if they were
+         * already given back.
+         */
+        public void release() {
+            if (this.circuitBreaker != null) {
+                this.circuitBreaker.release(this.permit);
+                this.circuitBreaker = null;
+            }
+            if (this.concurrencyLimiter != null) {
+                this.concurrencyLimiter.release();
+                this.concurrencyLimiter = null;
+            }
+        }
+    }
+
+    private final AtomicLong circuitBreakerRejectedCount = new AtomicLong();
+    private final AtomicLong concurrencyLimitRejectedCount = new AtomicLong();
+
+    /**
+     * Starts the admission of a request, matching its path against the
+     * passed snapshot, which is used for all the stages of the request.
+     *
+     * @param rawPath The request path, still encoded.
+     */
+    public Admission newAdmission(GatewayCache.CachedState snapshot, Action action, String rawPath) {
+        String path = GatewayPathMatcher.toCanonicalPath(rawPath);
+        return new Admission(snapshot, action, rawPath, path,
+                path != null ? snapshot.findPath(path) : null);
+    }
+
+    /**
+     * Checks the request against the cached configuration. Does not
+     * check for the PAUSED status, which callers handle separately.
+     */
+    public ServiceErrorResponse checkRequest(Admission admission) {
+        // Paths with dot-segments or encoded slashes could reach
+        // another path on the backend than the one matched here.
+        if (admission.path == null) {
+            return GatewayService.createErrorResponse(Operation.STATUS_CODE_BAD_REQUEST,
+                    "Requested path %s is not canonical.", admission.rawPath);
+        }
+
+        // Fail the request if the gateway is marked as
+        // UN-AVAILABLE.
+        GatewayConfigService.State config = admission.snapshot.configState;
+        if (config.status == GatewayStatus.UNAVAILABLE) {
+            return GatewayService.createErrorResponse(Operation.STATUS_CODE_UNAVAILABLE,
+                    "Gateway is currently unavailable. Please retry later.");
+        }
+
+        if (config.filterRequests) {
+            if (admission.pathState == null) {
+                return GatewayService.createErrorResponse(Operation.STATUS_CODE_NOT_FOUND,
+                        "Requested path %s not found.", admission.path);
+            }
+
+            // Check if the requested Action is allowed on the requested path.
+            if (admission.action == null || !admission.pathState.actions.contains(admission.action)) {
+                return GatewayService.createErrorResponse(Operation.STATUS_CODE_BAD_METHOD,
+                        "Requested verb %s not allowed on path %s.", admission.action, admission.path);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Takes a permit from the global and per-path rate limiters. Called
+     * once the request is known not to be queued, so that each request is
+     * charged exactly once. Fails the request with http 429 otherwise.
+     */
+    public ServiceErrorResponse checkRateLimit(Admission admission) {
+        long retryAfterMicros = admission.snapshot.tryAcquirePermit(admission.pathState);
+        if (retryAfterMicros <= 0) {
+            return null;
+        }
+        GatewayService.RateLimitErrorResponse rsp = new GatewayService.RateLimitErrorResponse();
+        rsp.retryAfterSeconds = Math.max(1,
+                (retryAfterMicros + SECOND_IN_MICROS - 1) / SECOND_IN_MICROS);
+        rsp.message = String.format("Rate limit exceeded on path %s. Retry after %d seconds.",
+                admission.path, rsp.retryAfterSeconds);
+        rsp.statusCode = GatewayService.STATUS_CODE_TOO_MANY_REQUESTS;
+        rsp.details = EnumSet.of(ServiceErrorResponse.ErrorDetail.SHOULD_RETRY);
+        return rsp;
+    }
+
+    /**
+     * Takes a slot of the adaptive concurrency limit, and selects one of
+     * the configured backends, skipping backends whose circuit is open for
+     * the path. Nothing is held if the request is failed.
+     */
+    public ServiceErrorResponse acquireBackend(Admission admission) {
+        // Shed the request right away if the backends already have as
+        // many requests in flight as the adaptive concurrency limit allows.
+        GatewayConcurrencyLimiter concurrencyLimiter = admission.snapshot.concurrencyLimiter;
+        if (concurrencyLimiter != null && !concurrencyLimiter.tryAcquire()) {
+            this.concurrencyLimitRejectedCount.incrementAndGet();
+            return GatewayService.createErrorResponse(Operation.STATUS_CODE_UNAVAILABLE,
+                    "Gateway is overloaded. Please retry later.");
+        }
+
+        GatewayBackend backend = null;
+        GatewayCircuitBreaker circuitBreaker = null;
+        GatewayCircuitBreaker.Permit permit = GatewayCircuitBreaker.Permit.ALLOWED;
+        for (int i = 0; i < MAX_BACKEND_SELECTIONS; i++) {
+            backend = admission.snapshot.selectBackend();
+            circuitBreaker = backend != null ? backend.getCircuitBreaker(admission.pathState) : null;
+            permit = circuitBreaker != null
+                    ? circuitBreaker.tryAcquire() : GatewayCircuitBreaker.Permit.ALLOWED;
+            if (permit != GatewayCircuitBreaker.Permit.REJECTED) {
+                break;
+            }
+        }
+        if (backend == null || permit == GatewayCircuitBreaker.Permit.REJECTED) {
+            if (concurrencyLimiter != null) {
+                concurrencyLimiter.release();
+            }
+        }
+        if (backend == null) {
+            return GatewayService.createErrorResponse(Operation.STATUS_CODE_UNAVAILABLE,
+                    "Gateway is currently unavailable. Please retry later.");
+        }
+        if (permit == GatewayCircuitBreaker.Permit.REJECTED) {
+            this.circuitBreakerRejectedCount.incrementAndGet();
+            return GatewayService.createErrorResponse(Operation.STATUS_CODE_UNAVAILABLE,
+                    "Circuit breaker is open for path %s. Please retry later.",
+                    admission.pathState.path);
+        }
+        admission.backend = backend;
+        admission.circuitBreaker = circuitBreaker;
+        admission.permit = permit;
+        admission.concurrencyLimiter = concurrencyLimiter;
+        return null;
+    }
+
+    /**
+     * Admits a hedged copy of the passed admitted request, on a backend
+     * other than the one of the passed request. Returns null, holding
+     * nothing, if there is no such backend or the concurrency limit is
+     * reached. Backends whose circuit is not closed are skipped, so that
+     * hedges never take the probe of a half-open circuit.
+     */
+    public Admission acquireHedge(Admission primary) {
+        GatewayBackend backend = null;
+        GatewayCircuitBreaker circuitBreaker = null;
+        for (int i = 0; i < MAX_BACKEND_SELECTIONS && backend == null; i++) {
+            GatewayBackend candidate = primary.snapshot.selectBackend();
+            if (candidate == null || candidate == primary.backend) {
+                continue;
+            }
+            circuitBreaker = candidate.getCircuitBreaker(primary.pathState);
+            if (circuitBreaker == null
+                    || circuitBreaker.getState() == GatewayCircuitBreaker.State.CLOSED) {
+                backend = candidate;
+            }
+        }
+        GatewayConcurrencyLimiter concurrencyLimiter = primary.snapshot.concurrencyLimiter;
+        if (backend == null || (concurrencyLimiter != null && !concurrencyLimiter.tryAcquire())) {
+            return null;
+        }
+        Admission hedge = new Admission(primary.snapshot, primary.action, primary.rawPath,
+                primary.path, primary.pathState);
+        hedge.backend = backend;
+        hedge.circuitBreaker = circuitBreaker;
+        hedge.concurrencyLimiter = concurrencyLimiter;
+        return hedge;
+    }
+
+    /**
+     * Returns the number of requests failed because the circuit
+     * breaker of the requested path was open.
+     */
+    public long getCircuitBreakerRejectedCount() {
+        return this.circuitBreakerRejectedCount.get();
+    }
+
+    /**
+     * Returns the number of requests shed because the adaptive
+     * concurrency limit was reached.
+     */
+    public long getConcurrencyLimitRejectedCount() {
+        return this.concurrencyLimitRejectedCount.get();
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2014-2015 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.gateway;
+
+import java.net.URI;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.vmware.xenon.common.Utils;
+
+/**
+ * Runtime state of a backend node used by the {@link GatewayService}.
+ *
+ * Instances are owned by the {@link GatewayCache} and are reused across
+ * cache snapshots for as long as the backend stays configured, so that
+ * runtime state such as outstanding request counts and health is not lost
+ * when the configuration changes.
+ *
+ * Health is tracked by the {@link GatewayHealthChecker}. An unhealthy
+ * backend is ejected for a backoff window, during which the
+ * {@link GatewayLoadBalancer} skips it.
+ */
+public final class GatewayBackend {
+
+    private final URI uri;
+    private final String connectionTag;
+    private final AtomicInteger outstandingRequests = new AtomicInteger();
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicInteger ejectionCount = new AtomicInteger();
+    private final AtomicBoolean probeInProgress = new AtomicBoolean();
+    private volatile long ejectedUntilMicros;
+
+    // Exponentially weighted moving average of response latencies.
+    // Updates are not atomic; an occasional lost sample is acceptable.
+    private volatile long latencyAverageMicros = -1;
+
+    // Maximum number of pooled connections, or 0 for the default.
+    private volatile int connectionLimit;
+
+    // Circuit breakers of the paths that have one, keyed by path.
+    private final Map<String, GatewayCircuitBreaker> circuitBreakers = new ConcurrentHashMap<>();
+
+    GatewayBackend(URI uri) {
+        this.uri = uri;
+        this.connectionTag = "gateway-backend:" + uri;
+    }
+
+    /**
+     * Returns the URI of the backend node.
+     */
+    public URI getUri() {
+        return this.uri;
+    }
+
+    /**
+     * Returns the tag of the pooled connections to this backend,
+     * used by the {@link GatewayBackendConnectionManager}.
+     */
+    public String getConnectionTag() {
+        return this.connectionTag;
+    }
+
+    /**
+     * Returns the maximum number of pooled connections to this
+     * backend, or 0 if the default limit applies.
+     */
+    public int getConnectionLimit() {
+        return this.connectionLimit;
+    }
+
+    void setConnectionLimit(int connectionLimit) {
+        this.connectionLimit = connectionLimit;
+    }
+
+    /**
+     * Returns the number of requests currently forwarded
+     * to this backend and not yet completed.
+     */
+    public int getOutstandingRequests() {
+        return this.outstandingRequests.get();
+    }
+
+    /**
+     * Called when a request is forwarded to this backend.
+     */
+    public void onRequestStart() {
+        this.outstandingRequests.incrementAndGet();
+    }
+
+    /**
+     * Called when a request forwarded to this backend completes.
+     */
+    public void onRequestEnd() {
+        this.outstandingRequests.decrementAndGet();
+    }
+
+    /**
+     * Returns the circuit breaker of this backend for the passed
+     * registered path, or null if the path has no circuit breaker.
+     */
+    public GatewayCircuitBreaker getCircuitBreaker(GatewayPathService.State pathState) {
+        if (pathState == null || pathState.circuitBreaker == null) {
+            return null;
+        }
+        GatewayCircuitBreaker circuitBreaker = this.circuitBreakers.get(pathState.path);
+        if (circuitBreaker != null && circuitBreaker.hasSettings(pathState.circuitBreaker)) {
+            return circuitBreaker;
+        }
+        return this.circuitBreakers.compute(pathState.path,
+                (k, v) -> GatewayCircuitBreaker.update(v, pathState.circuitBreaker));
+    }
+
+    /**
+     * Returns the circuit breakers of this backend, keyed by path.
+     */
+    public Map<String, GatewayCircuitBreaker> getCircuitBreakers() {
+        return Collections.unmodifiableMap(this.circuitBreakers);
+    }
+
+    /**
+     * Forgets the circuit breakers of paths other than the passed ones.
+     */
+    void retainCircuitBreakers(Collection<String> paths) {
+        this.circuitBreakers.keySet().retainAll(paths);
+    }
+
+    /**
+     * Returns true if the backend is not currently ejected.
+     */
+    public boolean isAvailable() {
+        long until = this.ejectedUntilMicros;
+        return until == 0 || Utils.getSystemNowMicrosUtc() >= until;
+    }
+
+    /**
+     * Returns the time until which the backend is ejected, or 0
+     * if it has never been ejected.
+     */
+    public long getEjectedUntilMicros() {
+        return this.ejectedUntilMicros;
+    }
+
+    /**
+     * Returns the average response latency, or -1 if unknown.
+     */
+    public long getLatencyAverageMicros() {
+        return this.latencyAverageMicros;
+    }
+
+    int getEjectionCount() {
+        return this.ejectionCount.get();
+    }
+
+    void recordSuccess(long latencyMicros) {
+        if (this.consecutiveFailures.get() != 0) {
+            this.consecutiveFailures.set(0);
+        }
+        if (latencyMicros >= 0) {
+            long average = this.latencyAverageMicros;
+            this.latencyAverageMicros = average < 0
+                    ? latencyMicros : average + (latencyMicros - average) / 5;
+        }
+    }
+
+    /**
+     * Records a failure and returns the number of consecutive failures.
+     */
+    int recordFailure() {
+        return this.consecutiveFailures.incrementAndGet();
+    }
+
+    /**
+     * Ejects the backend. The ejection window doubles with every
+     * ejection, starting at baseMicros and capped at maxMicros.
+     */
+    void eject(long baseMicros, long maxMicros) {
+        int count = this.ejectionCount.getAndIncrement();
+        long duration = baseMicros << Math.min(count, 20);
+        if (duration <= 0 || duration > maxMicros) {
+            duration = maxMicros;
+        }
+        this.ejectedUntilMicros = Utils.getSystemNowMicrosUtc() + duration;
+        this.consecutiveFailures.set(0);
+        // Start from a fresh latency average once the backend is back.
+        this.latencyAverageMicros = -1;
+    }
+
+    /**
+     * Called when an active health probe succeeds. Gradually resets the
+     * ejection backoff of a backend that has stayed healthy.
+     */
+    void recordProbeSuccess() {
+        if (isAvailable()) {
+            this.ejectionCount.updateAndGet(c -> c > 0 ? c - 1 : 0);
+        }
+    }
+
+    boolean tryStartProbe() {
+        return this.probeInProgress.compareAndSet(false, true);
+    }
+
+    void endProbe() {
+        this.probeInProgress.set(false);
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2014-2015 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.gateway;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.ServiceClient;
+import com.vmware.xenon.common.ServiceClient.ConnectionPoolMetrics;
+import com.vmware.xenon.common.ServiceHost;
+import com.vmware.xenon.common.Utils;
+import com.vmware.xenon.common.http.netty.NettyHttpServiceClient;
+
+/**
+ * Sends the requests forwarded by the {@link GatewayService} to the
+ * backend nodes.
+ *
+ * By default, requests are sent through the client of the host, over
+ * HTTP/1.1 with one connection per in-flight request. When
+ * {@link GatewayConfigService.State#backendHttp2Enabled} is set, requests
+ * are sent through a dedicated client instead, over HTTP/2 connections that
+ * multiplex concurrent requests. Each backend gets its own connection pool,
+ * identified by {@link GatewayBackend#getConnectionTag()}, limited to
+ * {@link GatewayBackend#getConnectionLimit()} connections.
+ *
+ * The dedicated client is only created the first time it is needed.
+ */
+public class GatewayBackendConnectionManager {
+
+    public static final String PROPERTY_NAME_DEFAULT_CONNECTION_LIMIT = Utils.PROPERTY_NAME_PREFIX
+            + "gatewayService.backendConnectionLimit";
+
+    public static final int DEFAULT_CONNECTION_LIMIT = Integer.getInteger(
+            PROPERTY_NAME_DEFAULT_CONNECTION_LIMIT, 4);
+
+    private final ServiceHost host;
+
+    // Written while holding this. Once disabled, by stop() or a failure
+    // to start the client, requests are sent through the client of the host.
+    private volatile ServiceClient client;
+    private boolean isClientDisabled;
+
+    // Connection limits applied to the dedicated client, keyed by tag.
+    private final Map<String, Integer> connectionLimits = new ConcurrentHashMap<>();
+
+    public GatewayBackendConnectionManager(ServiceHost host) {
+        this.host = host;
+    }
+
+    /**
+     * Sends the passed request to the passed backend, over a pooled HTTP/2
+     * connection if isHttp2Enabled is set.
+     */
+    public void send(Operation op, GatewayBackend backend, boolean isHttp2Enabled) {
+        ServiceClient http2Client = isHttp2Enabled ? getClient() : null;
+        if (http2Client == null) {
+            this.host.sendRequest(op);
+            return;
+        }
+
+        String tag = backend.getConnectionTag();
+        int limit = backend.getConnectionLimit() > 0
+                ? backend.getConnectionLimit() : DEFAULT_CONNECTION_LIMIT;
+        Integer appliedLimit = this.connectionLimits.get(tag);
+        if (appliedLimit == null || appliedLimit != limit) {
+            http2Client.setConnectionLimitPerTag(tag, limit);
+            this.connectionLimits.put(tag, limit);
+        }
+
+        op.setConnectionSharing(true);
+        op.setConnectionTag(tag);
+        if (op.getReferer() == null) {
+            op.setReferer(this.host.getUri());
+        }
+        http2Client.send(op);
+    }
+
+    /**
+     * Returns the statistics of the HTTP/2 connection pool of the
+     * passed backend, or null if no request was sent over HTTP/2
+     * to the backend.
+     */
+    public ConnectionPoolMetrics getPoolMetrics(GatewayBackend backend) {
+        ServiceClient http2Client = this.client;
+        if (http2Client == null || !this.connectionLimits.containsKey(backend.getConnectionTag())) {
+            return null;
+        }
+        return http2Client.getConnectionPoolMetrics(backend.getConnectionTag());
+    }
+
+    /**
+     * Closes all pooled connections. Requests sent after
+     * this call use the client of the host.
+     */
+    public void stop() {
+        ServiceClient http2Client;
+        synchronized (this) {
+            this.isClientDisabled = true;
+            http2Client = this.client;
+            this.client = null;
+        }
+        if (http2Client != null) {
+            http2Client.stop();
+        }
+        this.connectionLimits.clear();
+    }
+
+    private ServiceClient getClient() {
+        ServiceClient http2Client = this.client;
+        return http2Client != null ? http2Client : startClient();
+    }
+
+    private synchronized ServiceClient startClient() {
+        if (this.client != null || this.isClientDisabled) {
+            return this.client;
+        }
+        try {
+            ServiceClient http2Client = NettyHttpServiceClient.create(
+                    GatewayBackendConnectionManager.class.getSimpleName(),
+                    null, this.host.getScheduledExecutor(), this.host);
+            if (this.host.getClient().getSSLContext() != null) {
+                http2Client.setSSLContext(this.host.getClient().getSSLContext());
+            }
+            http2Client.start();
+            this.client = http2Client;
+        } catch (Throwable e) {
+            // Fall back to the client of the host.
+            this.isClientDisabled = true;
+            this.host.log(Level.SEVERE,
+                    "Failed to start the backend HTTP/2 client: %s", e.toString());
+        }
+        return this.client;
+    }
+}
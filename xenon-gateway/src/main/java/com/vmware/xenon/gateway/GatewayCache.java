@@ -13,13 +13,32 @@
 
 package com.vmware.xenon.gateway;
 
+import java.io.IOException;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 import java.util.logging.Level;
 
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
 import com.vmware.xenon.common.Operation;
 import com.vmware.xenon.common.Service;
 import com.vmware.xenon.common.Service.Action;
@@ -41,23 +60,199 @@ public class GatewayCache {
 
     private static final EnumSet<Action> ALL_ACTIONS = EnumSet.allOf(Action.class);
 
+    private static final int MAX_LOGGED_PATH_UPDATES = 10;
+
+    /**
+     * An immutable, versioned snapshot of the gateway configuration.
+     *
+     * Instances are published by the {@link GatewayCache} through a single
+     * volatile reference and are never modified once published. Updates
+     * build a new instance (copy-on-write) and swap it in, which allows the
+     * dispatch path to read a consistent view without taking any locks.
+     * The paths of a published snapshot are unmodifiable. The config and
+     * path states are shared with the dispatch path, so callers outside of
+     * the gateway only get copies, see {@link GatewayCache#getGatewayState()}.
+     */
     public static final class CachedState {
         public GatewayConfigService.State configState;
         public Map<String, GatewayPathService.State> paths = new HashMap<>();
+
+        /**
+         * Monotonically increasing version of the snapshot. Incremented
+         * every time a new snapshot is published.
+         */
+        public long version;
+
+        /**
+         * Status of the circuit breakers, keyed by backend URI and then
+         * by path. Only set on the responses of GET requests on the
+         * {@link GatewayService}.
+         */
+        public Map<String, Map<String, GatewayCircuitBreaker.Status>> circuitBreakers;
+
+        /**
+         * True while the state is loaded from a snapshot that the config
+         * host has not confirmed yet. Only set on the responses of GET
+         * requests on the {@link GatewayService}.
+         */
+        public boolean isStale;
+
+        /**
+         * Compiled matcher over {@link #paths}. Not serialized, and
+         * null on snapshots deserialized from a GET response.
+         */
+        transient GatewayPathMatcher matcher;
+
+        /**
+         * Load balancer over the configured backends. Not serialized.
+         */
+        transient GatewayLoadBalancer loadBalancer = GatewayLoadBalancer.empty();
+
+        /**
+         * Rate limiters of the paths that have a rate limit, keyed by
+         * path, and the global rate limiter. Not serialized.
+         */
+        transient Map<String, GatewayRateLimiter> rateLimiters = new HashMap<>();
+        transient GatewayRateLimiter rateLimiter;
+
+        /**
+         * Limiter of the requests in flight to the backends, if
+         * turned-on. Not serialized.
+         */
+        transient GatewayConcurrencyLimiter concurrencyLimiter;
+
+        static boolean isResponseCachingEnabled(GatewayPathService.State state) {
+            return state.responseCacheTtlMicros != null && state.responseCacheTtlMicros > 0;
+        }
+
+        static boolean isRequestCoalescingEnabled(GatewayPathService.State state) {
+            return Boolean.TRUE.equals(state.coalesceRequests);
+        }
+
+        /**
+         * Takes a permit from the global rate limiter and from the rate
+         * limiter of the passed path, if any. Returns 0 if the request is
+         * allowed, otherwise the time in microseconds after which the
+         * request can be retried.
+         */
+        public long tryAcquirePermit(GatewayPathService.State pathState) {
+            if (this.rateLimiter != null) {
+                long waitMicros = this.rateLimiter.tryAcquire();
+                if (waitMicros > 0) {
+                    return waitMicros;
+                }
+            }
+            if (pathState == null || this.rateLimiters == null || this.rateLimiters.isEmpty()) {
+                return 0;
+            }
+            GatewayRateLimiter pathLimiter = this.rateLimiters.get(pathState.path);
+            return pathLimiter != null ? pathLimiter.tryAcquire() : 0;
+        }
+
+        /**
+         * Selects the backend the next request should be forwarded to.
+         * Returns null if no backends are configured.
+         */
+        public GatewayBackend selectBackend() {
+            return this.loadBalancer != null ? this.loadBalancer.select() : null;
+        }
+
+        /**
+         * Returns the configured backends.
+         */
+        public GatewayBackend[] getBackends() {
+            return this.loadBalancer != null ? this.loadBalancer.getBackends() : new GatewayBackend[0];
+        }
+
+        /**
+         * Returns a copy of this snapshot with the passed
+         * circuit breaker status. Snapshots are never modified.
+         */
+        CachedState withCircuitBreakers(
+                Map<String, Map<String, GatewayCircuitBreaker.Status>> circuitBreakers) {
+            CachedState copy = copy();
+            copy.circuitBreakers = circuitBreakers;
+            return copy;
+        }
+
+        // Returns a shallow copy of this snapshot.
+        private CachedState copy() {
+            CachedState copy = new CachedState();
+            copy.configState = this.configState;
+            copy.paths = this.paths;
+            copy.version = this.version;
+            copy.matcher = this.matcher;
+            copy.loadBalancer = this.loadBalancer;
+            copy.rateLimiters = this.rateLimiters;
+            copy.rateLimiter = this.rateLimiter;
+            copy.concurrencyLimiter = this.concurrencyLimiter;
+            copy.circuitBreakers = this.circuitBreakers;
+            copy.isStale = this.isStale;
+            return copy;
+        }
+
+        /**
+         * Returns the registered path state with the longest prefix
+         * matching the passed URI path, or null if none matches.
+         */
+        public GatewayPathService.State findPath(String path) {
+            if (this.matcher == null) {
+                // Snapshots deserialized from a GET response do not carry a matcher.
+                return this.paths.get(path);
+            }
+            return this.matcher.match(path);
+        }
+
+        /**
+         * Returns the allowed actions for the passed URI path.
+         */
+        public EnumSet<Action> getSupportedActions(String path) {
+            GatewayPathService.State state = findPath(path);
+            if (state == null) {
+                return null;
+            }
+            return state.actions;
+        }
     }
 
     private ServiceHost host;
     private URI configHostUri;
     private String configSelfLink;
 
-    private CachedState cachedState;
+    // Snapshots are only replaced, never mutated, once published.
+    // Writers serialize on updateLock so that concurrent notifications
+    // do not lose each other's changes.
+    private volatile CachedState cachedState;
+    private final Object updateLock = new Object();
+
+    private volatile Consumer<GatewayStatus> statusChangeHandler;
+
+    // States loaded from a local snapshot, that have not been confirmed
+    // by the config host yet. Any notification replaces them, regardless
+    // of document versions. Guarded by updateLock.
+    private final Set<Object> unverifiedStates = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    // Documents received through notifications and not yet applied.
+    // Notifications that arrive while an earlier batch is being applied,
+    // e.g. during a bulk path registration, are coalesced into one delta.
+    private final Queue<Object> pendingDocuments = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean isApplyScheduled = new AtomicBoolean();
+
+    // Set once the subscription to the config host is started.
+    private volatile boolean isSubscribed;
+
+    // Runtime backend state, reused across snapshots. Guarded by updateLock.
+    private final Map<URI, GatewayBackend> backends = new HashMap<>();
 
     private GatewayCache(ServiceHost host, URI configHostUri, String configSelfLink) {
         this.host = host;
         this.configHostUri = configHostUri;
         this.configSelfLink = configSelfLink;
-        this.cachedState = new CachedState();
-        this.cachedState.configState = createSeedConfig();
+        CachedState seed = new CachedState();
+        seed.configState = createSeedConfig();
+        seed.paths = Collections.emptyMap();
+        seed.matcher = GatewayPathMatcher.empty();
+        this.cachedState = seed;
     }
 
     /**
@@ -68,46 +263,68 @@ public class GatewayCache {
     }
 
     /**
-     * Returns the cached State instance.
+     * Sets a handler that gets called with the new status, every time
+     * the cached Gateway status changes. The handler is called on the
+     * notification thread and must not block.
+     */
+    public void setStatusChangeHandler(Consumer<GatewayStatus> handler) {
+        this.statusChangeHandler = handler;
+    }
+
+    /**
+     * Returns the current immutable snapshot of the cached state.
+     * Callers on the dispatch path should read the snapshot once per
+     * request and use it for all subsequent checks. The returned
+     * object MUST NOT be modified.
+     */
+    public CachedState getSnapshot() {
+        return this.cachedState;
+    }
+
+    /**
+     * Returns a copy of the cached State. The config and path states
+     * are cloned, so that callers can not modify the states read by
+     * the dispatch path.
      */
     public CachedState getGatewayState() {
-        synchronized (this.cachedState) {
-            // To cached state object could be getting
-            // updated concurrently. To avoid unexpected
-            // races, the cloned object is returned here.
-            return Utils.clone(this.cachedState);
+        CachedState current = this.cachedState;
+        CachedState copy = current.copy();
+        copy.configState = Utils.clone(current.configState);
+        copy.paths = new HashMap<>();
+        for (GatewayPathService.State state : current.paths.values()) {
+            copy.paths.put(state.path, Utils.clone(state));
         }
+        return copy;
+    }
+
+    /**
+     * Returns true while the cache serves state loaded from a snapshot
+     * that the config host has not confirmed yet, i.e. until the cache
+     * is started and the snapshot is reconciled.
+     */
+    public boolean isStale() {
+        return hasUnverifiedStates();
     }
 
     /**
      * Returns the allowed actions for the passed URI path.
      */
     public EnumSet<Action> getSupportedActions(String path) {
-        synchronized (this.cachedState) {
-            GatewayPathService.State state = this.cachedState.paths.get(path);
-            if (state == null) {
-                return null;
-            }
-            return state.actions;
-        }
+        return this.cachedState.getSupportedActions(path);
     }
 
     /**
      * Returns the Gateway status.
      */
     public GatewayStatus getGatewayStatus() {
-        synchronized (this.cachedState) {
-            return this.cachedState.configState.status;
-        }
+        return this.cachedState.configState.status;
     }
 
     /**
      * Returns the forwarding URI.
      */
     public URI getForwardingUri() {
-        synchronized (this.cachedState) {
-            return this.cachedState.configState.forwardingUri;
-        }
+        return this.cachedState.configState.forwardingUri;
     }
 
     /**
@@ -116,9 +333,7 @@ public class GatewayCache {
      * returns false.
      */
     public boolean filterRequests() {
-        synchronized (this.cachedState) {
-            return this.cachedState.configState.filterRequests;
-        }
+        return this.cachedState.configState.filterRequests;
     }
 
     /**
@@ -131,8 +346,16 @@ public class GatewayCache {
      * node as it starts, creates a continuous query on the local index. As
      * the configuration state gets propagated through replication or synchronization
      * the local cache gets updated as well.
+     *
+     * If a snapshot was loaded, the completion callback is called once the
+     * snapshot is reconciled. On failure, start can be called again, and
+     * resumes from the step that failed.
      */
     public void start(Consumer<Throwable> completionCallback) {
+        if (this.isSubscribed) {
+            reconcile(completionCallback);
+            return;
+        }
         try {
             QueryTask continuousQueryTask = createGatewayQueryTask();
             URI queryTaskUri = UriUtils.buildUri(
@@ -182,7 +405,8 @@ public class GatewayCache {
                         }
                         this.host.log(Level.INFO,
                                 "Subscription started successfully");
-                        completionCallback.accept(null);
+                        this.isSubscribed = true;
+                        reconcile(completionCallback);
                     });
             this.host.startSubscriptionService(subscribe, handleConfigUpdates(), sr);
         } catch (Exception e) {
@@ -191,6 +415,87 @@ public class GatewayCache {
         }
     }
 
+    /**
+     * Writes the current state of the cache to the passed file, so that
+     * it can be loaded by {@link #loadSnapshot} after a restart.
+     * Returns the version of the state written.
+     */
+    public long saveSnapshot(Path file) throws IOException {
+        CachedState current = this.cachedState;
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(tempFile, Utils.toJson(current).getBytes(StandardCharsets.UTF_8));
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        return current.version;
+    }
+
+    /**
+     * Loads the state saved by {@link #saveSnapshot}, if the passed file
+     * exists and nothing has been received from the config host yet.
+     * The loaded state is served until the config host confirms or
+     * replaces it, once the cache is started. Returns true if loaded.
+     */
+    public boolean loadSnapshot(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return false;
+        }
+        CachedState saved = Utils.fromJson(
+                new String(Files.readAllBytes(file), StandardCharsets.UTF_8), CachedState.class);
+        if (saved == null || saved.configState == null || saved.paths == null) {
+            return false;
+        }
+        synchronized (this.updateLock) {
+            CachedState current = this.cachedState;
+            if (current.version != 0) {
+                return false;
+            }
+            this.unverifiedStates.add(saved.configState);
+            this.unverifiedStates.addAll(saved.paths.values());
+            publish(current, saved.configState, saved.paths);
+        }
+        this.host.log(Level.INFO, "Loaded cache snapshot with %d paths. Gateway status is %s",
+                saved.paths.size(), saved.configState.status);
+        return true;
+    }
+
+    private boolean hasUnverifiedStates() {
+        synchronized (this.updateLock) {
+            return !this.unverifiedStates.isEmpty();
+        }
+    }
+
+    // Queries the complete configuration from the config host, to
+    // remove states loaded from the snapshot that no longer exist.
+    private void reconcile(Consumer<Throwable> completionCallback) {
+        if (!hasUnverifiedStates()) {
+            completionCallback.accept(null);
+            return;
+        }
+        QueryTask queryTask = createGatewayQueryTask();
+        queryTask.querySpec.options.remove(QuerySpecification.QueryOption.CONTINUOUS);
+        queryTask.taskInfo.isDirect = true;
+        Operation.createPost(UriUtils.buildUri(this.configHostUri, ServiceUriPaths.CORE_LOCAL_QUERY_TASKS))
+                .setBody(queryTask)
+                .setReferer(this.host.getUri())
+                .setCompletion((o, e) -> {
+                    if (e != null) {
+                        this.host.log(Level.WARNING,
+                                "Failed to reconcile the cache snapshot. Failure: %s", e.toString());
+                        completionCallback.accept(e);
+                        return;
+                    }
+                    QueryTask rsp = o.getBody(QueryTask.class);
+                    Collection<Object> documents = rsp.results != null && rsp.results.documents != null
+                            ? rsp.results.documents.values() : Collections.emptyList();
+                    applyUpdates(documents, true);
+                    completionCallback.accept(null);
+                }).sendWith(this.host);
+    }
+
     private QueryTask createGatewayQueryTask() {
         QueryTask.Query query = QueryTask.Query.Builder.create()
                 .addKindFieldClause(GatewayConfigService.State.class, QueryTask.Query.Occurance.SHOULD_OCCUR)
@@ -220,87 +525,311 @@ public class GatewayCache {
                 throw new IllegalStateException(ex);
             }
             if (queryTask.results != null && queryTask.results.documents.size() > 0) {
-                for (Map.Entry<String, Object> entry : queryTask.results.documents.entrySet()) {
-                    String documentKind = Utils
-                            .fromJson(entry.getValue(), ServiceDocument.class)
-                            .documentKind;
-
-                    if (documentKind.equals(GatewayConfigService.State.KIND)) {
-                        GatewayConfigService.State obj = Utils.fromJson(entry.getValue(),
-                                GatewayConfigService.State.class);
-                        handleConfigUpdate(obj);
-                    } else if (documentKind.equals(GatewayPathService.State.KIND)) {
-                        GatewayPathService.State obj = Utils.fromJson(entry.getValue(),
-                                GatewayPathService.State.class);
-                        handlePathUpdate(obj);
-                    } else {
-                        this.host.log(Level.WARNING, "Unknown documentKind: %s", documentKind);
-                    }
+                this.pendingDocuments.addAll(queryTask.results.documents.values());
+                if (this.isApplyScheduled.compareAndSet(false, true)) {
+                    this.host.run(this::applyPendingUpdates);
                 }
             }
         };
     }
 
-    private void handleConfigUpdate(GatewayConfigService.State config) {
-        if (!config.documentSelfLink.equals(this.configSelfLink)) {
-            return;
+    private void applyPendingUpdates() {
+        do {
+            List<Object> documents = new ArrayList<>();
+            Object document;
+            while ((document = this.pendingDocuments.poll()) != null) {
+                documents.add(document);
+            }
+            if (!documents.isEmpty()) {
+                applyUpdates(documents);
+            }
+            this.isApplyScheduled.set(false);
+        } while (!this.pendingDocuments.isEmpty()
+                && this.isApplyScheduled.compareAndSet(false, true));
+    }
+
+    /**
+     * Decodes the passed documents and applies them to the cache
+     * as a single delta, publishing at most one new snapshot.
+     */
+    void applyUpdates(Collection<Object> documents) {
+        applyUpdates(documents, false);
+    }
+
+    /**
+     * Applies the passed documents. If isReconcile is set, the documents
+     * are the complete configuration on the config host: states loaded from
+     * the local snapshot that are not part of it are removed.
+     */
+    private void applyUpdates(Collection<Object> documents, boolean isReconcile) {
+        List<GatewayConfigService.State> configs = new ArrayList<>(1);
+        List<GatewayPathService.State> paths = new ArrayList<>(documents.size());
+        for (Object document : documents) {
+            // Read the documentKind directly from the parsed JSON tree, so
+            // that each document is only deserialized once, into its own type.
+            String documentKind = getDocumentKind(document);
+            if (GatewayConfigService.State.KIND.equals(documentKind)) {
+                configs.add(Utils.fromJson(document, GatewayConfigService.State.class));
+            } else if (GatewayPathService.State.KIND.equals(documentKind)) {
+                paths.add(Utils.fromJson(document, GatewayPathService.State.class));
+            } else {
+                this.host.log(Level.WARNING, "Unknown documentKind: %s", documentKind);
+            }
         }
-        if (config.documentUpdateAction.equals(Service.Action.DELETE.toString())) {
-            synchronized (this.cachedState) {
-                if (this.cachedState.configState.documentVersion >= config.documentVersion) {
-                    // This is an out-dated notification, ignore it.
-                    return;
+
+        GatewayConfigService.State updatedConfig;
+        GatewayStatus previousStatus;
+        GatewayStatus newStatus;
+        List<String> updatedPaths = new ArrayList<>();
+        List<String> removedPaths = new ArrayList<>();
+        synchronized (this.updateLock) {
+            CachedState current = this.cachedState;
+            // When reconciling, only states loaded from the snapshot are
+            // updated. All others were received through notifications,
+            // which are more recent than the query results.
+            GatewayConfigService.State configState = current.configState;
+            boolean isConfigUnverified = this.unverifiedStates.contains(configState);
+            for (GatewayConfigService.State config : configs) {
+                if (!isReconcile || isConfigUnverified) {
+                    configState = applyConfigUpdate(configState, config);
+                }
+            }
+            if (isReconcile && configState == current.configState && isConfigUnverified) {
+                // The config was deleted while the snapshot was stale.
+                configState = createSeedConfig();
+            }
+            Map<String, GatewayPathService.State> nextPaths = current.paths;
+            Set<String> reconciledPaths = isReconcile ? new HashSet<>() : null;
+            for (GatewayPathService.State path : paths) {
+                GatewayPathService.State state = nextPaths.get(path.path);
+                boolean isDelete = path.documentUpdateAction.equals(Service.Action.DELETE.toString());
+                boolean isOutdated = state != null && !this.unverifiedStates.contains(state)
+                        && state.documentVersion >= path.documentVersion;
+                if (reconciledPaths != null) {
+                    reconciledPaths.add(path.path);
+                    if (!this.unverifiedStates.contains(state)) {
+                        continue;
+                    }
+                }
+                if (isDelete ? state == null || isOutdated : isOutdated) {
+                    // This is an out-dated notification or, for deletes, we never
+                    // knew about this path. Either way, ignore it.
+                    continue;
+                }
+                if (nextPaths == current.paths) {
+                    nextPaths = new HashMap<>(current.paths);
+                }
+                if (isDelete) {
+                    nextPaths.remove(path.path);
+                    removedPaths.add(path.path);
+                } else {
+                    nextPaths.put(path.path, createPathState(path));
+                    updatedPaths.add(path.path);
+                }
+            }
+            if (reconciledPaths != null) {
+                for (GatewayPathService.State state : current.paths.values()) {
+                    if (!reconciledPaths.contains(state.path) && this.unverifiedStates.contains(state)) {
+                        if (nextPaths == current.paths) {
+                            nextPaths = new HashMap<>(current.paths);
+                        }
+                        nextPaths.remove(state.path);
+                        removedPaths.add(state.path);
+                    }
                 }
-                this.cachedState.configState = createSeedConfig();
-                this.cachedState.configState.documentVersion = config.documentVersion;
+                this.unverifiedStates.clear();
             }
+            if (configState == current.configState && nextPaths == current.paths) {
+                return;
+            }
+            publish(current, configState, nextPaths);
+            previousStatus = current.configState.status;
+            newStatus = configState.status;
+            updatedConfig = configState != current.configState ? configState : null;
+        }
+        if (updatedConfig != null) {
+            logConfigUpdate(updatedConfig);
+        }
+        logPathUpdates(updatedPaths, removedPaths);
+
+        Consumer<GatewayStatus> handler = this.statusChangeHandler;
+        if (handler != null && previousStatus != newStatus) {
+            handler.accept(newStatus);
+        }
+    }
+
+    private static String getDocumentKind(Object document) {
+        if (document instanceof ServiceDocument) {
+            return ((ServiceDocument) document).documentKind;
+        }
+        JsonElement json = document instanceof JsonElement
+                ? (JsonElement) document : new JsonParser().parse(document.toString());
+        JsonElement documentKind = json.isJsonObject()
+                ? json.getAsJsonObject().get(ServiceDocument.FIELD_NAME_KIND) : null;
+        return documentKind != null && documentKind.isJsonPrimitive() ? documentKind.getAsString() : null;
+    }
+
+    // Returns the config state resulting from the passed notification,
+    // or the current config state if the notification does not apply.
+    private GatewayConfigService.State applyConfigUpdate(GatewayConfigService.State current,
+                                                         GatewayConfigService.State config) {
+        if (!config.documentSelfLink.equals(this.configSelfLink)
+                || (current.documentVersion >= config.documentVersion
+                        && !this.unverifiedStates.contains(current))) {
+            // This is an out-dated notification, ignore it.
+            return current;
+        }
+        if (config.documentUpdateAction.equals(Service.Action.DELETE.toString())) {
+            GatewayConfigService.State configState = createSeedConfig();
+            configState.documentVersion = config.documentVersion;
+            configState.documentUpdateAction = config.documentUpdateAction;
+            return configState;
+        }
+        GatewayConfigService.State configState = new GatewayConfigService.State();
+        configState.status = config.status != null ? config.status : GatewayStatus.UNAVAILABLE;
+        configState.filterRequests = config.filterRequests != null ? config.filterRequests : true;
+        configState.forwardingUri = config.forwardingUri;
+        configState.backends = config.backends;
+        configState.loadBalancingStrategy = config.loadBalancingStrategy;
+        configState.pausedQueueCapacity = config.pausedQueueCapacity;
+        configState.pausedQueueMaxWaitMicros = config.pausedQueueMaxWaitMicros;
+        configState.pausedQueueDrainRatePerSecond = config.pausedQueueDrainRatePerSecond;
+        configState.rateLimitPerSecond = config.rateLimitPerSecond;
+        configState.rateLimitBurst = config.rateLimitBurst;
+        configState.backendHttp2Enabled = config.backendHttp2Enabled;
+        configState.backendConnectionLimit = config.backendConnectionLimit;
+        configState.adaptiveConcurrencyEnabled = config.adaptiveConcurrencyEnabled;
+        configState.maxConcurrency = config.maxConcurrency;
+        configState.documentVersion = config.documentVersion;
+        return configState;
+    }
+
+    private static GatewayPathService.State createPathState(GatewayPathService.State path) {
+        GatewayPathService.State state = new GatewayPathService.State();
+        state.path = path.path;
+        state.actions = (path.actions == null || path.actions.isEmpty())
+                ? ALL_ACTIONS : path.actions;
+        state.rateLimitPerSecond = path.rateLimitPerSecond;
+        state.rateLimitBurst = path.rateLimitBurst;
+        state.responseCacheTtlMicros = path.responseCacheTtlMicros;
+        state.coalesceRequests = path.coalesceRequests;
+        state.circuitBreaker = path.circuitBreaker;
+        state.idempotent = path.idempotent;
+        state.documentVersion = path.documentVersion;
+        return state;
+    }
+
+    private void logConfigUpdate(GatewayConfigService.State configState) {
+        if (Service.Action.DELETE.toString().equals(configState.documentUpdateAction)) {
             this.host.log(Level.SEVERE,
                     "Gateway config was deleted. Gateway status updated to %s",
                     GatewayStatus.UNAVAILABLE);
         } else {
-            synchronized (this.cachedState) {
-                if (this.cachedState.configState.documentVersion >= config.documentVersion) {
-                    // This is an out-dated notification, ignore it.
-                    return;
-                }
-                this.cachedState.configState.status = config.status != null ? config.status : GatewayStatus.UNAVAILABLE;
-                this.cachedState.configState.filterRequests = config.filterRequests != null ? config.filterRequests : true;
-                this.cachedState.configState.forwardingUri = config.forwardingUri;
-                this.cachedState.configState.documentVersion = config.documentVersion;
-            }
-            this.host.log(Level.INFO, "Gateway status updated to %s", config.status + "/" + config.forwardingUri);
+            this.host.log(Level.INFO, "Gateway status updated to %s",
+                    configState.status + "/" + configState.forwardingUri);
+        }
+    }
+
+    private void logPathUpdates(List<String> updatedPaths, List<String> removedPaths) {
+        // Bulk updates are summarized, instead of logging every path.
+        if (updatedPaths.size() + removedPaths.size() > MAX_LOGGED_PATH_UPDATES) {
+            this.host.log(Level.INFO, "%d paths added/updated, %d paths removed",
+                    updatedPaths.size(), removedPaths.size());
+            return;
+        }
+        CachedState current = this.cachedState;
+        for (String path : updatedPaths) {
+            GatewayPathService.State state = current.paths.get(path);
+            this.host.log(Level.INFO, "Path %s added/updated with allowed actions: %s",
+                    path, state != null ? state.actions : null);
+        }
+        for (String path : removedPaths) {
+            this.host.log(Level.INFO, "Path %s removed", path);
         }
     }
 
-    private void handlePathUpdate(GatewayPathService.State path) {
-        if (path.documentUpdateAction.equals(Service.Action.DELETE.toString())) {
-            synchronized (this.cachedState) {
-                GatewayPathService.State state = this.cachedState.paths.get(path.path);
-                if (state == null || state.documentVersion >= path.documentVersion) {
-                    // This is an out-dated notification or we never knew about this path.
-                    // Either way, ignore it.
-                    return;
+    /**
+     * Builds a new snapshot from the passed parts and publishes it.
+     * Must be called while holding the updateLock.
+     */
+    private void publish(CachedState current, GatewayConfigService.State configState,
+                         Map<String, GatewayPathService.State> paths) {
+        CachedState next = new CachedState();
+        next.configState = configState;
+        next.paths = paths == current.paths ? paths : Collections.unmodifiableMap(paths);
+        next.matcher = paths == current.paths ? current.matcher : GatewayPathMatcher.build(paths);
+        next.loadBalancer = configState == current.configState
+                ? current.loadBalancer : createLoadBalancer(configState);
+        next.rateLimiters = paths == current.paths
+                ? current.rateLimiters : createRateLimiters(current.rateLimiters, paths);
+        next.rateLimiter = GatewayRateLimiter.update(current.rateLimiter,
+                configState.rateLimitPerSecond, configState.rateLimitBurst);
+        next.concurrencyLimiter = GatewayConcurrencyLimiter.update(current.concurrencyLimiter,
+                configState.adaptiveConcurrencyEnabled, configState.maxConcurrency);
+        next.version = current.version + 1;
+        this.cachedState = next;
+    }
+
+    /**
+     * Builds a load balancer over the configured backends, falling back
+     * to the forwarding URI when no backends are configured. Must be called
+     * while holding the updateLock.
+     */
+    private GatewayLoadBalancer createLoadBalancer(GatewayConfigService.State configState) {
+        Map<URI, Integer> weights = new LinkedHashMap<>();
+        Map<URI, Integer> connectionLimits = new HashMap<>();
+        if (configState.backends != null) {
+            for (GatewayConfigService.Backend backend : configState.backends.values()) {
+                if (backend == null || backend.uri == null) {
+                    continue;
                 }
-                this.cachedState.paths.remove(path.path);
-            }
-            this.host.log(Level.INFO, "Path %s removed", path.path);
-        } else {
-            EnumSet<Action> actions = (path.actions == null || path.actions.isEmpty())
-                    ? ALL_ACTIONS : path.actions;
-            synchronized (this.cachedState) {
-                GatewayPathService.State state = this.cachedState.paths.get(path.path);
-                if (state != null && state.documentVersion >= path.documentVersion) {
-                    // This is an out-dated notification, ignore it.
-                    return;
+                int weight = backend.weight != null && backend.weight > 0 ? backend.weight : 1;
+                weights.merge(backend.uri, weight, Integer::sum);
+                if (backend.connectionLimit != null) {
+                    connectionLimits.put(backend.uri, backend.connectionLimit);
                 }
-                state = new GatewayPathService.State();
-                state.actions = actions;
-                state.documentVersion = path.documentVersion;
-                this.cachedState.paths.put(path.path, state);
             }
-            this.host.log(Level.INFO, "Path %s added/updated with allowed actions: %s",
-                    path.path, actions);
         }
+        int defaultConnectionLimit = configState.backendConnectionLimit != null
+                ? configState.backendConnectionLimit : 0;
+        if (weights.isEmpty() && configState.forwardingUri != null) {
+            weights.put(configState.forwardingUri, 1);
+        }
+
+        // Forget backends that are no longer configured.
+        this.backends.keySet().retainAll(weights.keySet());
+
+        GatewayBackend[] selected = new GatewayBackend[weights.size()];
+        int[] selectedWeights = new int[weights.size()];
+        int i = 0;
+        for (Map.Entry<URI, Integer> entry : weights.entrySet()) {
+            selected[i] = this.backends.computeIfAbsent(entry.getKey(), GatewayBackend::new);
+            selected[i].setConnectionLimit(
+                    connectionLimits.getOrDefault(entry.getKey(), defaultConnectionLimit));
+            selectedWeights[i] = entry.getValue();
+            i++;
+        }
+        return GatewayLoadBalancer.create(
+                configState.loadBalancingStrategy, selected, selectedWeights);
+    }
+
+    /**
+     * Builds the rate limiters of the passed paths. Rate limiters of
+     * paths whose limits did not change are reused, so that their
+     * state is kept.
+     */
+    private static Map<String, GatewayRateLimiter> createRateLimiters(
+            Map<String, GatewayRateLimiter> current, Map<String, GatewayPathService.State> paths) {
+        Map<String, GatewayRateLimiter> rateLimiters = new HashMap<>();
+        for (GatewayPathService.State state : paths.values()) {
+            GatewayRateLimiter rateLimiter = GatewayRateLimiter.update(
+                    current != null ? current.get(state.path) : null,
+                    state.rateLimitPerSecond, state.rateLimitBurst);
+            if (rateLimiter != null) {
+                rateLimiters.put(state.path, rateLimiter);
+            }
+        }
+        return rateLimiters;
     }
 
     private static GatewayConfigService.State createSeedConfig() {
@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2014-2015 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.gateway;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.vmware.xenon.common.Utils;
+
+/**
+ * A circuit breaker used by the {@link GatewayService} for a pair of
+ * backend and registered path, configured through
+ * {@link GatewayPathService.State#circuitBreaker}.
+ *
+ * While CLOSED, the breaker counts requests and failures over a rolling
+ * window, split into {@link #BUCKET_COUNT} buckets. Once the failure rate
+ * exceeds the configured threshold, the circuit opens and requests are
+ * rejected right away. After the open duration, a single probe request is
+ * let through (HALF_OPEN): the circuit closes again if the probe succeeds,
+ * and re-opens otherwise.
+ *
+ * Recording and checking do not lock. Counts of concurrent requests that
+ * roll over into a new bucket can be lost, which is fine for a failure rate.
+ */
+public final class GatewayCircuitBreaker {
+
+    public static final String PROPERTY_NAME_WINDOW_MICROS = Utils.PROPERTY_NAME_PREFIX
+            + "gatewayService.circuitBreakerWindowMicros";
+
+    public static final int DEFAULT_MIN_REQUEST_COUNT = 20;
+    public static final long DEFAULT_OPEN_DURATION_MICROS = TimeUnit.SECONDS.toMicros(30);
+
+    private static final int BUCKET_COUNT = 10;
+    private static final long BUCKET_MICROS = Math.max(1, Long.getLong(
+            PROPERTY_NAME_WINDOW_MICROS, TimeUnit.SECONDS.toMicros(10)) / BUCKET_COUNT);
+
+    // Every bucket holds its epoch, its request count and its failure count.
+    private static final int BUCKET_STRIDE = 3;
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * Result of {@link #tryAcquire()}.
+     */
+    public enum Permit {
+        REJECTED, ALLOWED, PROBE
+    }
+
+    /**
+     * Point-in-time view of a circuit breaker, returned
+     * by a GET on the {@link GatewayService}.
+     */
+    public static class Status {
+        public State state;
+        public long requestCount;
+        public long failureCount;
+        public long openUntilMicros;
+        public long tripCount;
+    }
+
+    private final GatewayPathService.CircuitBreaker settings;
+    private final int errorThresholdPercent;
+    private final int minRequestCount;
+    private final long slowRequestThresholdMicros;
+    private final long openDurationMicros;
+
+    private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT * BUCKET_STRIDE);
+    private final AtomicLong tripCount = new AtomicLong();
+    private volatile long openUntilMicros;
+
+    private GatewayCircuitBreaker(GatewayPathService.CircuitBreaker settings,
+                                  int errorThresholdPercent) {
+        this.settings = settings;
+        this.errorThresholdPercent = errorThresholdPercent;
+        this.minRequestCount = settings.minRequestCount != null
+                ? settings.minRequestCount : DEFAULT_MIN_REQUEST_COUNT;
+        this.slowRequestThresholdMicros = settings.slowRequestThresholdMicros != null
+                ? settings.slowRequestThresholdMicros : 0;
+        this.openDurationMicros = settings.openDurationMicros != null
+                ? settings.openDurationMicros : DEFAULT_OPEN_DURATION_MICROS;
+    }
+
+    /**
+     * Returns a circuit breaker for the passed settings, reusing the passed
+     * instance if its settings are unchanged so that its state is kept.
+     * Returns null if no circuit breaker is configured.
+     */
+    public static GatewayCircuitBreaker update(GatewayCircuitBreaker existing,
+                                               GatewayPathService.CircuitBreaker settings) {
+        Integer errorThresholdPercent = settings != null ? settings.errorThresholdPercent : null;
+        if (errorThresholdPercent == null) {
+            return null;
+        }
+        if (existing != null && existing.hasSettings(settings)) {
+            return existing;
+        }
+        return new GatewayCircuitBreaker(settings, errorThresholdPercent);
+    }
+
+    /**
+     * Returns true if this circuit breaker was created with the passed settings.
+     */
+    public boolean hasSettings(GatewayPathService.CircuitBreaker other) {
+        return this.settings == other
+                || (Objects.equals(this.settings.errorThresholdPercent, other.errorThresholdPercent)
+                && Objects.equals(this.settings.minRequestCount, other.minRequestCount)
+                && Objects.equals(this.settings.slowRequestThresholdMicros,
+                        other.slowRequestThresholdMicros)
+                && Objects.equals(this.settings.openDurationMicros, other.openDurationMicros));
+    }
+
+    public State getState() {
+        return this.state.get();
+    }
+
+    /**
+     * Checks whether a request can be forwarded. Returns
+     * {@link Permit#PROBE} for the single request let through once the
+     * open duration has elapsed. The result must be passed back to
+     * {@link #onResponse} when the request completes.
+     */
+    public Permit tryAcquire() {
+        State current = this.state.get();
+        if (current == State.CLOSED) {
+            return Permit.ALLOWED;
+        }
+        if (current == State.OPEN
+                && Utils.getSystemNowMicrosUtc() >= this.openUntilMicros
+                && this.state.compareAndSet(State.OPEN, State.HALF_OPEN)) {
+            return Permit.PROBE;
+        }
+        return Permit.REJECTED;
+    }
+
+    /**
+     * Hands back a permit that was not used to forward a request, for
+     * instance because the request joined an identical request in flight.
+     * A {@link Permit#PROBE} re-opens the circuit with its elapsed open
+     * duration, so that the next request is let through as the probe.
+     */
+    public void release(Permit permit) {
+        if (permit == Permit.PROBE) {
+            this.state.compareAndSet(State.HALF_OPEN, State.OPEN);
+        }
+    }
+
+    /**
+     * Called on completion of a request that was let through.
+     *
+     * @param permit The result of {@link #tryAcquire()} for the request.
+     * @param failed True if the request timed out or failed with a 5xx.
+     * @param latencyMicros Time spent waiting on the backend.
+     */
+    public void onResponse(Permit permit, boolean failed, long latencyMicros) {
+        if (this.slowRequestThresholdMicros > 0 && latencyMicros > this.slowRequestThresholdMicros) {
+            failed = true;
+        }
+        if (permit == Permit.PROBE) {
+            if (failed) {
+                this.openUntilMicros = Utils.fromNowMicrosUtc(this.openDurationMicros);
+                this.tripCount.incrementAndGet();
+                this.state.set(State.OPEN);
+            } else {
+                for (int i = 0; i < this.buckets.length(); i++) {
+                    this.buckets.set(i, 0);
+                }
+                this.state.set(State.CLOSED);
+            }
+            return;
+        }
+        if (this.state.get() != State.CLOSED) {
+            // A response to a request let through before the circuit opened.
+            return;
+        }
+
+        long now = Utils.getSystemNowMicrosUtc();
+        record(now, failed);
+        if (!failed) {
+            return;
+        }
+        long[] counts = getCounts(now);
+        if (counts[0] >= this.minRequestCount
+                && counts[1] * 100 >= counts[0] * this.errorThresholdPercent) {
+            // Set the open window first, so that tryAcquire()
+            // never sees an OPEN state with an old window.
+            long openUntil = now + this.openDurationMicros;
+            if (this.state.get() == State.CLOSED) {
+                this.openUntilMicros = openUntil;
+                if (this.state.compareAndSet(State.CLOSED, State.OPEN)) {
+                    this.tripCount.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the current state and counts of the circuit breaker.
+     */
+    public Status getStatus() {
+        Status status = new Status();
+        long[] counts = getCounts(Utils.getSystemNowMicrosUtc());
+        status.state = this.state.get();
+        status.requestCount = counts[0];
+        status.failureCount = counts[1];
+        status.openUntilMicros = status.state == State.CLOSED ? 0 : this.openUntilMicros;
+        status.tripCount = this.tripCount.get();
+        return status;
+    }
+
+    private void record(long now, boolean failed) {
+        long epoch = now / BUCKET_MICROS;
+        int index = (int) (epoch % BUCKET_COUNT) * BUCKET_STRIDE;
+        long bucketEpoch = this.buckets.get(index);
+        if (bucketEpoch != epoch && this.buckets.compareAndSet(index, bucketEpoch, epoch)) {
+            this.buckets.set(index + 1, 0);
+            this.buckets.set(index + 2, 0);
+        }
+        this.buckets.incrementAndGet(index + 1);
+        if (failed) {
+            this.buckets.incrementAndGet(index + 2);
+        }
+    }
+
+    // Returns the request and failure counts over the rolling window.
+    private long[] getCounts(long now) {
+        long epoch = now / BUCKET_MICROS;
+        long[] counts = new long[2];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            int index = i * BUCKET_STRIDE;
+            if (epoch - this.buckets.get(index) < BUCKET_COUNT) {
+                counts[0] += this.buckets.get(index + 1);
+                counts[1] += this.buckets.get(index + 2);
+            }
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2014-2015 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.gateway;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.vmware.xenon.common.Utils;
+
+/**
+ * An adaptive limit on the number of requests the {@link GatewayService}
+ * has in flight to the backends, turned-on through
+ * {@link GatewayConfigService.State#adaptiveConcurrencyEnabled}.
+ *
+ * The limit follows the gradient between the long-term and the recent
+ * backend round-trip times. While the recent RTT stays close to the
+ * long-term one, the backends are not queuing requests and the limit grows
+ * by the square root of itself per window. Once the recent RTT exceeds the
+ * long-term one by more than {@link #RTT_TOLERANCE}, the limit shrinks
+ * proportionally. Backend failures (timeouts and 5xx) shrink the limit
+ * multiplicatively, as in AIMD.
+ *
+ * Samples are accumulated without locking, and the limit is recomputed by
+ * a single thread at the end of each window of
+ * {@link #PROPERTY_NAME_WINDOW_MICROS}.
+ */
+public final class GatewayConcurrencyLimiter {
+
+    public static final String PROPERTY_NAME_INITIAL_LIMIT = Utils.PROPERTY_NAME_PREFIX
+            + "gatewayService.concurrencyLimitInitial";
+    public static final String PROPERTY_NAME_MIN_LIMIT = Utils.PROPERTY_NAME_PREFIX
+            + "gatewayService.concurrencyLimitMin";
+    public static final String PROPERTY_NAME_WINDOW_MICROS = Utils.PROPERTY_NAME_PREFIX
+            + "gatewayService.concurrencyLimitWindowMicros";
+
+    public static final int DEFAULT_MAX_LIMIT = 1000;
+
+    /**
+     * Ratio of the recent to the long-term RTT tolerated
+     * before the limit starts shrinking.
+     */
+    public static final double RTT_TOLERANCE = 1.5;
+
+    private static final int INITIAL_LIMIT = Integer.getInteger(PROPERTY_NAME_INITIAL_LIMIT, 20);
+    private static final int MIN_LIMIT = Math.max(1, Integer.getInteger(PROPERTY_NAME_MIN_LIMIT, 4));
+    private static final long WINDOW_MICROS = Long.getLong(
+            PROPERTY_NAME_WINDOW_MICROS, TimeUnit.MILLISECONDS.toMicros(100));
+
+    // Windows with fewer samples are merged into the next one.
+    private static final int MIN_WINDOW_SAMPLE_COUNT = 10;
+
+    // Weight of a window in the long-term RTT, and of a new limit.
+    private static final double LONG_RTT_SMOOTHING = 0.05;
+    private static final double LIMIT_SMOOTHING = 0.2;
+    private static final double BACKOFF_RATIO = 0.9;
+
+    private final int maxLimit;
+
+    private final AtomicInteger inFlightCount = new AtomicInteger();
+    private final AtomicLong rttSumMicros = new AtomicLong();
+    private final AtomicLong sampleCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+    private final AtomicLong windowEndMicros = new AtomicLong();
+
+    // Only written by the thread that closes a window, which
+    // can be a different thread for each window.
+    private volatile double limit;
+    private volatile double longRttMicros;
+
+    private GatewayConcurrencyLimiter(int maxLimit) {
+        this.maxLimit = maxLimit;
+        this.limit = Math.min(maxLimit, Math.max(MIN_LIMIT, INITIAL_LIMIT));
+        this.windowEndMicros.set(Utils.fromNowMicrosUtc(WINDOW_MICROS));
+    }
+
+    /**
+     * Returns a concurrency limiter for the passed settings, reusing the
+     * passed instance if its settings are unchanged so that its limit and
+     * in-flight count are kept. Returns null if adaptive concurrency
+     * limiting is turned-off.
+     *
+     * @param maxLimit Upper bound of the limit, also applied over the
+     *                 minimum limit. Optional, defaults to
+     *                 {@link #DEFAULT_MAX_LIMIT}.
+     */
+    public static GatewayConcurrencyLimiter update(GatewayConcurrencyLimiter existing,
+                                                   Boolean enabled, Integer maxLimit) {
+        if (!Boolean.TRUE.equals(enabled)) {
+            return null;
+        }
+        int effectiveMaxLimit = maxLimit != null && maxLimit > 0 ? maxLimit : DEFAULT_MAX_LIMIT;
+        if (existing != null && existing.maxLimit == effectiveMaxLimit) {
+            return existing;
+        }
+        return new GatewayConcurrencyLimiter(effectiveMaxLimit);
+    }
+
+    /**
+     * Takes an in-flight slot. Returns false if the limit is reached.
+     * Every slot taken must be given back through {@link #onResponse}
+     * or {@link #release()}.
+     */
+    public boolean tryAcquire() {
+        int current = this.inFlightCount.get();
+        while (current < (int) this.limit) {
+            if (this.inFlightCount.compareAndSet(current, current + 1)) {
+                return true;
+            }
+            current = this.inFlightCount.get();
+        }
+        return false;
+    }
+
+    /**
+     * Gives back a slot taken for a request that was not forwarded.
+     */
+    public void release() {
+        this.inFlightCount.decrementAndGet();
+    }
+
+    /**
+     * Gives back the slot of a forwarded request, and records its
+     * outcome.
+     *
+     * @param rttMicros Time spent waiting on the backend.
+     * @param failed True if the request timed out or failed with a 5xx.
+     */
+    public void onResponse(long rttMicros, boolean failed) {
+        this.inFlightCount.decrementAndGet();
+        if (failed) {
+            this.failureCount.incrementAndGet();
+        } else {
+            this.rttSumMicros.addAndGet(Math.max(1, rttMicros));
+            this.sampleCount.incrementAndGet();
+        }
+
+        long now = Utils.getSystemNowMicrosUtc();
+        long windowEnd = this.windowEndMicros.get();
+        if (now >= windowEnd
+                && this.sampleCount.get() + this.failureCount.get() >= MIN_WINDOW_SAMPLE_COUNT
+                && this.windowEndMicros.compareAndSet(windowEnd, now + WINDOW_MICROS)) {
+            updateLimit();
+        }
+    }
+
+    // Called by a single thread at a time, the one that closed the window.
+    private void updateLimit() {
+        long failures = this.failureCount.getAndSet(0);
+        long samples = this.sampleCount.getAndSet(0);
+        long rttSum = this.rttSumMicros.getAndSet(0);
+
+        double newLimit = this.limit;
+        if (failures > 0) {
+            newLimit = newLimit * BACKOFF_RATIO;
+        } else if (samples > 0) {
+            double rtt = (double) rttSum / samples;
+            double longRtt = this.longRttMicros;
+            if (longRtt == 0) {
+                longRtt = rtt;
+            } else {
+                longRtt += (rtt - longRtt) * LONG_RTT_SMOOTHING;
+            }
+            // Let the long-term RTT recover quickly once a load peak ends.
+            if (longRtt > 2 * rtt) {
+                longRtt = 2 * rtt;
+            }
+            this.longRttMicros = longRtt;
+            double gradient = Math.max(0.5, Math.min(1.0, RTT_TOLERANCE * longRtt / rtt));
+            // Only grow the limit if it was actually used.
+            double queueSize = this.inFlightCount.get() >= newLimit / 2 ? Math.sqrt(newLimit) : 0;
+            newLimit = newLimit * (1 - LIMIT_SMOOTHING)
+                    + (newLimit * gradient + queueSize) * LIMIT_SMOOTHING;
+        }
+        this.limit = Math.min(this.maxLimit, Math.max(MIN_LIMIT, newLimit));
+    }
+
+    /**
+     * Returns the current limit.
+     */
+    public int getLimit() {
+        return (int) this.limit;
+    }
+
+    /**
+     * Returns the number of requests in flight.
+     */
+    public int getInFlightCount() {
+        return this.inFlightCount.get();
+    }
+}
@@ -14,6 +14,7 @@
 package com.vmware.xenon.gateway;
 
 import java.net.URI;
+import java.util.Map;
 
 import com.vmware.xenon.common.FactoryService;
 import com.vmware.xenon.common.Operation;
@@ -33,6 +34,51 @@ public class GatewayConfigService extends StatefulService {
         return FactoryService.create(GatewayConfigService.class);
     }
 
+    /**
+     * Strategy used by the Gateway to select a backend
+     * for each forwarded request.
+     */
+    public enum LoadBalancingStrategy {
+        /**
+         * Backends are selected in turn, proportionally to their weight.
+         */
+        ROUND_ROBIN,
+
+        /**
+         * The backend with the fewest outstanding requests, relative to
+         * its weight, is selected.
+         */
+        LEAST_OUTSTANDING_REQUESTS,
+
+        /**
+         * Two backends are picked at random, proportionally to their weight,
+         * and the one with fewer outstanding requests is selected.
+         */
+        POWER_OF_TWO_CHOICES
+    }
+
+    /**
+     * A backend node that requests can be forwarded to.
+     */
+    public static class Backend {
+        /**
+         * URI reference of the backend node.
+         */
+        public URI uri;
+
+        /**
+         * Relative weight of the backend. Optional, defaults to 1.
+         */
+        public Integer weight;
+
+        /**
+         * Maximum number of pooled connections to the backend, when
+         * {@link State#backendHttp2Enabled} is set. Optional, defaults
+         * to {@link State#backendConnectionLimit}.
+         */
+        public Integer connectionLimit;
+    }
+
     public static class State extends ServiceDocument {
         public static final String KIND = Utils.buildKind(State.class);
 
@@ -49,6 +95,22 @@ public class GatewayConfigService extends StatefulService {
         @UsageOption(option = PropertyUsageOption.AUTO_MERGE_IF_NOT_NULL)
         public URI forwardingUri;
 
+        /**
+         * Backend nodes that requests get load-balanced across, keyed
+         * by a user-chosen name. Updates are merged by name; setting
+         * an entry to null removes that backend. When empty, all requests
+         * are forwarded to the {@link #forwardingUri}.
+         */
+        @UsageOption(option = PropertyUsageOption.AUTO_MERGE_IF_NOT_NULL)
+        public Map<String, Backend> backends;
+
+        /**
+         * Strategy used to select one of the {@link #backends}.
+         * Optional, defaults to {@link LoadBalancingStrategy#ROUND_ROBIN}.
+         */
+        @UsageOption(option = PropertyUsageOption.AUTO_MERGE_IF_NOT_NULL)
+        public LoadBalancingStrategy loadBalancingStrategy;
+
         /**
          * A flag used to turn on/off request filtering through URI paths.
          * When turned-off the Gateway service just forwards message to
@@ -56,6 +118,80 @@ public class GatewayConfigService extends StatefulService {
          */
         @UsageOption(option = PropertyUsageOption.AUTO_MERGE_IF_NOT_NULL)
         public Boolean filterRequests = true;
+
+        /**
+         * Maximum number of requests queued while the Gateway is
+         * {@link GatewayStatus#PAUSED}. Queued requests are forwarded,
+         * in arrival order, once the Gateway becomes AVAILABLE again.
+         * Optional. If not specified or 0, requests received while
+         * PAUSED are failed right away.
+         */
+        @UsageOption(option = PropertyUsageOption.AUTO_MERGE_IF_NOT_NULL)
+        public Integer pausedQueueCapacity;
+
+        /**
+         * Maximum time a request stays queued while the Gateway is
+         * PAUSED, before it gets failed. Optional, defaults to 30 seconds.
+         */
+        @UsageOption(option = PropertyUsageOption.AUTO_MERGE_IF_NOT_NULL)
+        public Long pausedQueueMaxWaitMicros;
+
+        /**
+         * Maximum number of queued requests forwarded per second once
+         * the Gateway resumes. Optional. If not specified or 0, the
+         * queue is drained without limit.
+         */
+        @UsageOption(option = PropertyUsageOption.AUTO_MERGE_IF_NOT_NULL)
+        public Integer pausedQueueDrainRatePerSecond;
+
+        /**
+         * Maximum sustained number of requests per second forwarded
+         * by the Gateway, across all paths and clients. Requests over
+         * the limit are failed with status 429. Optional. If not
+         * specified, only per-path rate limits apply.
+         */
+        @UsageOption(option = PropertyUsageOption.AUTO_MERGE_IF_NOT_NULL)
+        public Integer rateLimitPerSecond;
+
+        /**
+         * Maximum number of requests allowed in a burst by the
+         * Gateway. Optional, defaults to {@link #rateLimitPerSecond}.
+         */
+        @UsageOption(option = PropertyUsageOption.AUTO_MERGE_IF_NOT_NULL)
+        public Integer rateLimitBurst;
+
+        /**
+         * A flag used to forward requests to the backends over a
+         * dedicated pool of HTTP/2 connections, multiplexing concurrent
+         * requests instead of using one connection per request.
+         * Optional, defaults to false.
+         */
+        @UsageOption(option = PropertyUsageOption.AUTO_MERGE_IF_NOT_NULL)
+        public Boolean backendHttp2Enabled;
+
+        /**
+         * Maximum number of pooled HTTP/2 connections per backend.
+         * Optional, defaults to
+         * {@link GatewayBackendConnectionManager#DEFAULT_CONNECTION_LIMIT}.
+         */
+        @UsageOption(option = PropertyUsageOption.AUTO_MERGE_IF_NOT_NULL)
+        public Integer backendConnectionLimit;
+
+        /**
+         * A flag used to limit the number of requests in flight to the
+         * backends. The limit adapts to the backend round-trip times, see
+         * {@link GatewayConcurrencyLimiter}. Requests over the limit are
+         * failed with status 503. Optional, defaults to false.
+         */
+        @UsageOption(option = PropertyUsageOption.AUTO_MERGE_IF_NOT_NULL)
+        public Boolean adaptiveConcurrencyEnabled;
+
+        /**
+         * Upper bound of the adaptive concurrency limit. Optional,
+         * defaults to {@link GatewayConcurrencyLimiter#DEFAULT_MAX_LIMIT}.
+         */
+        @UsageOption(option = PropertyUsageOption.AUTO_MERGE_IF_NOT_NULL)
+        public Integer maxConcurrency;
     }
 
     public GatewayConfigService() {
@@ -87,6 +223,9 @@ public class GatewayConfigService extends StatefulService {
             start.fail(new IllegalArgumentException("status is required"));
             return null;
         }
+        if (!validateBackends(start, state) || !validateRateLimit(start, state)) {
+            return null;
+        }
 
         return state;
     }
@@ -123,7 +262,56 @@ public class GatewayConfigService extends StatefulService {
             update.fail(new IllegalStateException("body is required"));
             return null;
         }
-        return getBody(update);
+        State body = getBody(update);
+        if (!validateBackends(update, body) || !validateRateLimit(update, body)) {
+            return null;
+        }
+        return body;
+    }
+
+    private boolean validateBackends(Operation op, State state) {
+        if (state.backendConnectionLimit != null && state.backendConnectionLimit <= 0) {
+            op.fail(new IllegalArgumentException("backendConnectionLimit must be positive"));
+            return false;
+        }
+        if (state.backends == null) {
+            return true;
+        }
+        for (Map.Entry<String, Backend> entry : state.backends.entrySet()) {
+            Backend backend = entry.getValue();
+            if (backend == null) {
+                // null entries remove the backend on updates.
+                continue;
+            }
+            if (backend.uri == null) {
+                op.fail(new IllegalArgumentException(
+                        "uri is required for backend " + entry.getKey()));
+                return false;
+            }
+            if (backend.weight != null && backend.weight <= 0) {
+                op.fail(new IllegalArgumentException(
+                        "weight must be positive for backend " + entry.getKey()));
+                return false;
+            }
+            if (backend.connectionLimit != null && backend.connectionLimit <= 0) {
+                op.fail(new IllegalArgumentException(
+                        "connectionLimit must be positive for backend " + entry.getKey()));
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean validateRateLimit(Operation op, State state) {
+        if (!GatewayRateLimiter.isValid(state.rateLimitPerSecond, state.rateLimitBurst)) {
+            op.fail(new IllegalArgumentException("rate limits must be positive"));
+            return false;
+        }
+        if (state.maxConcurrency != null && state.maxConcurrency <= 0) {
+            op.fail(new IllegalArgumentException("maxConcurrency must be positive"));
+            return false;
+        }
+        return true;
     }
 
     private void updateState(State currentState, State updatedState) {
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2014-2015 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.gateway;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.ServiceHost;
+import com.vmware.xenon.common.UriUtils;
+import com.vmware.xenon.common.Utils;
+import com.vmware.xenon.services.common.ServiceUriPaths;
+
+/**
+ * Tracks the health of the {@link GatewayBackend}s used by the
+ * {@link GatewayService} and ejects unhealthy backends from selection.
+ *
+ * Health is learned in two ways:
+ * - Passively, from the responses of forwarded requests. A backend is
+ *   ejected after a number of consecutive 5xx responses or timeouts.
+ * - Actively, by periodically probing each backend with a GET on
+ *   {@link ServiceUriPaths#CORE_MANAGEMENT}, and by ejecting backends
+ *   whose average latency is an outlier compared to the other backends.
+ *
+ * Ejected backends are skipped by the {@link GatewayLoadBalancer} for a
+ * backoff window that grows exponentially with repeated ejections.
+ */
+public class GatewayHealthChecker {
+
+    public static final String PROPERTY_NAME_HEALTH_CHECK_INTERVAL_MICROS = Utils.PROPERTY_NAME_PREFIX
+            + "gatewayService.healthCheckIntervalMicros";
+    public static final String PROPERTY_NAME_HEALTH_CHECK_TIMEOUT_MICROS = Utils.PROPERTY_NAME_PREFIX
+            + "gatewayService.healthCheckTimeoutMicros";
+    public static final String PROPERTY_NAME_CONSECUTIVE_FAILURE_THRESHOLD = Utils.PROPERTY_NAME_PREFIX
+            + "gatewayService.consecutiveFailureThreshold";
+    public static final String PROPERTY_NAME_BASE_EJECTION_MICROS = Utils.PROPERTY_NAME_PREFIX
+            + "gatewayService.baseEjectionMicros";
+    public static final String PROPERTY_NAME_MAX_EJECTION_MICROS = Utils.PROPERTY_NAME_PREFIX
+            + "gatewayService.maxEjectionMicros";
+    public static final String PROPERTY_NAME_LATENCY_OUTLIER_FACTOR = Utils.PROPERTY_NAME_PREFIX
+            + "gatewayService.latencyOutlierFactor";
+    public static final String PROPERTY_NAME_LATENCY_OUTLIER_MIN_MICROS = Utils.PROPERTY_NAME_PREFIX
+            + "gatewayService.latencyOutlierMinMicros";
+
+    private final long healthCheckIntervalMicros = Long.getLong(
+            PROPERTY_NAME_HEALTH_CHECK_INTERVAL_MICROS, TimeUnit.SECONDS.toMicros(5));
+    private final long healthCheckTimeoutMicros = Long.getLong(
+            PROPERTY_NAME_HEALTH_CHECK_TIMEOUT_MICROS, TimeUnit.SECONDS.toMicros(2));
+    private final int consecutiveFailureThreshold = Integer.getInteger(
+            PROPERTY_NAME_CONSECUTIVE_FAILURE_THRESHOLD, 5);
+    private final long baseEjectionMicros = Long.getLong(
+            PROPERTY_NAME_BASE_EJECTION_MICROS, TimeUnit.SECONDS.toMicros(10));
+    private final long maxEjectionMicros = Long.getLong(
+            PROPERTY_NAME_MAX_EJECTION_MICROS, TimeUnit.MINUTES.toMicros(5));
+    private final int latencyOutlierFactor = Integer.getInteger(
+            PROPERTY_NAME_LATENCY_OUTLIER_FACTOR, 5);
+    private final long latencyOutlierMinMicros = Long.getLong(
+            PROPERTY_NAME_LATENCY_OUTLIER_MIN_MICROS, TimeUnit.MILLISECONDS.toMicros(100));
+
+    private final ServiceHost host;
+    private long lastCheckMicros;
+
+    public GatewayHealthChecker(ServiceHost host) {
+        this.host = host;
+    }
+
+    /**
+     * Returns true if the passed response of a forwarded
+     * request indicates a failing backend.
+     */
+    public static boolean isBackendFailure(Operation o, Throwable e) {
+        if (e == null) {
+            return false;
+        }
+        return e instanceof TimeoutException
+                || o.getStatusCode() == Operation.STATUS_CODE_TIMEOUT
+                || o.getStatusCode() >= Operation.STATUS_CODE_SERVER_FAILURE_THRESHOLD;
+    }
+
+    /**
+     * Called on completion of every request forwarded to the
+     * passed backend. Must not block.
+     */
+    public void onResponse(GatewayBackend backend, Operation o, Throwable e, long latencyMicros) {
+        onResponse(backend, isBackendFailure(o, e), latencyMicros);
+    }
+
+    /**
+     * Called on completion of every request forwarded to the passed
+     * backend, when the response is not available as an Operation.
+     * Must not block.
+     */
+    public void onResponse(GatewayBackend backend, boolean failed, long latencyMicros) {
+        if (!failed) {
+            backend.recordSuccess(latencyMicros);
+            return;
+        }
+        if (backend.recordFailure() >= this.consecutiveFailureThreshold && backend.isAvailable()) {
+            eject(backend, "%d consecutive failures", this.consecutiveFailureThreshold);
+        }
+    }
+
+    /**
+     * Called periodically by the {@link GatewayService}. Probes the passed
+     * backends, at most once per health check interval, and ejects
+     * latency outliers.
+     */
+    public void checkBackends(GatewayBackend[] backends) {
+        long now = Utils.getSystemNowMicrosUtc();
+        if (now - this.lastCheckMicros < this.healthCheckIntervalMicros) {
+            return;
+        }
+        this.lastCheckMicros = now;
+
+        for (GatewayBackend backend : backends) {
+            probe(backend);
+        }
+        ejectLatencyOutliers(backends);
+    }
+
+    private void probe(GatewayBackend backend) {
+        if (!backend.tryStartProbe()) {
+            return;
+        }
+        Operation.createGet(UriUtils.buildUri(backend.getUri(), ServiceUriPaths.CORE_MANAGEMENT))
+                .setReferer(this.host.getUri())
+                .forceRemote()
+                .setExpiration(Utils.fromNowMicrosUtc(this.healthCheckTimeoutMicros))
+                .setCompletion((o, e) -> {
+                    backend.endProbe();
+                    if (isBackendFailure(o, e)) {
+                        if (backend.isAvailable()) {
+                            eject(backend, "failed health check: %s", e.toString());
+                        }
+                        return;
+                    }
+                    backend.recordProbeSuccess();
+                }).sendWith(this.host);
+    }
+
+    /**
+     * Ejects backends whose average latency exceeds the average
+     * latency of the other backends by the configured factor.
+     */
+    private void ejectLatencyOutliers(GatewayBackend[] backends) {
+        if (backends.length < 2) {
+            return;
+        }
+        long total = 0;
+        int count = 0;
+        for (GatewayBackend backend : backends) {
+            long average = backend.getLatencyAverageMicros();
+            if (average >= 0 && backend.isAvailable()) {
+                total += average;
+                count++;
+            }
+        }
+        if (count < 2) {
+            return;
+        }
+        for (GatewayBackend backend : backends) {
+            long average = backend.getLatencyAverageMicros();
+            if (average < this.latencyOutlierMinMicros || !backend.isAvailable()) {
+                continue;
+            }
+            long othersAverage = (total - average) / (count - 1);
+            if (average > othersAverage * this.latencyOutlierFactor) {
+                eject(backend, "latency outlier: %dus vs %dus", average, othersAverage);
+            }
+        }
+    }
+
+    private void eject(GatewayBackend backend, String reasonFormat, Object... args) {
+        backend.eject(this.baseEjectionMicros, this.maxEjectionMicros);
+        this.host.log(Level.WARNING, "Backend %s ejected until %d. Reason: %s",
+                backend.getUri(), backend.getEjectedUntilMicros(),
+                String.format(reasonFormat, args));
+    }
+}
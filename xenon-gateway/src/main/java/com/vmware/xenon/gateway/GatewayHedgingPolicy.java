@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2014-2015 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.gateway;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.vmware.xenon.common.Utils;
+
+/**
+ * Decides when the {@link GatewayService} sends a hedged copy of a request
+ * on a path marked {@link GatewayPathService.State#idempotent}.
+ *
+ * A copy is sent to another backend once the first backend has not
+ * responded within the hedging percentile of the backend latencies of the
+ * path, e.g. P95. Paths with fewer than the minimum number of recorded
+ * requests are not hedged, since their percentiles are not meaningful yet.
+ * Delays are recomputed at most once per second and per path.
+ *
+ * The extra load is capped by a budget: every request on an idempotent path
+ * earns a fraction of a hedge (the budget percentage), and every hedge spends
+ * a whole one. At most {@link #MAX_BUDGET} unspent hedges are kept, so that
+ * a quiet period does not allow a burst of hedges later.
+ */
+public class GatewayHedgingPolicy {
+
+    public static final String PROPERTY_NAME_PERCENTILE = Utils.PROPERTY_NAME_PREFIX
+            + "gatewayService.hedgingPercentile";
+    public static final String PROPERTY_NAME_MIN_DELAY_MICROS = Utils.PROPERTY_NAME_PREFIX
+            + "gatewayService.hedgingMinDelayMicros";
+    public static final String PROPERTY_NAME_MIN_SAMPLE_COUNT = Utils.PROPERTY_NAME_PREFIX
+            + "gatewayService.hedgingMinSampleCount";
+    public static final String PROPERTY_NAME_BUDGET_PERCENT = Utils.PROPERTY_NAME_PREFIX
+            + "gatewayService.hedgingBudgetPercent";
+
+    /**
+     * Maximum number of unspent hedges.
+     */
+    public static final int MAX_BUDGET = 10;
+
+    private static final long DELAY_REFRESH_MICROS = TimeUnit.SECONDS.toMicros(1);
+
+    // The budget is tracked in hundredths of a hedge.
+    private static final long HEDGE_COST = 100;
+
+    private final double percentile = Double.parseDouble(
+            System.getProperty(PROPERTY_NAME_PERCENTILE, "0.95"));
+    private final long minDelayMicros = Long.getLong(
+            PROPERTY_NAME_MIN_DELAY_MICROS, TimeUnit.MILLISECONDS.toMicros(1));
+    private final long minSampleCount = Long.getLong(PROPERTY_NAME_MIN_SAMPLE_COUNT, 100);
+    private final long budgetPercent = Integer.getInteger(PROPERTY_NAME_BUDGET_PERCENT, 10);
+
+    private final AtomicLong budget = new AtomicLong();
+    private final AtomicLong hedgeCount = new AtomicLong();
+    private final Map<String, long[]> delays = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the time after which a copy of a request on the passed path
+     * should be sent, or -1 if the request should not be hedged. Also
+     * earns budget for the request.
+     *
+     * @param path The registered path of the request.
+     * @param backendLatency The backend latencies recorded for the path,
+     *                       or null if none were recorded.
+     */
+    public long getDelayMicros(String path, GatewayLatencyHistogram backendLatency) {
+        this.budget.getAndUpdate(b -> Math.min(b + this.budgetPercent, MAX_BUDGET * HEDGE_COST));
+        if (backendLatency == null || backendLatency.getCount() < this.minSampleCount) {
+            return -1;
+        }
+
+        // Entries hold the delay and the time it was computed. Concurrent
+        // refreshes are harmless, they compute the same value.
+        long now = Utils.getSystemNowMicrosUtc();
+        long[] delay = this.delays.get(path);
+        if (delay == null || now - delay[1] > DELAY_REFRESH_MICROS) {
+            delay = new long[] {
+                    Math.max(this.minDelayMicros, backendLatency.getPercentileMicros(this.percentile)),
+                    now };
+            this.delays.put(path, delay);
+        }
+        return delay[0];
+    }
+
+    /**
+     * Spends one hedge from the budget. Returns false, without
+     * spending anything, if the budget is exhausted.
+     */
+    public boolean tryAcquire() {
+        long current = this.budget.get();
+        while (current >= HEDGE_COST) {
+            if (this.budget.compareAndSet(current, current - HEDGE_COST)) {
+                this.hedgeCount.incrementAndGet();
+                return true;
+            }
+            current = this.budget.get();
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of hedges sent.
+     */
+    public long getHedgeCount() {
+        return this.hedgeCount.get();
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2014-2015 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.gateway;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.vmware.xenon.gateway.GatewayConfigService.LoadBalancingStrategy;
+
+/**
+ * Selects a {@link GatewayBackend} for each request forwarded by the
+ * {@link GatewayService}.
+ *
+ * A load balancer is immutable with respect to its configuration and is
+ * rebuilt by the {@link GatewayCache} whenever the set of backends changes.
+ * Selection is lock-free.
+ */
+public final class GatewayLoadBalancer {
+
+    // Upper bound for the length of the pre-computed round-robin schedule.
+    private static final int MAX_SCHEDULE_LENGTH = 4096;
+
+    private static final GatewayLoadBalancer EMPTY = new GatewayLoadBalancer(
+            LoadBalancingStrategy.ROUND_ROBIN, new GatewayBackend[0], new int[0]);
+
+    private final LoadBalancingStrategy strategy;
+    private final GatewayBackend[] backends;
+    private final int[] weights;
+    private final int[] cumulativeWeights;
+    private final int totalWeight;
+    private final int[] schedule;
+    private final AtomicInteger counter = new AtomicInteger();
+
+    private GatewayLoadBalancer(LoadBalancingStrategy strategy,
+                                GatewayBackend[] backends, int[] weights) {
+        this.strategy = strategy;
+        this.backends = backends;
+        this.weights = weights;
+        this.cumulativeWeights = new int[weights.length];
+        int total = 0;
+        for (int i = 0; i < weights.length; i++) {
+            total += weights[i];
+            this.cumulativeWeights[i] = total;
+        }
+        this.totalWeight = total;
+        this.schedule = strategy == LoadBalancingStrategy.ROUND_ROBIN && weights.length > 0
+                ? createSchedule(weights) : null;
+    }
+
+    /**
+     * Returns a load balancer without any backends.
+     */
+    public static GatewayLoadBalancer empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Creates a load balancer for the passed backends. The weights array
+     * must have the same length as the backends array and only contain
+     * positive values.
+     */
+    public static GatewayLoadBalancer create(LoadBalancingStrategy strategy,
+                                             GatewayBackend[] backends, int[] weights) {
+        if (backends.length != weights.length) {
+            throw new IllegalArgumentException("backends and weights must have the same length");
+        }
+        if (backends.length == 0) {
+            return EMPTY;
+        }
+        if (strategy == null) {
+            strategy = LoadBalancingStrategy.ROUND_ROBIN;
+        }
+        return new GatewayLoadBalancer(strategy, backends, weights);
+    }
+
+    /**
+     * Returns the strategy used for selecting backends.
+     */
+    public LoadBalancingStrategy getStrategy() {
+        return this.strategy;
+    }
+
+    /**
+     * Returns the backends known to this load balancer.
+     */
+    public GatewayBackend[] getBackends() {
+        return this.backends.clone();
+    }
+
+    /**
+     * Selects a backend for the next request. Returns null
+     * if there are no backends.
+     *
+     * Ejected backends are skipped. If all backends are ejected, the
+     * backend chosen by the strategy is returned anyway, since failing
+     * every request is worse than trying a possibly unhealthy backend.
+     */
+    public GatewayBackend select() {
+        if (this.backends.length == 0) {
+            return null;
+        }
+        if (this.backends.length == 1) {
+            return this.backends[0];
+        }
+        GatewayBackend selected;
+        switch (this.strategy) {
+        case LEAST_OUTSTANDING_REQUESTS:
+            selected = selectLeastOutstanding();
+            break;
+        case POWER_OF_TWO_CHOICES:
+            selected = selectPowerOfTwoChoices();
+            break;
+        case ROUND_ROBIN:
+        default:
+            selected = selectRoundRobin();
+            break;
+        }
+        if (selected.isAvailable()) {
+            return selected;
+        }
+        return selectAvailable(selected);
+    }
+
+    private GatewayBackend selectAvailable(GatewayBackend fallback) {
+        int count = this.backends.length;
+        int offset = (this.counter.getAndIncrement() & Integer.MAX_VALUE) % count;
+        for (int i = 0; i < count; i++) {
+            GatewayBackend backend = this.backends[(offset + i) % count];
+            if (backend.isAvailable()) {
+                return backend;
+            }
+        }
+        return fallback;
+    }
+
+    private GatewayBackend selectRoundRobin() {
+        int position = (this.counter.getAndIncrement() & Integer.MAX_VALUE) % this.schedule.length;
+        return this.backends[this.schedule[position]];
+    }
+
+    private GatewayBackend selectLeastOutstanding() {
+        // Start from a rotating offset so that ties are spread across backends.
+        int count = this.backends.length;
+        int offset = (this.counter.getAndIncrement() & Integer.MAX_VALUE) % count;
+        int best = offset;
+        for (int i = 1; i < count; i++) {
+            int candidate = (offset + i) % count;
+            if (isLessLoaded(candidate, best)) {
+                best = candidate;
+            }
+        }
+        return this.backends[best];
+    }
+
+    private GatewayBackend selectPowerOfTwoChoices() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = pickWeighted(random);
+        int second = pickWeighted(random);
+        if (first == second) {
+            // Fall back to the next backend so that two distinct choices are compared.
+            second = (first + 1) % this.backends.length;
+        }
+        return this.backends[isLessLoaded(second, first) ? second : first];
+    }
+
+    /**
+     * Returns true if backend a has fewer outstanding requests than
+     * backend b, relative to their weights.
+     */
+    private boolean isLessLoaded(int a, int b) {
+        long loadA = (long) this.backends[a].getOutstandingRequests() * this.weights[b];
+        long loadB = (long) this.backends[b].getOutstandingRequests() * this.weights[a];
+        return loadA < loadB;
+    }
+
+    private int pickWeighted(ThreadLocalRandom random) {
+        int value = random.nextInt(this.totalWeight);
+        int low = 0;
+        int high = this.cumulativeWeights.length - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (this.cumulativeWeights[mid] <= value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Pre-computes a smooth weighted round-robin schedule, so that
+     * backends with higher weights are interleaved with the others
+     * instead of being selected in bursts.
+     */
+    private static int[] createSchedule(int[] weights) {
+        int[] reduced = reduceWeights(weights);
+        int total = 0;
+        for (int weight : reduced) {
+            total += weight;
+        }
+        int[] schedule = new int[total];
+        int[] current = new int[reduced.length];
+        for (int slot = 0; slot < total; slot++) {
+            int selected = 0;
+            for (int i = 0; i < reduced.length; i++) {
+                current[i] += reduced[i];
+                if (current[i] > current[selected]) {
+                    selected = i;
+                }
+            }
+            current[selected] -= total;
+            schedule[slot] = selected;
+        }
+        return schedule;
+    }
+
+    private static int[] reduceWeights(int[] weights) {
+        int gcd = 0;
+        long total = 0;
+        for (int weight : weights) {
+            gcd = gcd(gcd, weight);
+            total += weight;
+        }
+        int[] reduced = new int[weights.length];
+        long reducedTotal = total / gcd;
+        for (int i = 0; i < weights.length; i++) {
+            reduced[i] = weights[i] / gcd;
+            if (reducedTotal > MAX_SCHEDULE_LENGTH) {
+                // Scale down proportionally, keeping every backend in the schedule.
+                reduced[i] = (int) Math.max(1L,
+                        (long) reduced[i] * MAX_SCHEDULE_LENGTH / reducedTotal);
+            }
+        }
+        return reduced;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
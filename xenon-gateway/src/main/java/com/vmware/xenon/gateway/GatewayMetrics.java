@@ -0,0 +1,339 @@
+/*
+ * Copyright (c) 2014-2015 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.gateway;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.vmware.xenon.common.ServiceClient.ConnectionPoolMetrics;
+import com.vmware.xenon.common.ServiceStats;
+import com.vmware.xenon.common.ServiceStats.ServiceStat;
+import com.vmware.xenon.common.Utils;
+
+/**
+ * Request metrics recorded by the {@link GatewayService}.
+ *
+ * For every registered path, the number of requests per status class and
+ * the total and backend latencies are tracked. Gateway-wide, the number of
+ * responses per status code and the total, backend and overhead latencies
+ * are tracked. The overhead is the time spent in the Gateway itself, i.e.
+ * the total latency minus the backend latency.
+ *
+ * Requests that did not match a registered path are recorded under
+ * {@link #UNMATCHED_PATH}. Recording does not lock, and only allocates
+ * the first time a path is recorded.
+ */
+public class GatewayMetrics {
+
+    public static final String UNMATCHED_PATH = "unmatched";
+
+    public static final String STAT_NAME_REQUEST_COUNT = "requestCount";
+    public static final String STAT_NAME_LATENCY = "latencyMicros";
+    public static final String STAT_NAME_BACKEND_LATENCY = "backendLatencyMicros";
+    public static final String STAT_NAME_OVERHEAD_LATENCY = "overheadLatencyMicros";
+    public static final String STAT_NAME_BACKEND_CONNECTIONS_IN_USE = "backendConnectionsInUse";
+    public static final String STAT_NAME_BACKEND_CONNECTIONS_AVAILABLE = "backendConnectionsAvailable";
+    public static final String STAT_NAME_BACKEND_PENDING_REQUESTS = "backendPendingRequests";
+    public static final String STAT_NAME_CONCURRENCY_LIMIT = "concurrencyLimit";
+    public static final String STAT_NAME_IN_FLIGHT_REQUESTS = "inFlightRequests";
+    public static final String STAT_NAME_CACHE_STALE = "cacheStale";
+
+    private static final double[] PERCENTILES = new double[] { 0.5, 0.99, 0.999 };
+    private static final String[] PERCENTILE_NAMES = new String[] { "P50", "P99", "P999" };
+    private static final String[] PERCENTILE_LABELS = new String[] { "0.5", "0.99", "0.999" };
+
+    private static final int MIN_STATUS_CODE = 100;
+    private static final int MAX_STATUS_CODE = 599;
+    private static final String[] STATUS_CLASSES = new String[] { "1xx", "2xx", "3xx", "4xx", "5xx" };
+
+    /**
+     * Metrics of a single registered path.
+     */
+    public static final class PathMetrics {
+        final AtomicLongArray statusClassCounts = new AtomicLongArray(STATUS_CLASSES.length);
+        final GatewayLatencyHistogram latency = new GatewayLatencyHistogram();
+        final GatewayLatencyHistogram backendLatency = new GatewayLatencyHistogram();
+
+        public long getRequestCount() {
+            long count = 0;
+            for (int i = 0; i < this.statusClassCounts.length(); i++) {
+                count += this.statusClassCounts.get(i);
+            }
+            return count;
+        }
+
+        public GatewayLatencyHistogram getLatency() {
+            return this.latency;
+        }
+
+        public GatewayLatencyHistogram getBackendLatency() {
+            return this.backendLatency;
+        }
+    }
+
+    private final Map<String, PathMetrics> pathMetrics = new ConcurrentHashMap<>();
+    private final AtomicLongArray statusCodeCounts = new AtomicLongArray(
+            MAX_STATUS_CODE - MIN_STATUS_CODE + 1);
+    private final GatewayLatencyHistogram latency = new GatewayLatencyHistogram();
+    private final GatewayLatencyHistogram backendLatency = new GatewayLatencyHistogram();
+    private final GatewayLatencyHistogram overheadLatency = new GatewayLatencyHistogram();
+
+    /**
+     * Records a completed request.
+     *
+     * @param path The registered path the request matched, or null.
+     * @param statusCode The response status code.
+     * @param latencyMicros Time from receiving the request to completing it.
+     * @param backendLatencyMicros Time spent waiting on the backend, or
+     *                             a negative value if the request was
+     *                             not forwarded.
+     */
+    public void record(String path, int statusCode, long latencyMicros, long backendLatencyMicros) {
+        PathMetrics metrics = getPathMetrics(path != null ? path : UNMATCHED_PATH);
+        int statusClass = statusCode / 100 - 1;
+        if (statusClass >= 0 && statusClass < STATUS_CLASSES.length) {
+            metrics.statusClassCounts.incrementAndGet(statusClass);
+            this.statusCodeCounts.incrementAndGet(statusCode - MIN_STATUS_CODE);
+        }
+        metrics.latency.record(latencyMicros);
+        this.latency.record(latencyMicros);
+        if (backendLatencyMicros >= 0) {
+            metrics.backendLatency.record(backendLatencyMicros);
+            this.backendLatency.record(backendLatencyMicros);
+            this.overheadLatency.record(Math.max(0, latencyMicros - backendLatencyMicros));
+        }
+    }
+
+    /**
+     * Returns the metrics of the passed path, or null if no
+     * request has been recorded for it.
+     */
+    public PathMetrics getMetrics(String path) {
+        return this.pathMetrics.get(path);
+    }
+
+    /**
+     * Returns the number of responses with the passed status code.
+     */
+    public long getStatusCodeCount(int statusCode) {
+        if (statusCode < MIN_STATUS_CODE || statusCode > MAX_STATUS_CODE) {
+            return 0;
+        }
+        return this.statusCodeCounts.get(statusCode - MIN_STATUS_CODE);
+    }
+
+    private PathMetrics getPathMetrics(String path) {
+        PathMetrics metrics = this.pathMetrics.get(path);
+        if (metrics == null) {
+            metrics = this.pathMetrics.computeIfAbsent(path, k -> new PathMetrics());
+        }
+        return metrics;
+    }
+
+    /**
+     * Returns the metrics as Xenon service stats. Stat names of
+     * per-path metrics are suffixed with the path, e.g.
+     * "requestCount:/core/examples".
+     */
+    public ServiceStats toServiceStats(Map<String, Long> counters) {
+        return toServiceStats(counters, Collections.emptyMap(), Collections.emptyMap());
+    }
+
+    /**
+     * Returns the metrics as Xenon service stats, including the passed
+     * gauges and the statistics of the passed backend connection pools,
+     * keyed by backend URI. Pool stat names are suffixed with the backend URI.
+     */
+    public ServiceStats toServiceStats(Map<String, Long> counters, Map<String, Long> gauges,
+                                       Map<String, ConnectionPoolMetrics> pools) {
+        ServiceStats stats = new ServiceStats();
+        long now = Utils.getSystemNowMicrosUtc();
+        addStat(stats, STAT_NAME_REQUEST_COUNT, this.latency.getCount(), "count", now);
+        for (int code = MIN_STATUS_CODE; code <= MAX_STATUS_CODE; code++) {
+            long count = getStatusCodeCount(code);
+            if (count > 0) {
+                addStat(stats, "responseCount" + code, count, "count", now);
+            }
+        }
+        addHistogramStats(stats, STAT_NAME_LATENCY, "", this.latency, now);
+        addHistogramStats(stats, STAT_NAME_BACKEND_LATENCY, "", this.backendLatency, now);
+        addHistogramStats(stats, STAT_NAME_OVERHEAD_LATENCY, "", this.overheadLatency, now);
+        for (Map.Entry<String, PathMetrics> entry : new TreeMap<>(this.pathMetrics).entrySet()) {
+            String suffix = ":" + entry.getKey();
+            PathMetrics metrics = entry.getValue();
+            addStat(stats, STAT_NAME_REQUEST_COUNT + suffix, metrics.getRequestCount(), "count", now);
+            for (int i = 0; i < STATUS_CLASSES.length; i++) {
+                long count = metrics.statusClassCounts.get(i);
+                if (count > 0) {
+                    addStat(stats, "responseCount" + STATUS_CLASSES[i] + suffix, count, "count", now);
+                }
+            }
+            addHistogramStats(stats, STAT_NAME_LATENCY, suffix, metrics.latency, now);
+            addHistogramStats(stats, STAT_NAME_BACKEND_LATENCY, suffix, metrics.backendLatency, now);
+        }
+        for (Map.Entry<String, Long> counter : counters.entrySet()) {
+            addStat(stats, counter.getKey(), counter.getValue(), "count", now);
+        }
+        for (Map.Entry<String, Long> gauge : gauges.entrySet()) {
+            addStat(stats, gauge.getKey(), gauge.getValue(), "count", now);
+        }
+        for (Map.Entry<String, ConnectionPoolMetrics> entry : pools.entrySet()) {
+            String suffix = ":" + entry.getKey();
+            ConnectionPoolMetrics pool = entry.getValue();
+            addStat(stats, STAT_NAME_BACKEND_CONNECTIONS_IN_USE + suffix,
+                    pool.inUseConnectionCount, "count", now);
+            addStat(stats, STAT_NAME_BACKEND_CONNECTIONS_AVAILABLE + suffix,
+                    pool.availableConnectionCount, "count", now);
+            addStat(stats, STAT_NAME_BACKEND_PENDING_REQUESTS + suffix,
+                    pool.pendingRequestCount, "count", now);
+        }
+        return stats;
+    }
+
+    /**
+     * Returns the metrics in the Prometheus text exposition format.
+     * Latencies are reported in seconds, as summaries.
+     */
+    public String toPrometheusText(Map<String, Long> counters) {
+        return toPrometheusText(counters, Collections.emptyMap(), Collections.emptyMap());
+    }
+
+    /**
+     * Returns the metrics in the Prometheus text exposition format,
+     * including the passed gauges and the statistics of the passed
+     * backend connection pools, keyed by backend URI, as gauges.
+     */
+    public String toPrometheusText(Map<String, Long> counters, Map<String, Long> gauges,
+                                   Map<String, ConnectionPoolMetrics> pools) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("# TYPE xenon_gateway_requests_total counter\n");
+        for (Map.Entry<String, PathMetrics> entry : new TreeMap<>(this.pathMetrics).entrySet()) {
+            for (int i = 0; i < STATUS_CLASSES.length; i++) {
+                long count = entry.getValue().statusClassCounts.get(i);
+                if (count > 0) {
+                    sb.append("xenon_gateway_requests_total{path=\"").append(escape(entry.getKey()))
+                            .append("\",status=\"").append(STATUS_CLASSES[i]).append("\"} ")
+                            .append(count).append('\n');
+                }
+            }
+        }
+        sb.append("# TYPE xenon_gateway_responses_total counter\n");
+        for (int code = MIN_STATUS_CODE; code <= MAX_STATUS_CODE; code++) {
+            long count = getStatusCodeCount(code);
+            if (count > 0) {
+                sb.append("xenon_gateway_responses_total{code=\"").append(code).append("\"} ")
+                        .append(count).append('\n');
+            }
+        }
+        appendSummaryType(sb, "xenon_gateway_request_latency_seconds");
+        appendSummaryType(sb, "xenon_gateway_backend_latency_seconds");
+        for (Map.Entry<String, PathMetrics> entry : new TreeMap<>(this.pathMetrics).entrySet()) {
+            String label = "path=\"" + escape(entry.getKey()) + "\"";
+            appendSummary(sb, "xenon_gateway_request_latency_seconds", label, entry.getValue().latency);
+            appendSummary(sb, "xenon_gateway_backend_latency_seconds", label,
+                    entry.getValue().backendLatency);
+        }
+        appendSummaryType(sb, "xenon_gateway_overhead_latency_seconds");
+        appendSummary(sb, "xenon_gateway_overhead_latency_seconds", null, this.overheadLatency);
+        for (Map.Entry<String, Long> counter : counters.entrySet()) {
+            String name = "xenon_gateway_"
+                    + toSnakeCase(counter.getKey().replaceAll("Count$", "")) + "_total";
+            sb.append("# TYPE ").append(name).append(" counter\n");
+            sb.append(name).append(' ').append(counter.getValue()).append('\n');
+        }
+        for (Map.Entry<String, Long> gauge : gauges.entrySet()) {
+            String name = "xenon_gateway_" + toSnakeCase(gauge.getKey());
+            sb.append("# TYPE ").append(name).append(" gauge\n");
+            sb.append(name).append(' ').append(gauge.getValue()).append('\n');
+        }
+        if (!pools.isEmpty()) {
+            sb.append("# TYPE xenon_gateway_backend_connections gauge\n");
+            for (Map.Entry<String, ConnectionPoolMetrics> entry : pools.entrySet()) {
+                String label = "backend=\"" + escape(entry.getKey()) + "\"";
+                sb.append("xenon_gateway_backend_connections{").append(label)
+                        .append(",state=\"in_use\"} ")
+                        .append(entry.getValue().inUseConnectionCount).append('\n');
+                sb.append("xenon_gateway_backend_connections{").append(label)
+                        .append(",state=\"available\"} ")
+                        .append(entry.getValue().availableConnectionCount).append('\n');
+            }
+            sb.append("# TYPE xenon_gateway_backend_pending_requests gauge\n");
+            for (Map.Entry<String, ConnectionPoolMetrics> entry : pools.entrySet()) {
+                sb.append("xenon_gateway_backend_pending_requests{backend=\"")
+                        .append(escape(entry.getKey())).append("\"} ")
+                        .append(entry.getValue().pendingRequestCount).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void addHistogramStats(ServiceStats stats, String name, String suffix,
+                                          GatewayLatencyHistogram histogram, long now) {
+        if (histogram.getCount() == 0) {
+            return;
+        }
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            addStat(stats, name + PERCENTILE_NAMES[i] + suffix,
+                    histogram.getPercentileMicros(PERCENTILES[i]), "microseconds", now);
+        }
+        addStat(stats, name + "Max" + suffix, histogram.getMaxMicros(), "microseconds", now);
+    }
+
+    private static void addStat(ServiceStats stats, String name, double value, String unit, long now) {
+        ServiceStat stat = new ServiceStat();
+        stat.name = name;
+        stat.latestValue = value;
+        stat.unit = unit;
+        stat.lastUpdateMicrosUtc = now;
+        stats.entries.put(name, stat);
+    }
+
+    private static void appendSummaryType(StringBuilder sb, String name) {
+        sb.append("# TYPE ").append(name).append(" summary\n");
+    }
+
+    private static void appendSummary(StringBuilder sb, String name, String label,
+                                      GatewayLatencyHistogram histogram) {
+        if (histogram.getCount() == 0) {
+            return;
+        }
+        String prefix = label != null ? label + "," : "";
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            sb.append(name).append('{').append(prefix).append("quantile=\"")
+                    .append(PERCENTILE_LABELS[i]).append("\"} ")
+                    .append(toSeconds(histogram.getPercentileMicros(PERCENTILES[i]))).append('\n');
+        }
+        String labels = label != null ? "{" + label + "}" : "";
+        sb.append(name).append("_sum").append(labels).append(' ')
+                .append(toSeconds(histogram.getSumMicros())).append('\n');
+        sb.append(name).append("_count").append(labels).append(' ')
+                .append(histogram.getCount()).append('\n');
+    }
+
+    private static double toSeconds(long micros) {
+        return (double) micros / TimeUnit.SECONDS.toMicros(1);
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static String toSnakeCase(String name) {
+        return name.replaceAll("([a-z0-9])([A-Z])", "$1_$2").toLowerCase();
+    }
+}
@@ -13,18 +13,62 @@
 
 package com.vmware.xenon.gateway;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import com.vmware.xenon.common.FactoryService;
+import com.vmware.xenon.common.Operation;
 import com.vmware.xenon.common.Service;
 import com.vmware.xenon.common.ServiceDocument;
+import com.vmware.xenon.common.ServiceErrorResponse;
 import com.vmware.xenon.common.UriUtils;
+import com.vmware.xenon.common.Utils;
 
 /**
  * Factory for {@link GatewayPathService}
+ *
+ * Also accepts a batch of paths, as a {@link BulkRequest} POSTed with
+ * the {@link #QUERY_PARAM_BULK} query parameter. The paths are created
+ * in parallel, with bounded concurrency, and a {@link BulkResponse}
+ * with the result of each path is returned.
  */
 public class GatewayPathFactoryService extends FactoryService {
 
     public static final String SELF_LINK = GatewayUriPaths.PATHS;
 
+    public static final String QUERY_PARAM_BULK = "bulk";
+
+    public static final int DEFAULT_BULK_CONCURRENCY = 32;
+    public static final int MAX_BULK_CONCURRENCY = 256;
+    public static final int MAX_BULK_SIZE = Integer.getInteger(
+            Utils.PROPERTY_NAME_PREFIX + "gatewayPathFactoryService.maxBulkSize", 10000);
+
+    public static class BulkRequest {
+        public List<GatewayPathService.State> paths;
+
+        /**
+         * Maximum number of paths created in parallel. Optional,
+         * defaults to {@link #DEFAULT_BULK_CONCURRENCY}.
+         */
+        public Integer maxConcurrency;
+    }
+
+    public static class BulkResult {
+        public String path;
+        public int statusCode;
+        public String documentSelfLink;
+        public String message;
+    }
+
+    public static class BulkResponse {
+        /**
+         * Results, in the order of the paths in the request.
+         */
+        public List<BulkResult> results;
+        public int failureCount;
+    }
+
     public GatewayPathFactoryService() {
         super(GatewayPathService.State.class);
     }
@@ -34,6 +78,95 @@ public class GatewayPathFactoryService extends FactoryService {
         return new GatewayPathService();
     }
 
+    @Override
+    public void handleRequest(Operation op, OperationProcessingStage opProcessingStage) {
+        if (op.getAction() == Action.POST && isBulkRequest(op)) {
+            handleBulkPost(op);
+            return;
+        }
+        super.handleRequest(op, opProcessingStage);
+    }
+
+    private static boolean isBulkRequest(Operation op) {
+        String query = op.getUri().getQuery();
+        return query != null
+                && UriUtils.parseUriQueryParams(op.getUri()).containsKey(QUERY_PARAM_BULK);
+    }
+
+    private void handleBulkPost(Operation op) {
+        BulkRequest body = op.hasBody() ? op.getBody(BulkRequest.class) : null;
+        if (body == null || body.paths == null || body.paths.isEmpty()) {
+            op.fail(new IllegalArgumentException("paths are required"));
+            return;
+        }
+        if (body.paths.size() > MAX_BULK_SIZE) {
+            op.fail(new IllegalArgumentException(
+                    "Number of paths cannot exceed " + MAX_BULK_SIZE));
+            return;
+        }
+        if (body.maxConcurrency != null && body.maxConcurrency <= 0) {
+            op.fail(new IllegalArgumentException("maxConcurrency must be positive"));
+            return;
+        }
+
+        List<GatewayPathService.State> paths = body.paths;
+        BulkResult[] results = new BulkResult[paths.size()];
+        AtomicInteger nextIndex = new AtomicInteger();
+        AtomicInteger remaining = new AtomicInteger(paths.size());
+        int concurrency = Math.min(paths.size(), Math.min(MAX_BULK_CONCURRENCY,
+                body.maxConcurrency != null ? body.maxConcurrency : DEFAULT_BULK_CONCURRENCY));
+        for (int i = 0; i < concurrency; i++) {
+            createNextPath(op, paths, results, nextIndex, remaining);
+        }
+    }
+
+    // Creates the next path in the batch, if any. On completion, creates
+    // the path after it, so that at most the initial number of calls are
+    // in flight at any time. Completes the bulk request after the last one.
+    private void createNextPath(Operation bulkOp, List<GatewayPathService.State> paths,
+                                BulkResult[] results, AtomicInteger nextIndex,
+                                AtomicInteger remaining) {
+        int index = nextIndex.getAndIncrement();
+        if (index >= paths.size()) {
+            return;
+        }
+        GatewayPathService.State state = paths.get(index);
+        Operation.createPost(this, SELF_LINK)
+                .setBody(state)
+                .setCompletion((o, e) -> {
+                    BulkResult result = new BulkResult();
+                    result.path = state != null ? state.path : null;
+                    result.statusCode = o.getStatusCode();
+                    if (e != null) {
+                        ServiceErrorResponse rsp = o.hasBody()
+                                ? o.getBody(ServiceErrorResponse.class) : null;
+                        result.message = rsp != null && rsp.message != null
+                                ? rsp.message : e.getMessage();
+                    } else {
+                        result.documentSelfLink = o.getBody(GatewayPathService.State.class)
+                                .documentSelfLink;
+                    }
+                    results[index] = result;
+                    if (remaining.decrementAndGet() == 0) {
+                        completeBulkPost(bulkOp, results);
+                        return;
+                    }
+                    createNextPath(bulkOp, paths, results, nextIndex, remaining);
+                }).sendWith(this);
+    }
+
+    private static void completeBulkPost(Operation bulkOp, BulkResult[] results) {
+        BulkResponse rsp = new BulkResponse();
+        rsp.results = new ArrayList<>(results.length);
+        for (BulkResult result : results) {
+            rsp.results.add(result);
+            if (result.statusCode >= Operation.STATUS_CODE_FAILURE_THRESHOLD) {
+                rsp.failureCount++;
+            }
+        }
+        bulkOp.setBody(rsp).complete();
+    }
+
     @Override
     protected String buildDefaultChildSelfLink(ServiceDocument document)
             throws IllegalArgumentException {
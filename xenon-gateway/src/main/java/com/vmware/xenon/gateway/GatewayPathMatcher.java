@@ -0,0 +1,286 @@
+/*
+ * Copyright (c) 2014-2015 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.gateway;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An immutable, compiled path-segment trie used by the {@link GatewayService}
+ * to find the registered {@link GatewayPathService.State} for a request path.
+ *
+ * Registered paths are split into segments. Each segment is either a
+ * literal, a wildcard ({@code *}) or a template (e.g. {@code {id}}).
+ * Wildcards and templates match exactly one segment of the request path.
+ *
+ * Lookups return the registered path with the longest matching prefix,
+ * so registering {@code /core/examples} also matches
+ * {@code /core/examples/id/stats}. Literal segments are preferred over
+ * wildcards when both match the same number of segments.
+ *
+ * Lookups walk the request path in place and do not allocate. Request paths
+ * must be canonical, see {@link #toCanonicalPath(String)}: prefix matching
+ * on a path such as {@code /allowed/../secret} would match {@code /allowed}.
+ */
+public final class GatewayPathMatcher {
+
+    private static final String[] EMPTY_KEYS = new String[0];
+    private static final Node[] EMPTY_NODES = new Node[0];
+
+    private static final GatewayPathMatcher EMPTY = new GatewayPathMatcher(new Node(0));
+
+    private static final class Node {
+        final int depth;
+
+        // Literal children sorted by key, for binary search.
+        String[] keys = EMPTY_KEYS;
+        Node[] children = EMPTY_NODES;
+
+        // Child matching any single segment (wildcard or template).
+        Node anyChild;
+
+        // Non-null when a path was registered ending at this node.
+        GatewayPathService.State value;
+
+        Node(int depth) {
+            this.depth = depth;
+        }
+    }
+
+    /**
+     * Mutable node used only while building the trie.
+     */
+    private static final class BuildNode {
+        final Map<String, BuildNode> literals = new TreeMap<>();
+        BuildNode anyChild;
+        GatewayPathService.State value;
+    }
+
+    private final Node root;
+
+    private GatewayPathMatcher(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * Returns a matcher that never matches.
+     */
+    public static GatewayPathMatcher empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Compiles a matcher from the passed map of registered paths.
+     */
+    public static GatewayPathMatcher build(Map<String, GatewayPathService.State> paths) {
+        if (paths.isEmpty()) {
+            return EMPTY;
+        }
+        BuildNode root = new BuildNode();
+        for (Map.Entry<String, GatewayPathService.State> entry : paths.entrySet()) {
+            BuildNode node = root;
+            String path = entry.getKey();
+            int length = path.length();
+            int start = 0;
+            while ((start = nextSegmentStart(path, start, length)) < length) {
+                int end = segmentEnd(path, start, length);
+                if (isAnySegment(path, start, end)) {
+                    if (node.anyChild == null) {
+                        node.anyChild = new BuildNode();
+                    }
+                    node = node.anyChild;
+                } else {
+                    node = node.literals.computeIfAbsent(
+                            path.substring(start, end), k -> new BuildNode());
+                }
+                start = end;
+            }
+            node.value = entry.getValue();
+        }
+        return new GatewayPathMatcher(compile(root, 0));
+    }
+
+    private static Node compile(BuildNode buildNode, int depth) {
+        Node node = new Node(depth);
+        node.value = buildNode.value;
+        int count = buildNode.literals.size();
+        if (count > 0) {
+            // TreeMap iteration order matches the ordering used by compareSegment.
+            node.keys = buildNode.literals.keySet().toArray(new String[count]);
+            node.children = new Node[count];
+            int i = 0;
+            for (BuildNode child : buildNode.literals.values()) {
+                node.children[i++] = compile(child, depth + 1);
+            }
+        }
+        if (buildNode.anyChild != null) {
+            node.anyChild = compile(buildNode.anyChild, depth + 1);
+        }
+        return node;
+    }
+
+    /**
+     * Returns the registered path state with the longest prefix matching
+     * the passed request path, or null if there is no match.
+     */
+    public GatewayPathService.State match(String path) {
+        Node node = find(this.root, path, 0, path.length());
+        return node != null ? node.value : null;
+    }
+
+    /**
+     * Returns the decoded form of the passed raw (still encoded) request
+     * path, or null if the path is not canonical: if it has {@code .} or
+     * {@code ..} segments, encoded or not, encoded slashes or backslashes,
+     * or invalid escapes. Such paths are rejected rather than normalized,
+     * so that the backend gets the path that was matched.
+     */
+    public static String toCanonicalPath(String rawPath) {
+        if (containsIgnoreCase(rawPath, "%2f") || containsIgnoreCase(rawPath, "%5c")) {
+            return null;
+        }
+        String path;
+        try {
+            path = new URI(rawPath).getPath();
+        } catch (URISyntaxException e) {
+            return null;
+        }
+        if (path == null) {
+            return null;
+        }
+        int length = path.length();
+        int start = 0;
+        while ((start = nextSegmentStart(path, start, length)) < length) {
+            int end = segmentEnd(path, start, length);
+            if (path.charAt(start) == '.'
+                    && (end - start == 1 || (end - start == 2 && path.charAt(start + 1) == '.'))) {
+                return null;
+            }
+            start = end;
+        }
+        return path;
+    }
+
+    private static boolean containsIgnoreCase(String value, String token) {
+        for (int i = value.indexOf('%'); i >= 0; i = value.indexOf('%', i + 1)) {
+            if (value.regionMatches(true, i, token, 0, token.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of registered paths. Used for diagnostics.
+     */
+    public int size() {
+        return count(this.root);
+    }
+
+    private static int count(Node node) {
+        int total = node.value != null ? 1 : 0;
+        for (Node child : node.children) {
+            total += count(child);
+        }
+        if (node.anyChild != null) {
+            total += count(node.anyChild);
+        }
+        return total;
+    }
+
+    /**
+     * Returns the deepest node with a value reachable from the passed node,
+     * consuming the path from offset start. Literal children are tried
+     * before the wildcard child, so they win on equal depth.
+     */
+    private static Node find(Node node, String path, int start, int length) {
+        Node best = node.value != null ? node : null;
+        start = nextSegmentStart(path, start, length);
+        if (start == length) {
+            return best;
+        }
+        int end = segmentEnd(path, start, length);
+
+        int index = indexOf(node.keys, path, start, end);
+        if (index >= 0) {
+            Node candidate = find(node.children[index], path, end, length);
+            if (candidate != null && (best == null || candidate.depth > best.depth)) {
+                best = candidate;
+            }
+        }
+        if (node.anyChild != null) {
+            Node candidate = find(node.anyChild, path, end, length);
+            if (candidate != null && (best == null || candidate.depth > best.depth)) {
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
+    private static int indexOf(String[] keys, String path, int start, int end) {
+        int low = 0;
+        int high = keys.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareSegment(keys[mid], path, start, end);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Compares key with path[start, end) using the same ordering
+     * as {@link String#compareTo(String)}.
+     */
+    private static int compareSegment(String key, String path, int start, int end) {
+        int keyLength = key.length();
+        int segmentLength = end - start;
+        int limit = Math.min(keyLength, segmentLength);
+        for (int i = 0; i < limit; i++) {
+            char c1 = key.charAt(i);
+            char c2 = path.charAt(start + i);
+            if (c1 != c2) {
+                return c1 - c2;
+            }
+        }
+        return keyLength - segmentLength;
+    }
+
+    private static int nextSegmentStart(String path, int start, int length) {
+        while (start < length && path.charAt(start) == '/') {
+            start++;
+        }
+        return start;
+    }
+
+    private static int segmentEnd(String path, int start, int length) {
+        int end = path.indexOf('/', start);
+        return end < 0 ? length : end;
+    }
+
+    private static boolean isAnySegment(String path, int start, int end) {
+        if (end - start == 1 && path.charAt(start) == '*') {
+            return true;
+        }
+        return end - start >= 2 && path.charAt(start) == '{' && path.charAt(end - 1) == '}';
+    }
+}
@@ -27,6 +27,40 @@ import com.vmware.xenon.common.Utils;
  */
 public class GatewayPathService extends StatefulService {
 
+    /**
+     * Settings of the circuit breakers of a path. The Gateway keeps one
+     * circuit breaker per backend for the path, see
+     * {@link GatewayCircuitBreaker}.
+     */
+    public static class CircuitBreaker {
+        /**
+         * Percentage of failed requests, over the rolling window, above
+         * which the circuit opens. Failed requests are requests that
+         * timed out or got a 5xx response, or were slower than
+         * {@link #slowRequestThresholdMicros}. Required.
+         */
+        public Integer errorThresholdPercent;
+
+        /**
+         * Minimum number of requests in the rolling window before the
+         * circuit can open. Optional, defaults to 20.
+         */
+        public Integer minRequestCount;
+
+        /**
+         * Latency above which a request counts as failed.
+         * Optional. If not specified, latency is not considered.
+         */
+        public Long slowRequestThresholdMicros;
+
+        /**
+         * Time the circuit stays open, failing requests right away,
+         * before a probe request is let through. Optional, defaults
+         * to 30 seconds.
+         */
+        public Long openDurationMicros;
+    }
+
     public static class State extends ServiceDocument {
         public static final String KIND = Utils.buildKind(State.class);
 
@@ -42,6 +76,60 @@ public class GatewayPathService extends StatefulService {
          */
         @UsageOption(option = PropertyUsageOption.AUTO_MERGE_IF_NOT_NULL)
         public EnumSet<Action> actions;
+
+        /**
+         * Maximum sustained number of requests per second allowed
+         * on this path, across all clients. Requests over the limit
+         * are failed with status 429. Optional. If not specified,
+         * requests on this path are not rate limited.
+         */
+        @UsageOption(option = PropertyUsageOption.AUTO_MERGE_IF_NOT_NULL)
+        public Integer rateLimitPerSecond;
+
+        /**
+         * Maximum number of requests allowed in a burst on this path.
+         * Optional, defaults to {@link #rateLimitPerSecond}.
+         */
+        @UsageOption(option = PropertyUsageOption.AUTO_MERGE_IF_NOT_NULL)
+        public Integer rateLimitBurst;
+
+        /**
+         * Time to live of cached GET responses on this path. When set,
+         * successful GET responses are cached by the Gateway and served
+         * without contacting the backend, until they expire or until any
+         * other request is forwarded on this path. Optional. If not
+         * specified or 0, responses are not cached.
+         */
+        @UsageOption(option = PropertyUsageOption.AUTO_MERGE_IF_NOT_NULL)
+        public Long responseCacheTtlMicros;
+
+        /**
+         * A flag used to turn on coalescing of concurrent GET requests.
+         * When turned-on, identical GET requests on this path that arrive
+         * while one is already being forwarded, share its response instead
+         * of being forwarded themselves. Optional, defaults to false.
+         */
+        @UsageOption(option = PropertyUsageOption.AUTO_MERGE_IF_NOT_NULL)
+        public Boolean coalesceRequests;
+
+        /**
+         * Circuit breaker settings. When set, requests on this path
+         * fail right away with status 503 while the backends they would
+         * be forwarded to are failing. Optional. If not specified,
+         * requests are always forwarded.
+         */
+        @UsageOption(option = PropertyUsageOption.AUTO_MERGE_IF_NOT_NULL)
+        public CircuitBreaker circuitBreaker;
+
+        /**
+         * A flag used to mark all allowed actions on this path as safe
+         * to send more than once. When turned-on, a request that is slow
+         * to get a response is also sent to another backend, and the first
+         * response is used. See {@link GatewayHedgingPolicy}. Optional,
+         * defaults to false.
+         */
+        @UsageOption(option = PropertyUsageOption.AUTO_MERGE_IF_NOT_NULL)
+        public Boolean idempotent;
     }
 
     public GatewayPathService() {
@@ -72,6 +160,17 @@ public class GatewayPathService extends StatefulService {
             start.fail(new IllegalArgumentException("path is required"));
             return null;
         }
+        if (!GatewayRateLimiter.isValid(state.rateLimitPerSecond, state.rateLimitBurst)) {
+            start.fail(new IllegalArgumentException("rate limits must be positive"));
+            return null;
+        }
+        if (state.responseCacheTtlMicros != null && state.responseCacheTtlMicros < 0) {
+            start.fail(new IllegalArgumentException("responseCacheTtlMicros cannot be negative"));
+            return null;
+        }
+        if (!validateCircuitBreaker(start, state.circuitBreaker)) {
+            return null;
+        }
 
         return state;
     }
@@ -114,9 +213,42 @@ public class GatewayPathService extends StatefulService {
             update.fail(new IllegalArgumentException("path cannot be changed"));
             return null;
         }
+        if (!GatewayRateLimiter.isValid(body.rateLimitPerSecond, body.rateLimitBurst)) {
+            update.fail(new IllegalArgumentException("rate limits must be positive"));
+            return null;
+        }
+        if (body.responseCacheTtlMicros != null && body.responseCacheTtlMicros < 0) {
+            update.fail(new IllegalArgumentException("responseCacheTtlMicros cannot be negative"));
+            return null;
+        }
+        if (!validateCircuitBreaker(update, body.circuitBreaker)) {
+            return null;
+        }
         return body;
     }
 
+    private boolean validateCircuitBreaker(Operation op, CircuitBreaker circuitBreaker) {
+        if (circuitBreaker == null) {
+            return true;
+        }
+        if (circuitBreaker.errorThresholdPercent == null
+                || circuitBreaker.errorThresholdPercent <= 0
+                || circuitBreaker.errorThresholdPercent > 100) {
+            op.fail(new IllegalArgumentException(
+                    "circuitBreaker.errorThresholdPercent must be between 1 and 100"));
+            return false;
+        }
+        if ((circuitBreaker.minRequestCount != null && circuitBreaker.minRequestCount <= 0)
+                || (circuitBreaker.slowRequestThresholdMicros != null
+                && circuitBreaker.slowRequestThresholdMicros <= 0)
+                || (circuitBreaker.openDurationMicros != null
+                && circuitBreaker.openDurationMicros <= 0)) {
+            op.fail(new IllegalArgumentException("circuitBreaker settings must be positive"));
+            return false;
+        }
+        return true;
+    }
+
     private void updateState(State currentState, State updatedState) {
         Utils.mergeWithState(getStateDescription(), currentState, updatedState);
         if (updatedState.actions.isEmpty()) {
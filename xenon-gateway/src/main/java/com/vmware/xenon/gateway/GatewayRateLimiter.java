@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2014-2015 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.gateway;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.vmware.xenon.common.Utils;
+
+/**
+ * A lock-free token bucket used by the {@link GatewayService} to limit
+ * the rate of requests on a path, or on the whole Gateway.
+ *
+ * To avoid contention between dispatch threads, the bucket is split into
+ * stripes, each holding an equal share of the rate and burst. A thread
+ * takes permits from its own stripe first and only falls back to the
+ * other stripes when its own stripe is exhausted, so the limit applies to
+ * the total across all threads.
+ *
+ * Each stripe is a single "theoretical arrival time" (the generic cell
+ * rate algorithm), updated with compare-and-set.
+ */
+public final class GatewayRateLimiter {
+
+    private static final long MICROS_PER_SECOND = TimeUnit.SECONDS.toMicros(1);
+
+    // Stripes are spaced apart to keep them on separate cache lines.
+    private static final int PADDING = 8;
+
+    private static final int MAX_STRIPE_COUNT = Integer.highestOneBit(
+            Math.min(64, Runtime.getRuntime().availableProcessors()));
+
+    private final int ratePerSecond;
+    private final int burst;
+    private final int stripeMask;
+    private final long intervalMicros;
+    private final long toleranceMicros;
+    private final AtomicLongArray stripes;
+
+    private GatewayRateLimiter(int ratePerSecond, int burst) {
+        this.ratePerSecond = ratePerSecond;
+        this.burst = burst;
+
+        // Every stripe must be able to hold at least one permit.
+        int stripeCount = Math.min(MAX_STRIPE_COUNT, Integer.highestOneBit(burst));
+        this.stripeMask = stripeCount - 1;
+        this.intervalMicros = Math.max(1, stripeCount * MICROS_PER_SECOND / ratePerSecond);
+        this.toleranceMicros = (burst / stripeCount) * this.intervalMicros;
+        this.stripes = new AtomicLongArray(stripeCount * PADDING);
+    }
+
+    /**
+     * Returns a rate limiter for the passed settings, reusing the passed
+     * instance if its settings are unchanged so that its state is kept.
+     * Returns null if no rate limit is configured.
+     *
+     * @param ratePerSecond Sustained number of requests per second.
+     * @param burst Maximum number of requests allowed in a burst.
+     *              Optional, defaults to one second worth of requests.
+     */
+    public static GatewayRateLimiter update(GatewayRateLimiter existing,
+                                            Integer ratePerSecond, Integer burst) {
+        if (ratePerSecond == null || ratePerSecond <= 0) {
+            return null;
+        }
+        int effectiveBurst = burst != null && burst > 0 ? burst : ratePerSecond;
+        if (existing != null && existing.ratePerSecond == ratePerSecond
+                && existing.burst == effectiveBurst) {
+            return existing;
+        }
+        return new GatewayRateLimiter(ratePerSecond, effectiveBurst);
+    }
+
+    /**
+     * Returns true if the passed values are valid rate limit settings.
+     */
+    public static boolean isValid(Integer ratePerSecond, Integer burst) {
+        return (ratePerSecond == null || ratePerSecond > 0)
+                && (burst == null || burst > 0);
+    }
+
+    public int getRatePerSecond() {
+        return this.ratePerSecond;
+    }
+
+    public int getBurst() {
+        return this.burst;
+    }
+
+    /**
+     * Takes a permit. Returns 0 if a permit was available, otherwise
+     * the time in microseconds until the next permit becomes available.
+     */
+    public long tryAcquire() {
+        long now = Utils.getSystemNowMicrosUtc();
+        int home = (int) Thread.currentThread().getId();
+        long minWaitMicros = Long.MAX_VALUE;
+        for (int i = 0; i <= this.stripeMask; i++) {
+            int index = ((home + i) & this.stripeMask) * PADDING;
+            while (true) {
+                long arrival = this.stripes.get(index);
+                long next = Math.max(arrival, now) + this.intervalMicros;
+                long waitMicros = next - now - this.toleranceMicros;
+                if (waitMicros > 0) {
+                    minWaitMicros = Math.min(minWaitMicros, waitMicros);
+                    break;
+                }
+                if (this.stripes.compareAndSet(index, arrival, next)) {
+                    return 0;
+                }
+            }
+        }
+        return minWaitMicros;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2014-2015 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.gateway;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.vmware.xenon.common.Operation;
+
+/**
+ * Coalesces identical GET requests forwarded by the {@link GatewayService}
+ * on paths that have {@link GatewayPathService.State#coalesceRequests} set.
+ *
+ * The first request for a key is forwarded to the backend. Identical
+ * requests that arrive while it is in flight are held, and completed with
+ * its response once it completes, so that the backend only sees one request.
+ */
+public class GatewayRequestCoalescer {
+
+    private static final class Waiter {
+        final Operation op;
+        final long startTimeMicros;
+
+        Waiter(Operation op, long startTimeMicros) {
+            this.op = op;
+            this.startTimeMicros = startTimeMicros;
+        }
+    }
+
+    // Requests waiting on the in-flight request of each key. The
+    // list of a key is only modified while holding its map bin.
+    private final ConcurrentHashMap<String, List<Waiter>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    /**
+     * Joins the passed request to the in-flight request with the same
+     * key. Returns true if the request joined and will be completed by
+     * {@link #complete}. Returns false if there is no in-flight request, in
+     * which case the caller must forward the request and then call
+     * {@link #complete} with the same key.
+     */
+    public boolean join(String key, Operation op, long startTimeMicros) {
+        boolean[] joined = new boolean[1];
+        this.inFlight.compute(key, (k, waiters) -> {
+            if (waiters == null) {
+                return new ArrayList<>(0);
+            }
+            waiters.add(new Waiter(op, startTimeMicros));
+            joined[0] = true;
+            return waiters;
+        });
+        if (joined[0]) {
+            this.coalescedCount.incrementAndGet();
+        }
+        return joined[0];
+    }
+
+    /**
+     * Called when the forwarded request with the passed key completes.
+     * Passes each request that joined it to the passed handler.
+     */
+    public void complete(String key, GatewayRequestQueue.RequestHandler handler) {
+        List<Waiter> waiters = this.inFlight.remove(key);
+        if (waiters == null) {
+            return;
+        }
+        for (Waiter waiter : waiters) {
+            handler.handle(waiter.op, waiter.startTimeMicros);
+        }
+    }
+
+    /**
+     * Returns the number of forwarded requests that have requests
+     * waiting on them, or could have.
+     */
+    public int getInFlightCount() {
+        return this.inFlight.size();
+    }
+
+    /**
+     * Returns the total number of requests that were completed with
+     * the response of another request, instead of being forwarded.
+     */
+    public long getCoalescedCount() {
+        return this.coalescedCount.get();
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2014-2015 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.gateway;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.ServiceHost;
+import com.vmware.xenon.common.Utils;
+
+/**
+ * A bounded FIFO queue holding requests received by the {@link GatewayService}
+ * while the Gateway is {@link GatewayStatus#PAUSED}.
+ *
+ * Once the Gateway becomes AVAILABLE again, the queue is drained in arrival
+ * order at the configured rate, so that backends are not flooded on resume.
+ * Requests that stay queued longer than the configured maximum wait are
+ * failed.
+ */
+public class GatewayRequestQueue {
+
+    public static final long DEFAULT_MAX_WAIT_MICROS = TimeUnit.SECONDS.toMicros(30);
+
+    private static final long DRAIN_INTERVAL_MICROS = TimeUnit.MILLISECONDS.toMicros(100);
+
+    /**
+     * Callback used to dispatch or fail queued requests.
+     */
+    @FunctionalInterface
+    public interface RequestHandler {
+        void handle(Operation op, long startTimeMicros);
+    }
+
+    private static final class Entry {
+        final Operation op;
+        final long startTimeMicros;
+
+        Entry(Operation op, long startTimeMicros) {
+            this.op = op;
+            this.startTimeMicros = startTimeMicros;
+        }
+    }
+
+    private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    private final ServiceHost host;
+    private final Supplier<GatewayConfigService.State> configSupplier;
+    private final RequestHandler dispatchHandler;
+    private final RequestHandler expiryHandler;
+
+    /**
+     * Creates a queue. Drained requests are passed to the dispatchHandler,
+     * requests that waited too long are passed to the expiryHandler.
+     */
+    public GatewayRequestQueue(ServiceHost host,
+                               Supplier<GatewayConfigService.State> configSupplier,
+                               RequestHandler dispatchHandler,
+                               RequestHandler expiryHandler) {
+        this.host = host;
+        this.configSupplier = configSupplier;
+        this.dispatchHandler = dispatchHandler;
+        this.expiryHandler = expiryHandler;
+    }
+
+    /**
+     * Returns the number of queued requests.
+     */
+    public int size() {
+        return this.size.get();
+    }
+
+    /**
+     * Queues the passed request. Returns false if queueing is disabled
+     * or the queue is full, in which case the caller should fail the request.
+     */
+    public boolean offer(Operation op, long startTimeMicros, GatewayConfigService.State config) {
+        int capacity = config.pausedQueueCapacity != null ? config.pausedQueueCapacity : 0;
+        if (this.size.incrementAndGet() > capacity) {
+            this.size.decrementAndGet();
+            return false;
+        }
+        this.queue.offer(new Entry(op, startTimeMicros));
+
+        // The Gateway could have resumed while the request was being
+        // queued, after the last drain completed.
+        if (this.configSupplier.get().status != GatewayStatus.PAUSED) {
+            startDrain();
+        }
+        return true;
+    }
+
+    /**
+     * Starts draining the queue, unless a drain is already in progress.
+     */
+    public void startDrain() {
+        if (this.queue.isEmpty() || !this.draining.compareAndSet(false, true)) {
+            return;
+        }
+        this.host.run(this::drainBatch);
+    }
+
+    /**
+     * Fails the requests that have been queued for longer than
+     * the configured maximum wait. Called periodically.
+     */
+    public void expire() {
+        long maxWaitMicros = getMaxWaitMicros(this.configSupplier.get());
+        long now = Utils.getSystemNowMicrosUtc();
+        Entry entry;
+        while ((entry = this.queue.peek()) != null
+                && now - entry.startTimeMicros > maxWaitMicros) {
+            if (this.queue.remove(entry)) {
+                this.size.decrementAndGet();
+                this.expiryHandler.handle(entry.op, entry.startTimeMicros);
+            }
+        }
+    }
+
+    /**
+     * Fails all queued requests. Called when the Gateway stops.
+     */
+    public void clear() {
+        Entry entry;
+        while ((entry = this.queue.poll()) != null) {
+            this.size.decrementAndGet();
+            this.expiryHandler.handle(entry.op, entry.startTimeMicros);
+        }
+    }
+
+    private void drainBatch() {
+        GatewayConfigService.State config = this.configSupplier.get();
+        if (config.status == GatewayStatus.PAUSED) {
+            // Paused again. Remaining requests stay queued until the next resume.
+            this.draining.set(false);
+            return;
+        }
+
+        int rate = config.pausedQueueDrainRatePerSecond != null
+                ? config.pausedQueueDrainRatePerSecond : 0;
+        long batchSize = rate > 0
+                ? Math.max(1, rate * DRAIN_INTERVAL_MICROS / TimeUnit.SECONDS.toMicros(1))
+                : Long.MAX_VALUE;
+        long maxWaitMicros = getMaxWaitMicros(config);
+        long now = Utils.getSystemNowMicrosUtc();
+
+        Entry entry;
+        for (long i = 0; i < batchSize && (entry = this.queue.poll()) != null; i++) {
+            this.size.decrementAndGet();
+            if (now - entry.startTimeMicros > maxWaitMicros) {
+                this.expiryHandler.handle(entry.op, entry.startTimeMicros);
+                continue;
+            }
+            this.dispatchHandler.handle(entry.op, entry.startTimeMicros);
+        }
+
+        if (!this.queue.isEmpty()) {
+            this.host.schedule(this::drainBatch, DRAIN_INTERVAL_MICROS, TimeUnit.MICROSECONDS);
+            return;
+        }
+        this.draining.set(false);
+
+        // Requests could have been queued after the poll above returned null.
+        startDrain();
+    }
+
+    private static long getMaxWaitMicros(GatewayConfigService.State config) {
+        return config.pausedQueueMaxWaitMicros != null
+                ? config.pausedQueueMaxWaitMicros : DEFAULT_MAX_WAIT_MICROS;
+    }
+}
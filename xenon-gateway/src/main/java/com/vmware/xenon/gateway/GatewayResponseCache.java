@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2014-2015 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.gateway;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.Utils;
+
+/**
+ * A bounded cache of GET responses, used by the {@link GatewayService} for
+ * paths that have {@link GatewayPathService.State#responseCacheTtlMicros} set.
+ *
+ * Entries are keyed by {@link GatewayService#createRequestKey}, so that
+ * requests with different accept or authentication headers do not share
+ * responses. Lookups do not take any lock. Once the configured size is
+ * reached, entries are evicted in insertion order, except that entries
+ * served since they were last considered get a second chance, which
+ * approximates least-recently-used order without writing on every hit.
+ * Response bodies are kept as immutable byte arrays or strings, and
+ * handed to requests without copying.
+ *
+ * Every registered path has a generation that is incremented whenever a
+ * request that is not a GET is forwarded on that path. Entries created
+ * before the last increment are treated as stale. GET responses are only
+ * cached if no update started on the path while the GET was in flight.
+ */
+public class GatewayResponseCache {
+
+    public static final String PROPERTY_NAME_MAX_SIZE_BYTES = Utils.PROPERTY_NAME_PREFIX
+            + "gatewayService.responseCacheMaxSizeBytes";
+
+    /**
+     * Backend response headers that are stored with cached
+     * responses and replayed when serving them.
+     */
+    static final String[] CACHED_RESPONSE_HEADERS = {
+            "etag", "last-modified", "cache-control", "expires", "vary",
+            "content-language", "content-disposition" };
+
+    private static final class Entry {
+        final String key;
+        final String registeredPath;
+        final long generation;
+        final long expirationMicros;
+        final String contentType;
+        final long contentLength;
+        // A byte[] or a String, never modified once cached.
+        final Object body;
+        final Map<String, String> headers;
+
+        // Set when served, cleared when considered for eviction.
+        volatile boolean accessed;
+
+        Entry(String key, String registeredPath, long generation, long expirationMicros,
+                String contentType, long contentLength, Object body, Map<String, String> headers) {
+            this.key = key;
+            this.registeredPath = registeredPath;
+            this.generation = generation;
+            this.expirationMicros = expirationMicros;
+            this.contentType = contentType;
+            this.contentLength = contentLength;
+            this.body = body;
+            this.headers = headers;
+        }
+    }
+
+    private final long maxSizeBytes = Long.getLong(PROPERTY_NAME_MAX_SIZE_BYTES, 64L * 1024 * 1024);
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong sizeBytes = new AtomicLong();
+
+    // Entries in eviction order. Guarded by itself. May also hold
+    // entries that were already removed, which are skipped.
+    private final ArrayDeque<Entry> evictionQueue = new ArrayDeque<>();
+
+    private final Map<String, AtomicLong> generations = new ConcurrentHashMap<>();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * Returns the current generation of the passed registered path.
+     * Must be read before the GET request is forwarded.
+     */
+    public long getGeneration(String registeredPath) {
+        AtomicLong generation = this.generations.get(registeredPath);
+        return generation != null ? generation.get() : 0;
+    }
+
+    /**
+     * Invalidates all cached responses of the passed registered path.
+     */
+    public void invalidate(String registeredPath) {
+        this.generations.computeIfAbsent(registeredPath, k -> new AtomicLong()).incrementAndGet();
+    }
+
+    /**
+     * Completes the passed GET request from the cache. Returns
+     * false, without completing the request, on a cache miss.
+     */
+    public boolean serve(Operation op, String key, String registeredPath) {
+        Entry entry = this.entries.get(key);
+        if (entry != null && (entry.expirationMicros < Utils.getSystemNowMicrosUtc()
+                || entry.generation != getGeneration(registeredPath)
+                || !entry.registeredPath.equals(registeredPath))) {
+            remove(entry);
+            entry = null;
+        }
+        if (entry == null) {
+            this.missCount.incrementAndGet();
+            return false;
+        }
+        this.hitCount.incrementAndGet();
+        if (!entry.accessed) {
+            entry.accessed = true;
+        }
+
+        if (entry.headers != null) {
+            for (Map.Entry<String, String> header : entry.headers.entrySet()) {
+                op.addResponseHeader(header.getKey(), header.getValue());
+            }
+        }
+        op.setStatusCode(Operation.STATUS_CODE_OK);
+        op.setContentType(entry.contentType);
+        op.setContentLength(entry.contentLength);
+        op.setBodyNoCloning(entry.body);
+        op.complete();
+        return true;
+    }
+
+    /**
+     * Caches the passed successful response to a GET request, unless
+     * the registered path was updated since the passed generation.
+     */
+    public void put(String key, String registeredPath, long generation,
+                    long ttlMicros, Operation response) {
+        if (response.getStatusCode() != Operation.STATUS_CODE_OK
+                || generation != getGeneration(registeredPath)) {
+            return;
+        }
+        Object rawBody = response.getBodyRaw();
+        Object body;
+        long contentLength;
+        if (rawBody instanceof byte[]) {
+            // The response body is also handed to the client, keep our own copy.
+            byte[] bytes = (byte[]) rawBody;
+            body = Arrays.copyOf(bytes, bytes.length);
+            contentLength = bytes.length;
+        } else if (rawBody != null) {
+            String text = rawBody instanceof String ? (String) rawBody : Utils.toJson(rawBody);
+            body = text;
+            contentLength = text.getBytes(StandardCharsets.UTF_8).length;
+        } else {
+            return;
+        }
+
+        // Large responses would evict too many other entries.
+        if (contentLength > this.maxSizeBytes / 8) {
+            return;
+        }
+        Map<String, String> headers = null;
+        for (String name : CACHED_RESPONSE_HEADERS) {
+            String value = response.getResponseHeader(name);
+            if (value != null) {
+                if (headers == null) {
+                    headers = new HashMap<>();
+                }
+                headers.put(name, value);
+            }
+        }
+        Entry entry = new Entry(key, registeredPath, generation,
+                Utils.fromNowMicrosUtc(ttlMicros), response.getContentType(), contentLength,
+                body, headers != null ? Collections.unmodifiableMap(headers) : null);
+
+        synchronized (this.evictionQueue) {
+            Entry previous = this.entries.put(key, entry);
+            if (previous != null) {
+                this.sizeBytes.addAndGet(-previous.contentLength);
+            }
+            this.sizeBytes.addAndGet(contentLength);
+            this.evictionQueue.add(entry);
+            evict();
+        }
+    }
+
+    /**
+     * Removes all cached responses.
+     */
+    public void clear() {
+        synchronized (this.evictionQueue) {
+            for (Entry entry : this.entries.values()) {
+                remove(entry);
+            }
+            this.evictionQueue.clear();
+        }
+    }
+
+    public int size() {
+        return this.entries.size();
+    }
+
+    public long getSizeBytes() {
+        return this.sizeBytes.get();
+    }
+
+    public long getHitCount() {
+        return this.hitCount.get();
+    }
+
+    public long getMissCount() {
+        return this.missCount.get();
+    }
+
+    private void remove(Entry entry) {
+        if (this.entries.remove(entry.key, entry)) {
+            this.sizeBytes.addAndGet(-entry.contentLength);
+        }
+    }
+
+    // Must be called while holding the eviction queue lock.
+    private void evict() {
+        while (this.sizeBytes.get() > this.maxSizeBytes) {
+            Entry entry = this.evictionQueue.poll();
+            if (entry == null) {
+                break;
+            }
+            if (this.entries.get(entry.key) != entry) {
+                continue;
+            }
+            if (entry.accessed) {
+                entry.accessed = false;
+                this.evictionQueue.add(entry);
+                continue;
+            }
+            remove(entry);
+        }
+
+        // Drop entries that were already removed, once they
+        // make up most of the queue.
+        if (this.evictionQueue.size() > 2 * this.entries.size() + 16) {
+            this.evictionQueue.removeIf(entry -> this.entries.get(entry.key) != entry);
+        }
+    }
+}
@@ -15,10 +15,20 @@ package com.vmware.xenon.gateway;
 
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.EnumSet;
-import java.util.logging.Level;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLException;
 
 import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.ServiceClient.ConnectionPoolMetrics;
 import com.vmware.xenon.common.ServiceDocument;
 import com.vmware.xenon.common.ServiceErrorResponse;
 import com.vmware.xenon.common.StatelessService;
@@ -42,6 +52,11 @@ import com.vmware.xenon.common.Utils;
  * listed above. The cached state can be queried from the gateway service by making
  * a  HTTP GET request on the gateway-service self-link. This can be used to ensure
  * that the ingested configuration is now Active.
+ *
+ * The metrics of the gateway are also served on the self-link, which is the
+ * only path not forwarded to the backends: as ServiceStats with the
+ * {@link #QUERY_PARAM_STATS} query parameter, and in the Prometheus text
+ * format with the {@link #QUERY_PARAM_METRICS} query parameter.
  */
 public class GatewayService extends StatelessService {
     public static final String SELF_LINK = "/";
@@ -49,8 +64,63 @@ public class GatewayService extends StatelessService {
     public static final String PROPERTY_NAME_GATEWAY_SERVICE_LOGGING = Utils.PROPERTY_NAME_PREFIX
             + "gatewayService.isRequestLoggingEnabled";
 
+    public static final int STATUS_CODE_TOO_MANY_REQUESTS = 429;
+
+    public static final String QUERY_PARAM_STATS = "stats";
+    public static final String QUERY_PARAM_METRICS = "metrics";
+
+    private static final String ACCESS_LOG_FILE_NAME = "gateway-access.log";
+
+    private static final long CACHE_SNAPSHOT_INTERVAL_MICROS = Long.getLong(
+            Utils.PROPERTY_NAME_PREFIX + "gatewayService.cacheSnapshotIntervalMicros",
+            TimeUnit.SECONDS.toMicros(10));
+
+    private static final long MAX_CACHE_START_RETRY_DELAY_MICROS = TimeUnit.MINUTES.toMicros(5);
+
+    private static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4";
+
+    // Request headers that can change the response of a GET.
+    private static final String[] REQUEST_KEY_HEADERS = new String[] {
+            Operation.ACCEPT_HEADER,
+            Operation.REQUEST_AUTH_TOKEN_HEADER,
+            "cookie",
+            "authorization"
+    };
+
+    /**
+     * Error response returned for requests rejected by a rate limit.
+     * The retry delay is also returned in the Retry-After header.
+     */
+    public static class RateLimitErrorResponse extends ServiceErrorResponse {
+        public long retryAfterSeconds;
+    }
+
     private GatewayCache cache;
+    private GatewayHealthChecker healthChecker;
+    private GatewayRequestQueue pausedQueue;
+    private GatewayStreamingProxy streamingProxy;
+    private GatewayAccessLog accessLog;
+    private GatewayBackendConnectionManager connectionManager;
+    private final GatewayResponseCache responseCache = new GatewayResponseCache();
+    private final GatewayRequestCoalescer coalescer = new GatewayRequestCoalescer();
+    private final GatewayMetrics metrics = new GatewayMetrics();
+    private final GatewayAdmissionController admissionController = new GatewayAdmissionController();
+    private final GatewayHedgingPolicy hedgingPolicy = new GatewayHedgingPolicy();
+    private final AtomicLong hedgeWinCount = new AtomicLong();
     private URI configHostUri;
+    private String streamingBindAddress;
+    private int streamingPort = -1;
+    private Path cacheSnapshotFile;
+    private long savedSnapshotVersion;
+    private long lastSnapshotSaveMicros;
+
+    // Starting the cache is retried from the periodic maintenance, with
+    // exponential backoff, if it failed while serving from the snapshot.
+    // Guarded by this.
+    private boolean isCacheStarted;
+    private boolean isCacheStarting = true;
+    private long cacheStartRetryDelayMicros;
+    private long nextCacheStartMicros;
 
     private final boolean isRequestLoggingEnabled = Boolean
             .getBoolean(PROPERTY_NAME_GATEWAY_SERVICE_LOGGING);
@@ -58,6 +128,7 @@ public class GatewayService extends StatelessService {
     public GatewayService(URI configHostUri) {
         super(ServiceDocument.class);
         super.toggleOption(ServiceOption.URI_NAMESPACE_OWNER, true);
+        super.toggleOption(ServiceOption.PERIODIC_MAINTENANCE, true);
         this.configHostUri = configHostUri;
     }
 
@@ -69,19 +140,175 @@ public class GatewayService extends StatelessService {
             // updated.
             this.cache = GatewayCache.create(
                     getHost(), this.configHostUri, GatewayUriPaths.DEFAULT_CONFIG_PATH);
+            this.healthChecker = new GatewayHealthChecker(getHost());
+            this.connectionManager = new GatewayBackendConnectionManager(getHost());
+
+            // Requests are logged asynchronously, to a file
+            // in the host sandbox unless configured otherwise.
+            if (this.isRequestLoggingEnabled) {
+                this.accessLog = GatewayAccessLog.create(
+                        Paths.get(getHost().getStorageSandbox()).resolve(ACCESS_LOG_FILE_NAME));
+                this.accessLog.start();
+            }
+
+            // Requests received while the gateway is PAUSED are queued
+            // and drained once the gateway status changes.
+            this.pausedQueue = new GatewayRequestQueue(getHost(),
+                    () -> this.cache.getSnapshot().configState,
+                    this::dispatchRequest,
+                    (o, startTimeMicros) -> failRequest(o, null, startTimeMicros,
+                            Operation.STATUS_CODE_UNAVAILABLE,
+                            "Gateway is currently PAUSED. Please retry later."));
+            this.cache.setStatusChangeHandler((status) -> {
+                if (status != GatewayStatus.PAUSED) {
+                    this.pausedQueue.startDrain();
+                }
+            });
 
+            // If a snapshot of the cache was saved by a previous run, serve
+            // from it right away instead of waiting for the replay of the
+            // configuration. The cache reconciles it once the replay arrives.
+            boolean isSnapshotLoaded = loadCacheSnapshot();
             this.cache.start((t) -> {
+                onCacheStartCompleted(t);
                 if (t != null) {
+                    if (isSnapshotLoaded) {
+                        logSevere("Failed to start the cache, serving from the snapshot: %s",
+                                t.toString());
+                        return;
+                    }
                     startOp.fail(t);
                     return;
                 }
-                startOp.complete();
+                if (!isSnapshotLoaded) {
+                    completeStart(startOp);
+                }
             });
+            if (isSnapshotLoaded) {
+                completeStart(startOp);
+            }
         } catch (Throwable t) {
             startOp.fail(t);
         }
     }
 
+    private void completeStart(Operation startOp) {
+        try {
+            startStreamingProxy();
+        } catch (Throwable e) {
+            startOp.fail(e);
+            return;
+        }
+        startOp.complete();
+    }
+
+    private synchronized void onCacheStartCompleted(Throwable e) {
+        this.isCacheStarting = false;
+        if (e == null) {
+            this.isCacheStarted = true;
+            return;
+        }
+        this.cacheStartRetryDelayMicros = Math.min(MAX_CACHE_START_RETRY_DELAY_MICROS,
+                Math.max(getHost().getMaintenanceIntervalMicros(), 2 * this.cacheStartRetryDelayMicros));
+        this.nextCacheStartMicros = Utils.getSystemNowMicrosUtc() + this.cacheStartRetryDelayMicros;
+    }
+
+    // Retries starting the cache, once the backoff delay of the last
+    // failure has elapsed. Until it succeeds, the cache keeps serving
+    // from the snapshot, and reports it as stale.
+    private void retryCacheStart() {
+        synchronized (this) {
+            if (this.isCacheStarted || this.isCacheStarting
+                    || Utils.getSystemNowMicrosUtc() < this.nextCacheStartMicros) {
+                return;
+            }
+            this.isCacheStarting = true;
+        }
+        logInfo("Retrying to start the cache");
+        this.cache.start((e) -> {
+            if (e != null) {
+                logWarning("Failed to start the cache, serving from the snapshot: %s", e.toString());
+            } else {
+                logInfo("Cache started, the snapshot is reconciled");
+            }
+            onCacheStartCompleted(e);
+        });
+    }
+
+    /**
+     * Enables saving the cached configuration to the passed file,
+     * periodically and on stop, and loading it on start. Must be called
+     * before the service is started.
+     */
+    public void setCacheSnapshotFile(Path file) {
+        this.cacheSnapshotFile = file;
+    }
+
+    private boolean loadCacheSnapshot() {
+        if (this.cacheSnapshotFile == null) {
+            return false;
+        }
+        try {
+            return this.cache.loadSnapshot(this.cacheSnapshotFile);
+        } catch (Throwable e) {
+            logWarning("Failed to load the cache snapshot %s: %s",
+                    this.cacheSnapshotFile, e.toString());
+            return false;
+        }
+    }
+
+    private synchronized void saveCacheSnapshot(boolean force) {
+        if (this.cacheSnapshotFile == null || this.cache.getSnapshot().version == this.savedSnapshotVersion) {
+            return;
+        }
+        long now = Utils.getSystemNowMicrosUtc();
+        if (!force && now - this.lastSnapshotSaveMicros < CACHE_SNAPSHOT_INTERVAL_MICROS) {
+            return;
+        }
+        this.lastSnapshotSaveMicros = now;
+        try {
+            this.savedSnapshotVersion = this.cache.saveSnapshot(this.cacheSnapshotFile);
+        } catch (Throwable e) {
+            logWarning("Failed to save the cache snapshot %s: %s",
+                    this.cacheSnapshotFile, e.toString());
+        }
+    }
+
+    /**
+     * Enables the streaming proxy on the passed address and port. Must be
+     * called before the service is started. A negative port disables streaming.
+     */
+    public void setStreamingAddress(String bindAddress, int port) {
+        this.streamingBindAddress = bindAddress;
+        this.streamingPort = port;
+    }
+
+    /**
+     * Returns the port the streaming proxy is listening on,
+     * or -1 if streaming is disabled.
+     */
+    public int getStreamingPort() {
+        return this.streamingProxy != null ? this.streamingProxy.getPort() : -1;
+    }
+
+    /**
+     * Returns the number of GET requests that were completed with the
+     * response of an identical in-flight request, instead of being forwarded.
+     */
+    public long getCoalescedRequestCount() {
+        return this.coalescer.getCoalescedCount();
+    }
+
+    private void startStreamingProxy() throws InterruptedException, SSLException {
+        if (this.streamingPort < 0) {
+            return;
+        }
+        this.streamingProxy = new GatewayStreamingProxy(getHost(),
+                () -> this.cache.getSnapshot(), this.admissionController, this.healthChecker,
+                this.responseCache, this::recordRequest);
+        this.streamingProxy.start(this.streamingBindAddress, this.streamingPort);
+    }
+
     /**
      * The main gateway routine, called for each intercepted request.
      */
@@ -96,83 +323,350 @@ public class GatewayService extends StatelessService {
             return;
         }
 
-        final long startTimeMicros = Utils.getSystemNowMicrosUtc();
+        dispatchRequest(op, Utils.getSystemNowMicrosUtc());
+    }
+
+    /**
+     * Filters the passed request and forwards it to a backend node.
+     * Also called for requests drained from the PAUSED queue.
+     */
+    private void dispatchRequest(Operation op, long startTimeMicros) {
+        // Read a single consistent snapshot of the cached configuration
+        // and use it for the rest of this request. The registered path with
+        // the longest prefix matching the canonical requested path is used,
+        // which also covers child-service requests and wildcard/templated paths.
+        GatewayCache.CachedState snapshot = this.cache.getSnapshot();
+        GatewayAdmissionController.Admission admission = this.admissionController.newAdmission(
+                snapshot, op.getAction(), op.getUri().getRawPath());
+        GatewayPathService.State pathState = admission.getPathState();
 
-        // Fail the request if the gateway is marked as
-        // UN-AVAILABLE.
-        if (this.cache.getGatewayStatus() == GatewayStatus.UNAVAILABLE) {
-            failRequest(op, startTimeMicros, Operation.STATUS_CODE_UNAVAILABLE,
-                    "Gateway is currently unavailable. Please retry later.");
+        ServiceErrorResponse error = this.admissionController.checkRequest(admission);
+        if (error != null) {
+            failRequest(op, pathState, startTimeMicros, error);
             return;
         }
 
-        if (this.cache.filterRequests()) {
-            // Check if the requested path exists in our allowed uris.
-            EnumSet<Action> actions = this.cache.getSupportedActions(path);
-            if (actions == null) {
-                // If not, this could be a child-service request. Get
-                // the parent path and check if exists in allowed uris.
-                path = UriUtils.getParentPath(path);
-                actions = this.cache.getSupportedActions(path);
-                if (actions == null) {
-                    failRequest(op, startTimeMicros, Operation.STATUS_CODE_NOT_FOUND,
-                            "Requested path %s not found.", path);
-                    return;
-                }
+        // Check if the Gateway has been PAUSED. If so, queue the operation.
+        if (admission.isPaused()) {
+            if (this.pausedQueue.offer(op, startTimeMicros, snapshot.configState)) {
+                return;
             }
+            failRequest(op, pathState, startTimeMicros, Operation.STATUS_CODE_UNAVAILABLE,
+                    "Gateway is currently PAUSED. Please retry later.");
+            return;
+        }
 
-            // Check if the requested Action is allowed on the requested path.
-            if (!actions.contains(op.getAction())) {
-                failRequest(op, startTimeMicros, Operation.STATUS_CODE_BAD_METHOD,
-                        "Requested verb %s not allowed on path %s.", op.getAction(), path);
+        // Queued requests are only charged once they are drained.
+        error = this.admissionController.checkRateLimit(admission);
+        if (error != null) {
+            failRequest(op, pathState, startTimeMicros, error);
+            return;
+        }
+
+        // Serve GETs on paths with response caching from the cache. Any
+        // other request on such a path invalidates its cached responses.
+        boolean isGet = op.getAction() == Action.GET;
+        boolean isCoalesced = isGet && pathState != null
+                && GatewayCache.CachedState.isRequestCoalescingEnabled(pathState);
+        GatewayPathService.State cachePath = pathState != null
+                && GatewayCache.CachedState.isResponseCachingEnabled(pathState) ? pathState : null;
+        String requestKey = isCoalesced || (isGet && cachePath != null) ? createRequestKey(op) : null;
+        if (cachePath != null) {
+            if (isGet && this.responseCache.serve(op, requestKey, cachePath.path)) {
+                recordRequest(op, pathState, startTimeMicros, -1,
+                        op.getStatusCode(), op.getContentLength());
                 return;
             }
+            if (!isGet) {
+                this.responseCache.invalidate(cachePath.path);
+            }
         }
+        long cacheGeneration = cachePath != null && isGet
+                ? this.responseCache.getGeneration(cachePath.path) : 0;
 
-        // Check if the Gateway has been PAUSED. If so, queue the operation.
-        if (this.cache.getGatewayStatus() == GatewayStatus.PAUSED) {
-            failRequest(op, startTimeMicros, Operation.STATUS_CODE_UNAVAILABLE,
-                    "Gateway is currently PAUSED. Please retry later.");
+        // If coalescing is turned-on for the path, and an identical GET is
+        // already in flight, wait for its response instead. Such requests
+        // are not forwarded, so they take no permits. From here on, requests
+        // that joined this one must be completed on every exit path.
+        if (isCoalesced && this.coalescer.join(requestKey, op, startTimeMicros)) {
             return;
         }
 
-        // Select one available node randomly. If there are no backend
-        // nodes that are currently available, simply fail the request.
-        URI nodeAddress = this.cache.getForwardingUri();
-        if (nodeAddress == null) {
-            failRequest(op, startTimeMicros, Operation.STATUS_CODE_UNAVAILABLE,
-                    "Gateway is currently unavailable. Please retry later.");
+        // Take a slot of the concurrency limit, and select a backend whose
+        // circuit is not open for the path.
+        error = this.admissionController.acquireBackend(admission);
+        if (error != null) {
+            failRequest(op, pathState, startTimeMicros, error);
+            if (isCoalesced) {
+                ServiceErrorResponse rsp = error;
+                this.coalescer.complete(requestKey, (waiter, waiterStartTimeMicros) ->
+                        failRequest(waiter, pathState, waiterStartTimeMicros, rsp));
+            }
             return;
         }
 
-        // Forward the request to the selected backend node.
-        Operation outboundOp = op.clone();
-        outboundOp.setUri(createNewUri(nodeAddress, op.getUri()));
+        // Forward the request to the selected backend node. On idempotent
+        // paths, a hedged copy is sent to another backend if the selected
+        // one is slow to respond, and the first successful response is used.
+        boolean isHttp2Enabled = Boolean.TRUE.equals(snapshot.configState.backendHttp2Enabled);
+        long hedgeDelayMicros = pathState != null && Boolean.TRUE.equals(pathState.idempotent)
+                ? getHedgeDelayMicros(pathState) : -1;
+        HedgedResponse hedgedResponse = hedgeDelayMicros >= 0 ? new HedgedResponse() : null;
+        BackendResponseHandler responseHandler = (o, e, backendLatencyMicros, isHedge) -> {
+            if (hedgedResponse != null
+                    && !hedgedResponse.tryComplete(GatewayHealthChecker.isBackendFailure(o, e))) {
+                return;
+            }
+            if (isHedge) {
+                this.hedgeWinCount.incrementAndGet();
+            }
+            updateResponseCache(cachePath, requestKey, cacheGeneration, o, e);
+            completeRequest(op, pathState, startTimeMicros, backendLatencyMicros, o, e);
+            if (isCoalesced) {
+                this.coalescer.complete(requestKey,
+                        (waiter, waiterStartTimeMicros) -> completeRequest(
+                                waiter, pathState, waiterStartTimeMicros, -1, o, e));
+            }
+        };
+        Operation outboundOp = forwardRequest(op, admission, isHttp2Enabled, false, responseHandler);
+        if (hedgedResponse != null) {
+            getHost().schedule(() -> sendHedgedRequest(outboundOp, admission,
+                    hedgedResponse, isHttp2Enabled, responseHandler),
+                    hedgeDelayMicros, TimeUnit.MICROSECONDS);
+        }
+    }
+
+    /**
+     * Called with the response of a request forwarded to a backend.
+     */
+    @FunctionalInterface
+    private interface BackendResponseHandler {
+        void onResponse(Operation o, Throwable e, long backendLatencyMicros, boolean isHedge);
+    }
+
+    /**
+     * Tracks the copies of a hedged request that are in flight, so that
+     * the request is completed once: with the first response that is not
+     * a backend failure, or with the last response otherwise.
+     */
+    private static final class HedgedResponse {
+        private final AtomicInteger outstandingCount = new AtomicInteger(1);
+        private final AtomicBoolean isCompleted = new AtomicBoolean();
+
+        boolean isCompleted() {
+            return this.isCompleted.get();
+        }
+
+        /**
+         * Registers a new copy. Returns false if the
+         * request was completed in the meantime.
+         */
+        boolean tryAddCopy() {
+            this.outstandingCount.incrementAndGet();
+            if (this.isCompleted.get()) {
+                this.outstandingCount.decrementAndGet();
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Called with the response of a copy. Returns true if
+         * that response should complete the request.
+         */
+        boolean tryComplete(boolean isFailure) {
+            int remaining = this.outstandingCount.decrementAndGet();
+            if (isFailure && remaining > 0) {
+                return false;
+            }
+            return this.isCompleted.compareAndSet(false, true);
+        }
+    }
+
+    /**
+     * Sends a copy of the passed request to the backend selected by the
+     * passed admission, and returns the copy. Updates the state of the
+     * backend and gives back the permits of the admission once the
+     * backend responds. The passed handler is always called, also if
+     * the copy could not be sent.
+     */
+    private Operation forwardRequest(Operation request,
+                                     GatewayAdmissionController.Admission admission,
+                                     boolean isHttp2Enabled, boolean isHedge,
+                                     BackendResponseHandler handler) {
+        GatewayBackend backend = admission.getBackend();
+        Operation outboundOp = request.clone();
         outboundOp.forceRemote();
+        long backendStartTimeMicros = Utils.getSystemNowMicrosUtc();
         outboundOp.setCompletion((o, e) -> {
-            op.transferResponseHeadersFrom(o);
-            op.setStatusCode(o.getStatusCode());
-            op.setContentType(o.getContentType());
-            op.setContentLength(o.getContentLength());
-            op.setBodyNoCloning(o.getBodyRaw());
-            if (e != null) {
-                op.fail(e);
-            } else {
-                op.complete();
-            }
-            logRequest(op, startTimeMicros, o.getStatusCode(), o.getContentLength());
+            long backendLatencyMicros = Utils.getSystemNowMicrosUtc() - backendStartTimeMicros;
+            backend.onRequestEnd();
+            this.healthChecker.onResponse(backend, o, e, backendLatencyMicros);
+            admission.onResponse(GatewayHealthChecker.isBackendFailure(o, e), backendLatencyMicros);
+            handler.onResponse(o, e, backendLatencyMicros, isHedge);
         });
-        getHost().sendRequest(outboundOp);
+        backend.onRequestStart();
+        try {
+            outboundOp.setUri(createNewUri(backend.getUri(), request.getUri()));
+            this.connectionManager.send(outboundOp, backend, isHttp2Enabled);
+        } catch (Throwable e) {
+            // Runs the completion above, unless it already ran.
+            outboundOp.fail(e);
+        }
+        return outboundOp;
+    }
+
+    /**
+     * Returns the time after which a request on the passed idempotent
+     * path is hedged, or -1 if it should not be hedged.
+     */
+    private long getHedgeDelayMicros(GatewayPathService.State pathState) {
+        GatewayMetrics.PathMetrics pathMetrics = this.metrics.getMetrics(pathState.path);
+        return this.hedgingPolicy.getDelayMicros(pathState.path,
+                pathMetrics != null ? pathMetrics.getBackendLatency() : null);
+    }
+
+    /**
+     * Sends a hedged copy of the passed request to a backend other than
+     * the primary one, unless the request has completed, there is no such
+     * backend, or the hedging budget or the concurrency limit is exhausted.
+     */
+    private void sendHedgedRequest(Operation request,
+                                   GatewayAdmissionController.Admission primary,
+                                   HedgedResponse hedgedResponse, boolean isHttp2Enabled,
+                                   BackendResponseHandler handler) {
+        if (hedgedResponse.isCompleted()) {
+            return;
+        }
+        GatewayAdmissionController.Admission hedge = this.admissionController.acquireHedge(primary);
+        if (hedge == null) {
+            return;
+        }
+        if (!this.hedgingPolicy.tryAcquire() || !hedgedResponse.tryAddCopy()) {
+            hedge.release();
+            return;
+        }
+        forwardRequest(request, hedge, isHttp2Enabled, true, handler);
+    }
+
+    /**
+     * Completes the passed request with the response of the
+     * passed backend request.
+     */
+    private void completeRequest(Operation op, GatewayPathService.State pathState,
+                                 long startTimeMicros, long backendLatencyMicros,
+                                 Operation o, Throwable e) {
+        op.transferResponseHeadersFrom(o);
+        op.setStatusCode(o.getStatusCode());
+        op.setContentType(o.getContentType());
+        op.setContentLength(o.getContentLength());
+        op.setBodyNoCloning(o.getBodyRaw());
+        if (e != null) {
+            op.fail(e);
+        } else {
+            op.complete();
+        }
+        recordRequest(op, pathState, startTimeMicros, backendLatencyMicros,
+                o.getStatusCode(), o.getContentLength());
+    }
+
+    /**
+     * Returns the key identifying equivalent GET requests. Built from the
+     * path, query and the request headers that can change the response.
+     */
+    static String createRequestKey(Operation op) {
+        StringBuilder sb = new StringBuilder(op.getUri().getRawPath());
+        String query = op.getUri().getRawQuery();
+        if (query != null) {
+            sb.append('?').append(query);
+        }
+        for (String header : REQUEST_KEY_HEADERS) {
+            String value = op.getRequestHeader(header);
+            sb.append('\n');
+            if (value != null) {
+                sb.append(value);
+            }
+        }
+        return sb.toString();
+    }
+
+    private void updateResponseCache(GatewayPathService.State cachePath, String cacheKey,
+                                     long cacheGeneration, Operation o, Throwable e) {
+        if (cachePath == null) {
+            return;
+        }
+        if (cacheKey == null) {
+            // The update completed. Invalidate again, in case GETs that were
+            // forwarded while the update was in progress got cached.
+            this.responseCache.invalidate(cachePath.path);
+            return;
+        }
+        if (e == null) {
+            this.responseCache.put(cacheKey, cachePath.path, cacheGeneration,
+                    cachePath.responseCacheTtlMicros, o);
+        }
+    }
+
+    /**
+     * Called periodically by the ServiceHost. Used to actively
+     * check the health of the backend nodes.
+     */
+    @Override
+    public void handlePeriodicMaintenance(Operation post) {
+        if (this.cache != null) {
+            GatewayCache.CachedState snapshot = this.cache.getSnapshot();
+            GatewayBackend[] backends = snapshot.getBackends();
+            this.healthChecker.checkBackends(backends);
+            for (GatewayBackend backend : backends) {
+                backend.retainCircuitBreakers(snapshot.paths.keySet());
+            }
+            this.pausedQueue.expire();
+            retryCacheStart();
+            saveCacheSnapshot(false);
+        }
+        post.complete();
     }
 
     /**
      * Called when a GET is issued on the self-link of the
      * GatewayService. This method returns the cached state of the
-     * Gateway.
+     * Gateway, along with the status of the circuit breakers, or
+     * the metrics of the Gateway if requested through a query parameter.
      */
     @Override
     public void handleGet(Operation op) {
-        op.setBodyNoCloning(this.cache.getGatewayState());
+        Map<String, String> params = UriUtils.parseUriQueryParams(op.getUri());
+        if (params.containsKey(QUERY_PARAM_STATS)) {
+            op.setBodyNoCloning(this.metrics.toServiceStats(
+                    getCounters(), getGauges(), getConnectionPoolMetrics()));
+            op.complete();
+            return;
+        }
+        if (params.containsKey(QUERY_PARAM_METRICS)) {
+            op.setContentType(PROMETHEUS_CONTENT_TYPE);
+            op.setBodyNoCloning(this.metrics.toPrometheusText(
+                    getCounters(), getGauges(), getConnectionPoolMetrics()));
+            op.complete();
+            return;
+        }
+
+        GatewayCache.CachedState state = this.cache.getGatewayState();
+        Map<String, Map<String, GatewayCircuitBreaker.Status>> circuitBreakers = new LinkedHashMap<>();
+        for (GatewayBackend backend : state.getBackends()) {
+            Map<String, GatewayCircuitBreaker.Status> backendStatus = new TreeMap<>();
+            for (Map.Entry<String, GatewayCircuitBreaker> entry
+                    : backend.getCircuitBreakers().entrySet()) {
+                backendStatus.put(entry.getKey(), entry.getValue().getStatus());
+            }
+            if (!backendStatus.isEmpty()) {
+                circuitBreakers.put(backend.getUri().toString(), backendStatus);
+            }
+        }
+        if (!circuitBreakers.isEmpty()) {
+            state = state.withCircuitBreakers(circuitBreakers);
+        }
+        state.isStale = this.cache.isStale();
+        op.setBodyNoCloning(state);
         op.complete();
     }
 
@@ -184,7 +678,7 @@ public class GatewayService extends StatelessService {
     public void handleDelete(Operation op) {
         long startTimeMicros = Utils.getSystemNowMicrosUtc();
         if (!op.hasPragmaDirective(Operation.PRAGMA_DIRECTIVE_NO_INDEX_UPDATE)) {
-            failRequest(op, startTimeMicros, Operation.STATUS_CODE_BAD_METHOD,
+            failRequest(op, null, startTimeMicros, Operation.STATUS_CODE_BAD_METHOD,
                     "DELETE not supported on Gateway endpoint.");
             return;
         }
@@ -196,11 +690,21 @@ public class GatewayService extends StatelessService {
      */
     @Override
     public void handleStop(Operation op) {
+        saveCacheSnapshot(true);
         this.cache.stop();
+        this.pausedQueue.clear();
+        this.responseCache.clear();
+        if (this.streamingProxy != null) {
+            this.streamingProxy.stop();
+        }
+        if (this.accessLog != null) {
+            this.accessLog.stop();
+        }
+        this.connectionManager.stop();
         op.complete();
     }
 
-    private URI createNewUri(URI nodeAddress, URI opUri) {
+    static URI createNewUri(URI nodeAddress, URI opUri) {
         try {
             return new URI(
                     nodeAddress.getScheme(), opUri.getUserInfo(), nodeAddress.getHost(),
@@ -210,25 +714,90 @@ public class GatewayService extends StatelessService {
         }
     }
 
-    private void failRequest(Operation op, long startTimeMicros,
+    private void failRequest(Operation op, GatewayPathService.State pathState, long startTimeMicros,
                              int statusCode, String msgFormat, Object... args) {
+        failRequest(op, pathState, startTimeMicros, createErrorResponse(statusCode, msgFormat, args));
+    }
+
+    private void failRequest(Operation op, GatewayPathService.State pathState, long startTimeMicros,
+                             ServiceErrorResponse rsp) {
+        if (rsp instanceof RateLimitErrorResponse) {
+            op.addResponseHeader(Operation.RETRY_AFTER_HEADER,
+                    Long.toString(((RateLimitErrorResponse) rsp).retryAfterSeconds));
+        }
+        op.fail(rsp.statusCode, new IllegalStateException(rsp.message), rsp);
+        recordRequest(op, pathState, startTimeMicros, -1, rsp.statusCode, op.getContentLength());
+    }
+
+    static ServiceErrorResponse createErrorResponse(int statusCode, String msgFormat, Object... args) {
         ServiceErrorResponse rsp = new ServiceErrorResponse();
         rsp.message = String.format(msgFormat, args);
         rsp.statusCode = statusCode;
-        op.fail(statusCode, new IllegalStateException(rsp.message), rsp);
-        logRequest(op, startTimeMicros, statusCode, op.getContentLength());
-    }
-
-    // Requests are logged in the following format:
-    // Action - Requested UriPath - StatusCode - ContentLength (in bytes) - Time taken (in milliseconds)
-    // Sample: POST /core/examples 200 416B 11.00ms
-    private void logRequest(Operation op, long startTimeMicros, int statusCode, long contentLength) {
-        if (this.isRequestLoggingEnabled) {
-            long endTimeMicros = Utils.getSystemNowMicrosUtc();
-            Level level = op.getStatusCode() < Operation.STATUS_CODE_FAILURE_THRESHOLD ?
-                    Level.INFO : Level.WARNING;
-            log(level, "%s %s %d %dB %.2fms", op.getAction(), op.getUri().getPath(),
-                    statusCode, contentLength, (endTimeMicros - startTimeMicros) / 1000.0);
+        return rsp;
+    }
+
+    private Map<String, Long> getCounters() {
+        Map<String, Long> counters = new LinkedHashMap<>();
+        counters.put("responseCacheHitCount", this.responseCache.getHitCount());
+        counters.put("responseCacheMissCount", this.responseCache.getMissCount());
+        counters.put("coalescedRequestCount", this.coalescer.getCoalescedCount());
+        counters.put("circuitBreakerRejectedCount",
+                this.admissionController.getCircuitBreakerRejectedCount());
+        counters.put("hedgedRequestCount", this.hedgingPolicy.getHedgeCount());
+        counters.put("hedgeWinCount", this.hedgeWinCount.get());
+        counters.put("concurrencyLimitRejectedCount",
+                this.admissionController.getConcurrencyLimitRejectedCount());
+        if (this.accessLog != null) {
+            counters.put("accessLogDroppedCount", this.accessLog.getDroppedCount());
+        }
+        return counters;
+    }
+
+    // Returns the current adaptive concurrency limit and the number
+    // of requests in flight, if the limit is turned-on.
+    private Map<String, Long> getGauges() {
+        Map<String, Long> gauges = new LinkedHashMap<>();
+        gauges.put(GatewayMetrics.STAT_NAME_CACHE_STALE, this.cache.isStale() ? 1L : 0L);
+        GatewayConcurrencyLimiter concurrencyLimiter = this.cache.getSnapshot().concurrencyLimiter;
+        if (concurrencyLimiter != null) {
+            gauges.put(GatewayMetrics.STAT_NAME_CONCURRENCY_LIMIT, (long) concurrencyLimiter.getLimit());
+            gauges.put(GatewayMetrics.STAT_NAME_IN_FLIGHT_REQUESTS, (long) concurrencyLimiter.getInFlightCount());
+        }
+        return gauges;
+    }
+
+    // Returns the statistics of the HTTP/2 connection pools
+    // of the configured backends, keyed by backend URI.
+    private Map<String, ConnectionPoolMetrics> getConnectionPoolMetrics() {
+        Map<String, ConnectionPoolMetrics> pools = new LinkedHashMap<>();
+        for (GatewayBackend backend : this.cache.getSnapshot().getBackends()) {
+            ConnectionPoolMetrics pool = this.connectionManager.getPoolMetrics(backend);
+            if (pool != null) {
+                pools.put(backend.getUri().toString(), pool);
+            }
+        }
+        return pools;
+    }
+
+    // Records the request in the Gateway metrics and the access log.
+    // A negative backend latency means that the request was not
+    // forwarded to a backend.
+    private void recordRequest(Operation op, GatewayPathService.State pathState, long startTimeMicros,
+                               long backendLatencyMicros, int statusCode, long contentLength) {
+        recordRequest(op.getAction(), op.getUri().getPath(), pathState, startTimeMicros,
+                backendLatencyMicros, statusCode, contentLength);
+    }
+
+    // Also called by the streaming proxy.
+    private void recordRequest(Action action, String path, GatewayPathService.State pathState,
+                               long startTimeMicros, long backendLatencyMicros, int statusCode,
+                               long contentLength) {
+        long endTimeMicros = Utils.getSystemNowMicrosUtc();
+        this.metrics.record(pathState != null ? pathState.path : null, statusCode,
+                endTimeMicros - startTimeMicros, backendLatencyMicros);
+        if (this.accessLog != null) {
+            this.accessLog.log(action, path, statusCode, contentLength,
+                    startTimeMicros, endTimeMicros - startTimeMicros);
         }
     }
 }
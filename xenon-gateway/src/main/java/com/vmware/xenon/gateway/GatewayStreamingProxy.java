@@ -0,0 +1,698 @@
+/*
+ * Copyright (c) 2014-2015 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.gateway;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+
+import javax.net.ssl.SSLException;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.pool.AbstractChannelPoolHandler;
+import io.netty.channel.pool.ChannelPool;
+import io.netty.channel.pool.SimpleChannelPool;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.Service.Action;
+import com.vmware.xenon.common.ServiceErrorResponse;
+import com.vmware.xenon.common.ServiceHost;
+import com.vmware.xenon.common.UriUtils;
+import com.vmware.xenon.common.Utils;
+
+/**
+ * A pass-through HTTP proxy used by the {@link GatewayService} for large
+ * request and response bodies.
+ *
+ * Requests received on the streaming port are admitted by the same
+ * {@link GatewayAdmissionController} as the requests of the GatewayService,
+ * with the same cached configuration, but bodies are never decoded: the
+ * (pooled, direct) buffers received from the client are relayed to the
+ * selected backend chunk by chunk, and the response is relayed back the same
+ * way. Headers, including content-type and content-length, are preserved.
+ * Reads are paused while the other side is not writable, so memory use is
+ * bounded regardless of the body size.
+ *
+ * Backend connections are kept alive and pooled per backend and per event
+ * loop, so that a backend channel is always served by the event loop of
+ * the client channel it relays for. Backends with an https URI are
+ * connected to over TLS, and URIs without a port use the default port of
+ * their scheme.
+ *
+ * Unlike the GatewayService, requests received while the gateway is PAUSED
+ * are failed instead of queued, and responses are neither cached, coalesced
+ * nor hedged. The outcome of every relayed request is reported to the
+ * circuit breaker and the concurrency limiter once the backend response
+ * headers arrive. Completed requests are recorded in the metrics and the
+ * access log of the GatewayService, with the number of response body
+ * bytes relayed.
+ */
+public class GatewayStreamingProxy {
+
+    /**
+     * Callback used to record completed requests.
+     */
+    @FunctionalInterface
+    public interface RequestRecorder {
+        void record(Action action, String path, GatewayPathService.State pathState,
+                    long startTimeMicros, long backendLatencyMicros, int statusCode,
+                    long contentLength);
+    }
+
+    private final ServiceHost host;
+    private final Supplier<GatewayCache.CachedState> snapshotSupplier;
+    private final GatewayAdmissionController admissionController;
+    private final GatewayHealthChecker healthChecker;
+    private final GatewayResponseCache responseCache;
+    private final RequestRecorder recorder;
+
+    private EventLoopGroup bossGroup;
+    private EventLoopGroup workerGroup;
+    private Channel serverChannel;
+    private SslContext sslContext;
+
+    // Backend channel pools of each event loop, keyed by backend URI. The
+    // pools of an event loop are only accessed from that event loop.
+    private final Map<EventLoop, Map<URI, ChannelPool>> pools = new ConcurrentHashMap<>();
+
+    public GatewayStreamingProxy(ServiceHost host,
+                                 Supplier<GatewayCache.CachedState> snapshotSupplier,
+                                 GatewayAdmissionController admissionController,
+                                 GatewayHealthChecker healthChecker,
+                                 GatewayResponseCache responseCache,
+                                 RequestRecorder recorder) {
+        this.host = host;
+        this.snapshotSupplier = snapshotSupplier;
+        this.admissionController = admissionController;
+        this.healthChecker = healthChecker;
+        this.responseCache = responseCache;
+        this.recorder = recorder;
+    }
+
+    /**
+     * Starts listening on the passed address. A port of 0 picks
+     * any available port, see {@link #getPort()}.
+     */
+    public void start(String bindAddress, int port) throws InterruptedException, SSLException {
+        this.sslContext = SslContextBuilder.forClient().build();
+        this.bossGroup = new NioEventLoopGroup(1);
+        this.workerGroup = new NioEventLoopGroup(Utils.DEFAULT_THREAD_COUNT);
+        ServerBootstrap bootstrap = new ServerBootstrap()
+                .group(this.bossGroup, this.workerGroup)
+                .channel(NioServerSocketChannel.class)
+                .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(new HttpServerCodec());
+                        ch.pipeline().addLast(new FrontendHandler());
+                    }
+                });
+        this.serverChannel = bootstrap.bind(bindAddress, port).sync().channel();
+        this.host.log(Level.INFO, "Streaming proxy listening on %s:%d", bindAddress, getPort());
+    }
+
+    /**
+     * Returns the port the proxy is listening on, or -1 if not started.
+     */
+    public int getPort() {
+        if (this.serverChannel == null) {
+            return -1;
+        }
+        return ((InetSocketAddress) this.serverChannel.localAddress()).getPort();
+    }
+
+    /**
+     * Stops listening and closes all connections.
+     */
+    public void stop() {
+        if (this.serverChannel != null) {
+            this.serverChannel.close();
+            this.serverChannel = null;
+        }
+        for (Map<URI, ChannelPool> loopPools : this.pools.values()) {
+            for (ChannelPool pool : loopPools.values()) {
+                pool.close();
+            }
+        }
+        this.pools.clear();
+        if (this.bossGroup != null) {
+            this.bossGroup.shutdownGracefully();
+            this.bossGroup = null;
+        }
+        if (this.workerGroup != null) {
+            this.workerGroup.shutdownGracefully();
+            this.workerGroup = null;
+        }
+    }
+
+    /**
+     * Returns the port of the passed backend URI, or the default
+     * port of its scheme if it has none.
+     */
+    static int getPort(URI uri) {
+        if (uri.getPort() > 0) {
+            return uri.getPort();
+        }
+        return UriUtils.HTTPS_SCHEME.equals(uri.getScheme()) ? 443 : 80;
+    }
+
+    /**
+     * Returns the pool of connections to the passed backend, for the
+     * passed event loop, or null if the backend URI is not supported.
+     * Must be called from the passed event loop.
+     */
+    private ChannelPool getPool(EventLoop eventLoop, URI backendUri) {
+        Map<URI, ChannelPool> loopPools = this.pools.computeIfAbsent(eventLoop, (l) -> new HashMap<>());
+        ChannelPool pool = loopPools.get(backendUri);
+        if (pool != null) {
+            return pool;
+        }
+        boolean isHttps = UriUtils.HTTPS_SCHEME.equals(backendUri.getScheme());
+        if (backendUri.getHost() == null
+                || (!isHttps && !UriUtils.HTTP_SCHEME.equals(backendUri.getScheme()))) {
+            return null;
+        }
+        String host = backendUri.getHost();
+        int port = getPort(backendUri);
+        Bootstrap bootstrap = new Bootstrap()
+                .group(eventLoop)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .remoteAddress(host, port);
+        pool = new SimpleChannelPool(bootstrap, new AbstractChannelPoolHandler() {
+            @Override
+            public void channelCreated(Channel ch) {
+                if (isHttps) {
+                    ch.pipeline().addLast(
+                            GatewayStreamingProxy.this.sslContext.newHandler(ch.alloc(), host, port));
+                }
+                ch.pipeline().addLast(new HttpClientCodec());
+                ch.pipeline().addLast(new BackendHandler());
+            }
+        });
+        loopPools.put(backendUri, pool);
+        return pool;
+    }
+
+    // Returns the value of the Host header for requests to the passed backend.
+    private static String getHostHeader(URI backendUri) {
+        return backendUri.getPort() > 0
+                ? backendUri.getHost() + ":" + backendUri.getPort() : backendUri.getHost();
+    }
+
+    private static String getPath(String uri) {
+        int index = uri.indexOf('?');
+        return index < 0 ? uri : uri.substring(0, index);
+    }
+
+    private static Action toAction(HttpRequest request) {
+        try {
+            return Action.valueOf(request.method().name());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static FullHttpResponse createErrorResponse(ServiceErrorResponse error) {
+        byte[] body = Utils.toJson(error).getBytes(StandardCharsets.UTF_8);
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+                HttpResponseStatus.valueOf(error.statusCode), Unpooled.wrappedBuffer(body));
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, Operation.MEDIA_TYPE_APPLICATION_JSON);
+        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, body.length);
+        if (error instanceof GatewayService.RateLimitErrorResponse) {
+            response.headers().set(HttpHeaderNames.RETRY_AFTER,
+                    ((GatewayService.RateLimitErrorResponse) error).retryAfterSeconds);
+        }
+        return response;
+    }
+
+    /**
+     * Handles one client connection. All state is confined
+     * to the event loop of the client channel.
+     */
+    private final class FrontendHandler extends ChannelInboundHandlerAdapter {
+        private Channel frontend;
+        private Channel backendChannel;
+        private ChannelPool backendPool;
+        private GatewayBackend backend;
+        private GatewayAdmissionController.Admission admission;
+        private long startTimeMicros;
+        private boolean keepAlive;
+
+        // True if the backend keeps the connection alive after the response.
+        private boolean backendKeepAlive;
+
+        // Registered path whose cached responses the current request invalidates.
+        private String invalidatedPath;
+
+        // True while the content of a rejected request is being skipped.
+        private boolean discarding;
+
+        // The current request, as recorded once it completes.
+        private boolean recording;
+        private Action action;
+        private String path;
+        private GatewayPathService.State pathState;
+        private int statusCode;
+        private long backendLatencyMicros;
+        private long contentLength;
+
+        // True once the full request was relayed, until the response completes.
+        private boolean awaitingResponse;
+
+        // Messages received while the backend connection is being established.
+        private final Queue<Object> pending = new ArrayDeque<>();
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) {
+            this.frontend = ctx.channel();
+            ctx.fireChannelActive();
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if (msg instanceof HttpRequest) {
+                HttpRequest request = (HttpRequest) msg;
+                this.startTimeMicros = Utils.getSystemNowMicrosUtc();
+                this.recording = true;
+                this.action = toAction(request);
+                this.path = getPath(request.uri());
+                this.pathState = null;
+                this.backendLatencyMicros = -1;
+                this.contentLength = 0;
+                if (request.decoderResult().isFailure()) {
+                    ReferenceCountUtil.release(msg);
+                    this.keepAlive = false;
+                    sendError(GatewayService.createErrorResponse(Operation.STATUS_CODE_BAD_REQUEST,
+                            "Malformed request: %s", request.decoderResult().cause()));
+                    return;
+                }
+                startRequest(request);
+                return;
+            }
+            if (msg instanceof HttpContent) {
+                relayRequestContent((HttpContent) msg);
+                return;
+            }
+            ReferenceCountUtil.release(msg);
+        }
+
+        private void startRequest(HttpRequest request) {
+            this.keepAlive = HttpUtil.isKeepAlive(request);
+
+            GatewayAdmissionController admissionController = GatewayStreamingProxy.this.admissionController;
+            GatewayAdmissionController.Admission admission = admissionController.newAdmission(
+                    GatewayStreamingProxy.this.snapshotSupplier.get(), this.action, this.path);
+            this.path = admission.getPath();
+            GatewayPathService.State pathState = admission.getPathState();
+            this.pathState = pathState;
+            ServiceErrorResponse error = admissionController.checkRequest(admission);
+            if (error == null && admission.isPaused()) {
+                error = GatewayService.createErrorResponse(Operation.STATUS_CODE_UNAVAILABLE,
+                        "Gateway is currently PAUSED. Please retry later.");
+            }
+            if (error == null) {
+                error = admissionController.checkRateLimit(admission);
+            }
+            if (error == null) {
+                error = admissionController.acquireBackend(admission);
+            }
+            if (error != null) {
+                this.discarding = true;
+                sendError(error);
+                return;
+            }
+
+            // Responses are not cached in streaming mode, but updates
+            // still invalidate the responses cached by the GatewayService.
+            if (pathState != null && GatewayCache.CachedState.isResponseCachingEnabled(pathState)
+                    && this.action != Action.GET) {
+                this.invalidatedPath = pathState.path;
+                GatewayStreamingProxy.this.responseCache.invalidate(this.invalidatedPath);
+            }
+
+            // From here on, every outcome of the request goes through
+            // completeRequest(), which ends the request on the backend.
+            this.backend = admission.getBackend();
+            this.backend.onRequestStart();
+            this.admission = admission;
+            URI backendUri = this.backend.getUri();
+            request.headers().set(HttpHeaderNames.HOST, getHostHeader(backendUri));
+            // Backend connections are pooled, whatever the client asked for.
+            HttpUtil.setKeepAlive(request, true);
+            this.pending.add(request);
+
+            // Stop reading from the client until the backend connection is up.
+            this.frontend.config().setAutoRead(false);
+            this.backendPool = getPool(this.frontend.eventLoop(), backendUri);
+            if (this.backendPool == null) {
+                failBackendRequest("Backend %s is not supported.", backendUri);
+                return;
+            }
+            this.backendPool.acquire().addListener(this::onBackendAcquired);
+        }
+
+        private void onBackendAcquired(Future<? super Channel> future) {
+            if (this.backend == null) {
+                // The client went away while connecting.
+                if (future.isSuccess()) {
+                    this.backendPool.release((Channel) future.getNow());
+                }
+                return;
+            }
+            if (!future.isSuccess()) {
+                failBackendRequest("Backend %s is unreachable.", this.backend.getUri());
+                return;
+            }
+            this.backendChannel = (Channel) future.getNow();
+            this.backendChannel.pipeline().get(BackendHandler.class).attach(this);
+            this.backendKeepAlive = false;
+            Object msg;
+            while ((msg = this.pending.poll()) != null) {
+                this.backendChannel.write(msg);
+            }
+            this.backendChannel.flush();
+            if (!this.awaitingResponse) {
+                this.frontend.config().setAutoRead(true);
+            }
+        }
+
+        private void relayRequestContent(HttpContent content) {
+            boolean last = content instanceof LastHttpContent;
+            if (this.discarding) {
+                content.release();
+                if (last) {
+                    this.discarding = false;
+                }
+                return;
+            }
+            if (this.backend == null) {
+                // No request is being forwarded.
+                content.release();
+                return;
+            }
+            if (last) {
+                // Do not read pipelined requests until the response completes.
+                this.awaitingResponse = true;
+                this.frontend.config().setAutoRead(false);
+            }
+            if (this.backendChannel == null) {
+                this.pending.add(content);
+                return;
+            }
+            this.backendChannel.write(content);
+            if (!this.backendChannel.isWritable()) {
+                this.frontend.config().setAutoRead(false);
+            }
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) {
+            if (this.backendChannel != null) {
+                this.backendChannel.flush();
+            }
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+            if (this.backendChannel != null) {
+                this.backendChannel.config().setAutoRead(this.frontend.isWritable());
+            }
+        }
+
+        /**
+         * Called by the backend handler when the backend channel
+         * becomes writable again.
+         */
+        void onBackendWritable(boolean writable) {
+            if (!this.awaitingResponse) {
+                this.frontend.config().setAutoRead(writable);
+            }
+        }
+
+        void relayResponse(Object msg) {
+            if (msg instanceof HttpResponse) {
+                HttpResponse response = (HttpResponse) msg;
+                this.backendKeepAlive = HttpUtil.isKeepAlive(response);
+                HttpUtil.setKeepAlive(response, this.keepAlive);
+                this.statusCode = response.status().code();
+                this.backendLatencyMicros = Utils.getSystemNowMicrosUtc() - this.startTimeMicros;
+                if (this.backend != null) {
+                    onBackendResponse(response.status().code()
+                            >= Operation.STATUS_CODE_SERVER_FAILURE_THRESHOLD);
+                }
+            }
+            if (msg instanceof HttpContent) {
+                this.contentLength += ((HttpContent) msg).content().readableBytes();
+            }
+            boolean last = msg instanceof LastHttpContent;
+            if (last) {
+                recordRequest(this.statusCode);
+            }
+            ChannelFuture future = this.frontend.write(msg);
+            if (!this.frontend.isWritable() && this.backendChannel != null) {
+                this.backendChannel.config().setAutoRead(false);
+            }
+            if (!last) {
+                return;
+            }
+            this.frontend.flush();
+            // The backend connection is only reused if the whole request
+            // was relayed before the response completed.
+            completeRequest(this.awaitingResponse && this.backendKeepAlive);
+            if (!this.keepAlive) {
+                future.addListener(ChannelFutureListener.CLOSE);
+            }
+        }
+
+        void flushResponse() {
+            this.frontend.flush();
+        }
+
+        void onBackendClosed(boolean responseStarted) {
+            if (this.backend == null) {
+                return;
+            }
+            // The backend closed the connection before completing the response.
+            onBackendFailure();
+            if (responseStarted) {
+                recordRequest(this.statusCode);
+                this.frontend.close();
+                return;
+            }
+            sendError(GatewayService.createErrorResponse(HttpResponseStatus.BAD_GATEWAY.code(),
+                    "Backend closed the connection."));
+        }
+
+        // Fails the current request with http 502, before
+        // any of the response was relayed.
+        private void failBackendRequest(String msgFormat, Object... args) {
+            releasePending();
+            onBackendFailure();
+            sendError(GatewayService.createErrorResponse(HttpResponseStatus.BAD_GATEWAY.code(),
+                    msgFormat, args));
+        }
+
+        private void onBackendFailure() {
+            onBackendResponse(true);
+            completeRequest(false);
+        }
+
+        // Reports the outcome of the current request to the health checker,
+        // and to the circuit breaker and concurrency limiter if not done already.
+        private void onBackendResponse(boolean failed) {
+            long latencyMicros = Utils.getSystemNowMicrosUtc() - this.startTimeMicros;
+            GatewayStreamingProxy.this.healthChecker.onResponse(this.backend, failed, latencyMicros);
+            this.admission.onResponse(failed, latencyMicros);
+        }
+
+        private void completeRequest(boolean reuseBackendChannel) {
+            if (this.invalidatedPath != null) {
+                GatewayStreamingProxy.this.responseCache.invalidate(this.invalidatedPath);
+                this.invalidatedPath = null;
+            }
+            releaseBackend(reuseBackendChannel);
+            this.awaitingResponse = false;
+            this.frontend.config().setAutoRead(true);
+        }
+
+        // Ends the request on the backend, and returns the backend
+        // channel to its pool, closing it unless it can be reused.
+        private void releaseBackend(boolean reuseBackendChannel) {
+            if (this.backend != null) {
+                this.backend.onRequestEnd();
+                this.backend = null;
+            }
+            if (this.admission != null) {
+                // Does nothing unless the client went
+                // away before the backend responded.
+                this.admission.release();
+                this.admission = null;
+            }
+            if (this.backendChannel != null) {
+                Channel channel = this.backendChannel;
+                this.backendChannel = null;
+                channel.pipeline().get(BackendHandler.class).detach();
+                if (reuseBackendChannel) {
+                    channel.config().setAutoRead(true);
+                } else {
+                    channel.close();
+                }
+                this.backendPool.release(channel);
+            }
+        }
+
+        private void recordRequest(int statusCode) {
+            if (!this.recording) {
+                return;
+            }
+            this.recording = false;
+            GatewayStreamingProxy.this.recorder.record(this.action, this.path, this.pathState,
+                    this.startTimeMicros, this.backendLatencyMicros, statusCode, this.contentLength);
+        }
+
+        private void sendError(ServiceErrorResponse error) {
+            FullHttpResponse response = createErrorResponse(error);
+            HttpUtil.setKeepAlive(response, this.keepAlive);
+            this.contentLength = response.content().readableBytes();
+            recordRequest(error.statusCode);
+            ChannelFuture future = this.frontend.writeAndFlush(response);
+            if (!this.keepAlive) {
+                future.addListener(ChannelFutureListener.CLOSE);
+            }
+        }
+
+        private void releasePending() {
+            Object msg;
+            while ((msg = this.pending.poll()) != null) {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            releasePending();
+            releaseBackend(false);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            GatewayStreamingProxy.this.host.log(Level.WARNING,
+                    "Streaming proxy client failure: %s", cause.toString());
+            ctx.close();
+        }
+    }
+
+    /**
+     * Relays the responses of a pooled backend connection to the client
+     * it is currently acquired for.
+     */
+    private static final class BackendHandler extends ChannelInboundHandlerAdapter {
+        private FrontendHandler frontendHandler;
+        private boolean responseStarted;
+        private boolean responseCompleted;
+
+        void attach(FrontendHandler frontendHandler) {
+            this.frontendHandler = frontendHandler;
+            this.responseStarted = false;
+            this.responseCompleted = false;
+        }
+
+        void detach() {
+            this.frontendHandler = null;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if (this.frontendHandler == null || this.responseCompleted) {
+                // Nothing is expected from an idle connection.
+                ReferenceCountUtil.release(msg);
+                return;
+            }
+            if (msg instanceof HttpResponse) {
+                this.responseStarted = true;
+            }
+            if (msg instanceof LastHttpContent) {
+                this.responseCompleted = true;
+            }
+            this.frontendHandler.relayResponse(msg);
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) {
+            if (this.frontendHandler != null) {
+                this.frontendHandler.flushResponse();
+            }
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+            if (this.frontendHandler != null) {
+                this.frontendHandler.onBackendWritable(ctx.channel().isWritable());
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            if (this.frontendHandler != null && !this.responseCompleted) {
+                this.frontendHandler.onBackendClosed(this.responseStarted);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+}
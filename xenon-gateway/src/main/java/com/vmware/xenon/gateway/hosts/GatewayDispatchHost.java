@@ -14,6 +14,7 @@
 package com.vmware.xenon.gateway.hosts;
 
 import java.net.URI;
+import java.nio.file.Path;
 
 import com.vmware.xenon.common.ServiceHost;
 import com.vmware.xenon.gateway.GatewayService;
@@ -31,6 +32,9 @@ import com.vmware.xenon.gateway.GatewayService;
 public class GatewayDispatchHost extends ServiceHost {
 
     protected URI configHostUri;
+    protected int streamingPort = -1;
+    protected Path cacheSnapshotFile;
+    protected GatewayService gatewayService;
 
     protected  GatewayDispatchHost() {
     }
@@ -40,11 +44,20 @@ public class GatewayDispatchHost extends ServiceHost {
      * stored by the Configuration host, we pass it the Config Host URI.
      */
     public static GatewayDispatchHost create(URI configHostUri) {
+        return create(configHostUri, -1);
+    }
+
+    /**
+     * Creates a dispatch host that also accepts streaming requests
+     * on the passed port. Streaming is disabled if the port is negative.
+     */
+    public static GatewayDispatchHost create(URI configHostUri, int streamingPort) {
         if (configHostUri == null) {
             throw new IllegalArgumentException("configHostUri cannot be null");
         }
         GatewayDispatchHost host = new GatewayDispatchHost();
         host.configHostUri = configHostUri;
+        host.streamingPort = streamingPort;
         return host;
     }
 
@@ -63,7 +76,33 @@ public class GatewayDispatchHost extends ServiceHost {
     @Override
     public ServiceHost start() throws Throwable {
         super.start();
-        super.startService(new GatewayService(this.configHostUri));
+        this.gatewayService = new GatewayService(this.configHostUri);
+        this.gatewayService.setStreamingAddress(getState().bindAddress, this.streamingPort);
+        this.gatewayService.setCacheSnapshotFile(this.cacheSnapshotFile);
+        super.startService(this.gatewayService);
         return this;
     }
+
+    /**
+     * Sets the file the GatewayService saves its cached configuration to,
+     * and starts from on the next start. Must be called before start.
+     */
+    public void setCacheSnapshotFile(Path file) {
+        this.cacheSnapshotFile = file;
+    }
+
+    /**
+     * Returns the GatewayService running on this host.
+     */
+    public GatewayService getGatewayService() {
+        return this.gatewayService;
+    }
+
+    /**
+     * Returns the port used for streaming requests,
+     * or -1 if streaming is disabled.
+     */
+    public int getStreamingPort() {
+        return this.gatewayService != null ? this.gatewayService.getStreamingPort() : -1;
+    }
 }
@@ -13,12 +13,18 @@
 
 package com.vmware.xenon.gateway.hosts;
 
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.logging.Level;
 
 import com.vmware.xenon.common.CommandLineArgumentParser;
 import com.vmware.xenon.common.ServiceHost;
+import com.vmware.xenon.common.Utils;
 import com.vmware.xenon.gateway.GatewayConfigService;
 import com.vmware.xenon.gateway.GatewayPathFactoryService;
 
@@ -26,6 +32,12 @@ import com.vmware.xenon.gateway.GatewayPathFactoryService;
  * This class represents the gateway application and
  * is responsible for starting and stopping both Gateway
  * hosts (Config and Dispatch).
+ *
+ * To scale dispatch independently of configuration, several
+ * Dispatch hosts can be started in the same process, see
+ * {@link Arguments#dispatchHostCount}. Dispatch hosts can also run in
+ * separate processes, subscribed to a shared Config host, see
+ * {@link Arguments#configHostUri}.
  */
 public class GatewayHost {
 
@@ -57,6 +69,39 @@ public class GatewayHost {
          */
         public String dispatchId;
 
+        /**
+         * Port used by the Dispatch Host for streaming requests, see
+         * {@link com.vmware.xenon.gateway.GatewayStreamingProxy}. Streaming
+         * requests go through the same rate limits, circuit breakers,
+         * concurrency limit and metrics as other requests, but are neither
+         * queued while PAUSED, cached nor coalesced.
+         * Streaming is disabled if negative. Use 0 to pick any available port.
+         */
+        public int dispatchStreamingPort = -1;
+
+        /**
+         * Number of Dispatch hosts to start. Each Dispatch host listens
+         * on its own port: dispatchPort + i, and dispatchStreamingPort + i
+         * if streaming is enabled, unless the port is 0.
+         */
+        public int dispatchHostCount = 1;
+
+        /**
+         * URI of an existing Config host to subscribe to. If set, no
+         * Config host is started in this process, only Dispatch hosts.
+         */
+        public String configHostUri;
+
+        /**
+         * Whether Dispatch hosts save their cached configuration to the
+         * sandbox and serve from it on restart, until the Config host
+         * confirms it. Only applies to Dispatch hosts with a stable
+         * identity, i.e. a dispatchId or a fixed dispatchPort. While the
+         * Config host is unreachable, the snapshot is served and reported
+         * as stale, and the subscription is retried.
+         */
+        public boolean dispatchCacheSnapshot = false;
+
         /**
          * The maintenance interval used for the Dispatch and Configuration hosts.
          * Used to override default maintenance interval in unit-tests.
@@ -66,6 +111,7 @@ public class GatewayHost {
 
     protected GatewayConfigHost configHost;
     protected GatewayDispatchHost dispatchHost;
+    protected List<GatewayDispatchHost> dispatchHosts = new ArrayList<>();
 
     public static void main(String[] args) throws Throwable {
         Arguments appArgs = new Arguments();
@@ -80,6 +126,16 @@ public class GatewayHost {
     }
 
     public void start(Arguments args, Consumer<Throwable> completionCallback) throws Throwable {
+        if (args.dispatchHostCount <= 0) {
+            throw new IllegalArgumentException("dispatchHostCount must be positive");
+        }
+
+        // Dispatch-only process, subscribing to a shared Config host.
+        if (args.configHostUri != null) {
+            startDispatchHosts(args, URI.create(args.configHostUri), completionCallback);
+            return;
+        }
+
         // Starting Gateway Configuration host
         if (this.configHost == null) {
             this.configHost = new GatewayConfigHost();
@@ -101,32 +157,49 @@ public class GatewayHost {
         AtomicInteger count = new AtomicInteger(factories.length);
         this.configHost.registerForServiceAvailability((o, e) -> {
             if (count.decrementAndGet() == 0) {
-                startDispatchHost(args, completionCallback);
+                startDispatchHosts(args, this.configHost.getUri(), completionCallback);
             }
         }, true, factories);
     }
 
-    protected void startDispatchHost(Arguments args, Consumer<Throwable> completionCallback) {
-        // Starting Gateway Dispatch host
+    protected void startDispatchHosts(Arguments args, URI configHostUri,
+                                      Consumer<Throwable> completionCallback) {
+        // Starting Gateway Dispatch hosts
         if (this.dispatchHost == null) {
-            ServiceHost.Arguments defaultArgs = new ServiceHost.Arguments();
-            defaultArgs.port = args.dispatchPort;
-            defaultArgs.bindAddress = args.dispatchBindAddress;
-            defaultArgs.id = args.dispatchId;
-
-            try {
-                this.dispatchHost = GatewayDispatchHost.create(this.configHost.getUri());
-                this.dispatchHost.initialize(defaultArgs);
-                if (args.maintenanceIntervalMicros != null) {
-                    this.dispatchHost.setMaintenanceIntervalMicros(args.maintenanceIntervalMicros);
-                }
-                this.dispatchHost.start();
-                this.dispatchHost.log(Level.INFO, "Dispatch host is started");
-            } catch (Throwable t) {
-                this.configHost.log(Level.SEVERE,
-                        "Failed to start the Dispatch Host. Error: %s", t.toString());
-                if (completionCallback != null) {
-                    completionCallback.accept(t);
+            for (int i = 0; i < args.dispatchHostCount; i++) {
+                ServiceHost.Arguments defaultArgs = new ServiceHost.Arguments();
+                defaultArgs.port = args.dispatchPort > 0 ? args.dispatchPort + i : args.dispatchPort;
+                defaultArgs.bindAddress = args.dispatchBindAddress;
+                defaultArgs.id = args.dispatchId != null && i > 0
+                        ? args.dispatchId + "-" + i : args.dispatchId;
+                int streamingPort = args.dispatchStreamingPort > 0
+                        ? args.dispatchStreamingPort + i : args.dispatchStreamingPort;
+
+                try {
+                    GatewayDispatchHost host = GatewayDispatchHost.create(configHostUri, streamingPort);
+                    host.setCacheSnapshotFile(getCacheSnapshotFile(args, defaultArgs));
+                    host.initialize(defaultArgs);
+                    if (args.maintenanceIntervalMicros != null) {
+                        host.setMaintenanceIntervalMicros(args.maintenanceIntervalMicros);
+                    }
+                    host.start();
+                    host.log(Level.INFO, "Dispatch host is started");
+                    this.dispatchHosts.add(host);
+                    if (this.dispatchHost == null) {
+                        this.dispatchHost = host;
+                    }
+                } catch (Throwable t) {
+                    Level level = Level.SEVERE;
+                    String msg = "Failed to start the Dispatch Host. Error: %s";
+                    if (this.configHost != null) {
+                        this.configHost.log(level, msg, t.toString());
+                    } else {
+                        Utils.log(getClass(), getClass().getSimpleName(), level, msg, t.toString());
+                    }
+                    if (completionCallback != null) {
+                        completionCallback.accept(t);
+                    }
+                    return;
                 }
             }
         }
@@ -135,11 +208,31 @@ public class GatewayHost {
         }
     }
 
+    private static Path getCacheSnapshotFile(Arguments args, ServiceHost.Arguments dispatchArgs) {
+        if (!args.dispatchCacheSnapshot || args.sandbox == null) {
+            return null;
+        }
+        String identity = dispatchArgs.id != null ? dispatchArgs.id
+                : dispatchArgs.port > 0 ? Integer.toString(dispatchArgs.port) : null;
+        if (identity == null) {
+            return null;
+        }
+        return args.sandbox.resolve("gateway-dispatch-" + identity + ".json");
+    }
+
+    /**
+     * Returns the Dispatch hosts started by this instance.
+     */
+    public List<GatewayDispatchHost> getDispatchHosts() {
+        return Collections.unmodifiableList(this.dispatchHosts);
+    }
+
     public void stop() {
-        if (this.dispatchHost != null) {
-            this.dispatchHost.stop();
-            this.dispatchHost = null;
+        for (GatewayDispatchHost host : this.dispatchHosts) {
+            host.stop();
         }
+        this.dispatchHosts.clear();
+        this.dispatchHost = null;
         if (this.configHost != null) {
             this.configHost.stop();
             this.configHost = null;
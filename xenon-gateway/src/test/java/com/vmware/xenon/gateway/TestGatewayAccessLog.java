@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.gateway;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.vmware.xenon.common.Service.Action;
+
+public class TestGatewayAccessLog {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * This test verifies that records are written to the file in
+     * order and in the expected format, and that the file is rotated
+     * once it reaches the configured size.
+     */
+    @Test
+    public void testWriteAndRotate() throws Throwable {
+        Path file = this.folder.getRoot().toPath().resolve("access.log");
+        GatewayAccessLog accessLog = new GatewayAccessLog(file, 16, 1, 2048, 2);
+        accessLog.start();
+        int count = 100;
+        for (int i = 0; i < count; i++) {
+            while (accessLog.getWrittenCount() + 16 <= i) {
+                Thread.sleep(1);
+            }
+            accessLog.log(Action.GET, "/core/examples/" + i, 200, 416, 0, 11000);
+        }
+        accessLog.stop();
+        assertEquals(count, accessLog.getWrittenCount());
+        assertEquals(0, accessLog.getDroppedCount());
+
+        assertTrue(Files.exists(accessLog.getRotatedFile(1)));
+        assertTrue(Files.exists(accessLog.getRotatedFile(2)));
+        assertFalse(Files.exists(accessLog.getRotatedFile(3)));
+        assertTrue(Files.size(file) <= 2048);
+
+        List<String> lines = Files.readAllLines(file);
+        String last = lines.get(lines.size() - 1);
+        assertEquals("1970-01-01T00:00:00Z GET /core/examples/" + (count - 1) + " 200 416B 11.00ms", last);
+    }
+
+    /**
+     * This test verifies that records that cannot be written, because
+     * the file cannot be rotated or reopened, are counted as dropped,
+     * and that writing resumes once the file can be reopened.
+     */
+    @Test
+    public void testRotateFailure() throws Throwable {
+        Path file = this.folder.getRoot().toPath().resolve("access.log");
+        GatewayAccessLog accessLog = new GatewayAccessLog(file, 16, 1, 512, 0);
+        accessLog.start();
+
+        // Replace the file with a non-empty directory, which can
+        // neither be deleted by the rotation nor reopened.
+        Files.delete(file);
+        Path blocker = Files.createDirectories(file.resolve("blocker"));
+        int count = 20;
+        for (int i = 0; i < count; i++) {
+            logAndWait(accessLog, i);
+        }
+        assertTrue(accessLog.getDroppedCount() > 0);
+        assertEquals(count, accessLog.getWrittenCount() + accessLog.getDroppedCount());
+
+        Files.delete(blocker);
+        Files.delete(file);
+        for (int i = count; i < count + 5; i++) {
+            logAndWait(accessLog, i);
+        }
+        accessLog.stop();
+        assertEquals(count + 5, accessLog.getWrittenCount() + accessLog.getDroppedCount());
+        List<String> lines = Files.readAllLines(file);
+        assertEquals(5, lines.size());
+        assertEquals("1970-01-01T00:00:00Z GET /core/examples/" + (count + 4) + " 200 416B 11.00ms",
+                lines.get(4));
+    }
+
+    /**
+     * This test verifies that records are dropped, rather than blocking,
+     * when the buffer is full, and that sampling skips records.
+     */
+    @Test
+    public void testDropAndSample() throws Throwable {
+        Path file = this.folder.getRoot().toPath().resolve("access.log");
+
+        // The writer is not started, so nothing drains the buffer.
+        GatewayAccessLog accessLog = new GatewayAccessLog(file, 5, 1, 2048, 1);
+        for (int i = 0; i < 20; i++) {
+            accessLog.log(Action.POST, "/core/examples", 200, 0, 0, 0);
+        }
+        assertEquals(12, accessLog.getDroppedCount());
+
+        GatewayAccessLog sampled = new GatewayAccessLog(file, 1024, 10, 1 << 20, 1);
+        sampled.start();
+        for (int i = 0; i < 1000; i++) {
+            sampled.log(Action.GET, "/core/examples", 200, 0, 0, 0);
+        }
+        sampled.stop();
+        assertEquals(0, sampled.getDroppedCount());
+        assertTrue(sampled.getWrittenCount() > 0 && sampled.getWrittenCount() < 500);
+    }
+
+    private static void logAndWait(GatewayAccessLog accessLog, int i) throws InterruptedException {
+        accessLog.log(Action.GET, "/core/examples/" + i, 200, 416, 0, 11000);
+        while (accessLog.getWrittenCount() + accessLog.getDroppedCount() <= i) {
+            Thread.sleep(1);
+        }
+    }
+}
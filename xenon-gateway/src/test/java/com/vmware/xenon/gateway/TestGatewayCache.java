@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.gateway;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+import com.google.gson.JsonParser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vmware.xenon.common.Service.Action;
+import com.vmware.xenon.common.Utils;
+import com.vmware.xenon.common.test.VerificationHost;
+
+public class TestGatewayCache {
+
+    private VerificationHost host;
+    private GatewayCache cache;
+
+    @Before
+    public void setUp() throws Throwable {
+        this.host = VerificationHost.create(0);
+        this.host.start();
+        this.cache = GatewayCache.create(this.host, this.host.getUri(), GatewayUriPaths.DEFAULT_CONFIG_PATH);
+    }
+
+    @After
+    public void tearDown() {
+        this.host.tearDown();
+    }
+
+    /**
+     * This test verifies that a batch of notifications, in any of the
+     * forms they can be received in, is applied as a single delta, and
+     * that out-dated notifications within the batch are ignored.
+     */
+    @Test
+    public void testApplyUpdates() {
+        long version = this.cache.getSnapshot().version;
+        List<Object> documents = new ArrayList<>();
+
+        GatewayConfigService.State config = new GatewayConfigService.State();
+        config.documentSelfLink = GatewayUriPaths.DEFAULT_CONFIG_PATH;
+        config.documentKind = GatewayConfigService.State.KIND;
+        config.documentUpdateAction = Action.POST.toString();
+        config.documentVersion = 0;
+        config.status = GatewayStatus.AVAILABLE;
+        documents.add(config);
+
+        int pathCount = 1000;
+        for (int i = 0; i < pathCount; i++) {
+            GatewayPathService.State path = createPath("/core/examples/" + i, Action.POST, 1);
+            documents.add(new JsonParser().parse(Utils.toJson(path)));
+        }
+        // An out-dated update, a delete, and a document of another kind.
+        documents.add(Utils.toJson(createPath("/core/examples/0", Action.PUT, 0)));
+        documents.add(createPath("/core/examples/1", Action.DELETE, 2));
+        documents.add(new JsonParser().parse("{\"documentKind\":\"unknown\"}"));
+        this.cache.applyUpdates(documents);
+
+        GatewayCache.CachedState snapshot = this.cache.getSnapshot();
+        assertEquals(version + 1, snapshot.version);
+        assertEquals(GatewayStatus.AVAILABLE, snapshot.configState.status);
+        assertEquals(pathCount - 1, snapshot.paths.size());
+        assertEquals(1, snapshot.paths.get("/core/examples/0").documentVersion);
+        assertFalse(snapshot.paths.containsKey("/core/examples/1"));
+        assertTrue(snapshot.findPath("/core/examples/2") != null);
+
+        // Notifications that change nothing do not publish a snapshot.
+        documents.clear();
+        documents.add(createPath("/core/examples/2", Action.PUT, 1));
+        this.cache.applyUpdates(documents);
+        assertEquals(version + 1, this.cache.getSnapshot().version);
+    }
+
+    /**
+     * This test verifies that the published snapshot can not be
+     * modified through the state returned to callers.
+     */
+    @Test
+    public void testGatewayStateIsCopied() {
+        List<Object> documents = new ArrayList<>();
+        documents.add(createPath("/core/examples", Action.POST, 0));
+        this.cache.applyUpdates(documents);
+
+        GatewayCache.CachedState state = this.cache.getGatewayState();
+        state.configState.status = GatewayStatus.AVAILABLE;
+        state.paths.get("/core/examples").actions = EnumSet.of(Action.DELETE);
+        state.paths.clear();
+
+        GatewayCache.CachedState snapshot = this.cache.getSnapshot();
+        assertEquals(GatewayStatus.UNAVAILABLE, snapshot.configState.status);
+        assertEquals(EnumSet.allOf(Action.class), snapshot.getSupportedActions("/core/examples"));
+        try {
+            snapshot.paths.clear();
+            fail("Snapshot paths should be unmodifiable");
+        } catch (UnsupportedOperationException e) {
+            assertEquals(1, snapshot.paths.size());
+        }
+    }
+
+    /**
+     * This test verifies that paths can be looked up on a snapshot
+     * deserialized from a GET response, which has no matcher.
+     */
+    @Test
+    public void testFindPathOnDeserializedState() {
+        List<Object> documents = new ArrayList<>();
+        documents.add(createPath("/core/examples", Action.POST, 0));
+        this.cache.applyUpdates(documents);
+
+        GatewayCache.CachedState state = Utils.fromJson(
+                Utils.toJson(this.cache.getGatewayState()), GatewayCache.CachedState.class);
+        assertEquals("/core/examples", state.findPath("/core/examples").path);
+        assertEquals(EnumSet.allOf(Action.class), state.getSupportedActions("/core/examples"));
+        assertNull(state.findPath("/core/other"));
+    }
+
+    private static GatewayPathService.State createPath(String path, Action action, long version) {
+        GatewayPathService.State state = new GatewayPathService.State();
+        state.path = path;
+        state.documentKind = GatewayPathService.State.KIND;
+        state.documentUpdateAction = action.toString();
+        state.documentVersion = version;
+        return state;
+    }
+}
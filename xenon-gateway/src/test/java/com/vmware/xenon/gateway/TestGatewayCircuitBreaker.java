@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.gateway;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.vmware.xenon.gateway.GatewayCircuitBreaker.Permit;
+import com.vmware.xenon.gateway.GatewayCircuitBreaker.State;
+
+public class TestGatewayCircuitBreaker {
+
+    /**
+     * This test verifies that the circuit opens once the failure rate
+     * exceeds the threshold, lets a single probe through once the open
+     * duration has elapsed, and closes again when the probe succeeds.
+     */
+    @Test
+    public void testTripAndRecover() throws Throwable {
+        GatewayCircuitBreaker breaker = GatewayCircuitBreaker.update(null,
+                createSettings(50, 4, TimeUnit.MILLISECONDS.toMicros(100)));
+
+        // Failures below the minimum request count do not open the circuit.
+        for (int i = 0; i < 3; i++) {
+            assertEquals(Permit.ALLOWED, breaker.tryAcquire());
+            breaker.onResponse(Permit.ALLOWED, true, 0);
+        }
+        assertEquals(State.CLOSED, breaker.getState());
+        breaker.onResponse(Permit.ALLOWED, true, 0);
+        assertEquals(State.OPEN, breaker.getState());
+        assertEquals(Permit.REJECTED, breaker.tryAcquire());
+        assertEquals(1, breaker.getStatus().tripCount);
+
+        // A failed probe re-opens the circuit.
+        Thread.sleep(150);
+        assertEquals(Permit.PROBE, breaker.tryAcquire());
+        assertEquals(Permit.REJECTED, breaker.tryAcquire());
+        breaker.onResponse(Permit.PROBE, true, 0);
+        assertEquals(State.OPEN, breaker.getState());
+        assertEquals(2, breaker.getStatus().tripCount);
+
+        // A successful probe closes the circuit and resets the counts.
+        Thread.sleep(150);
+        assertEquals(Permit.PROBE, breaker.tryAcquire());
+        breaker.onResponse(Permit.PROBE, false, 0);
+        assertEquals(State.CLOSED, breaker.getState());
+        assertEquals(0, breaker.getStatus().failureCount);
+        assertEquals(Permit.ALLOWED, breaker.tryAcquire());
+    }
+
+    /**
+     * This test verifies that a probe that was handed back, unused, is
+     * let through with the next request.
+     */
+    @Test
+    public void testReleaseProbe() throws Throwable {
+        GatewayCircuitBreaker breaker = GatewayCircuitBreaker.update(null,
+                createSettings(50, 1, TimeUnit.MILLISECONDS.toMicros(100)));
+        breaker.onResponse(Permit.ALLOWED, true, 0);
+        assertEquals(State.OPEN, breaker.getState());
+
+        Thread.sleep(150);
+        assertEquals(Permit.PROBE, breaker.tryAcquire());
+        breaker.release(Permit.PROBE);
+        assertEquals(State.OPEN, breaker.getState());
+        assertEquals(Permit.PROBE, breaker.tryAcquire());
+        breaker.onResponse(Permit.PROBE, false, 0);
+        assertEquals(State.CLOSED, breaker.getState());
+
+        // Allowed permits need not be handed back.
+        breaker.release(Permit.ALLOWED);
+        assertEquals(State.CLOSED, breaker.getState());
+    }
+
+    /**
+     * This test verifies that slow requests count as failures, and
+     * that the circuit stays closed while the failure rate is low.
+     */
+    @Test
+    public void testFailureRate() {
+        GatewayPathService.CircuitBreaker settings = createSettings(50, 10, TimeUnit.SECONDS.toMicros(30));
+        settings.slowRequestThresholdMicros = TimeUnit.MILLISECONDS.toMicros(100);
+        GatewayCircuitBreaker breaker = GatewayCircuitBreaker.update(null, settings);
+
+        for (int i = 0; i < 10; i++) {
+            breaker.onResponse(Permit.ALLOWED, i % 3 == 0, 0);
+        }
+        assertEquals(State.CLOSED, breaker.getState());
+        assertEquals(10, breaker.getStatus().requestCount);
+        assertEquals(4, breaker.getStatus().failureCount);
+
+        breaker.onResponse(Permit.ALLOWED, false, TimeUnit.SECONDS.toMicros(1));
+        assertEquals(State.CLOSED, breaker.getState());
+        breaker.onResponse(Permit.ALLOWED, false, TimeUnit.SECONDS.toMicros(1));
+        assertEquals(State.OPEN, breaker.getState());
+    }
+
+    /**
+     * This test verifies that circuit breakers are only recreated
+     * when their settings change.
+     */
+    @Test
+    public void testUpdate() {
+        assertNull(GatewayCircuitBreaker.update(null, null));
+        GatewayCircuitBreaker breaker = GatewayCircuitBreaker.update(null, createSettings(50, 10, 1));
+        assertSame(breaker, GatewayCircuitBreaker.update(breaker, createSettings(50, 10, 1)));
+        assertNotSame(breaker, GatewayCircuitBreaker.update(breaker, createSettings(20, 10, 1)));
+        assertNull(GatewayCircuitBreaker.update(breaker, null));
+    }
+
+    private static GatewayPathService.CircuitBreaker createSettings(int errorThresholdPercent,
+                                                                    int minRequestCount,
+                                                                    long openDurationMicros) {
+        GatewayPathService.CircuitBreaker settings = new GatewayPathService.CircuitBreaker();
+        settings.errorThresholdPercent = errorThresholdPercent;
+        settings.minRequestCount = minRequestCount;
+        settings.openDurationMicros = openDurationMicros;
+        return settings;
+    }
+}
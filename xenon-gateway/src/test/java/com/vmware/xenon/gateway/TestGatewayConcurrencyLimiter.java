@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.gateway;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestGatewayConcurrencyLimiter {
+
+    // Longer than the default window of the limiter.
+    private static final long WINDOW_MILLIS = 150;
+
+    /**
+     * This test verifies that requests over the limit are rejected,
+     * and that given back slots can be taken again.
+     */
+    @Test
+    public void testAcquire() {
+        GatewayConcurrencyLimiter limiter = GatewayConcurrencyLimiter.update(null, true, 5);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(limiter.tryAcquire());
+        }
+        assertFalse(limiter.tryAcquire());
+        assertEquals(5, limiter.getInFlightCount());
+
+        limiter.release();
+        assertTrue(limiter.tryAcquire());
+        limiter.onResponse(1000, false);
+        assertEquals(4, limiter.getInFlightCount());
+    }
+
+    /**
+     * This test verifies that the limit grows while it is used and
+     * round-trip times are stable, and shrinks when they increase
+     * or when the backends fail.
+     */
+    @Test
+    public void testAdaptation() throws Throwable {
+        GatewayConcurrencyLimiter limiter = GatewayConcurrencyLimiter.update(null, true, null);
+        int initialLimit = limiter.getLimit();
+        for (int i = 0; i < 3; i++) {
+            runWindow(limiter, limiter.getLimit(), 1000, false);
+        }
+        int grownLimit = limiter.getLimit();
+        assertTrue(grownLimit > initialLimit);
+
+        // Responses completed after the last update are
+        // part of the next window, so run two windows.
+        runWindow(limiter, 10, 10000, false);
+        runWindow(limiter, 10, 10000, false);
+        int slowLimit = limiter.getLimit();
+        assertTrue(slowLimit < grownLimit);
+
+        runWindow(limiter, 10, 1000, true);
+        assertTrue(limiter.getLimit() < slowLimit);
+    }
+
+    /**
+     * This test verifies that concurrency limiters are only recreated
+     * when their settings change.
+     */
+    @Test
+    public void testUpdate() {
+        assertNull(GatewayConcurrencyLimiter.update(null, null, 10));
+        GatewayConcurrencyLimiter limiter = GatewayConcurrencyLimiter.update(null, true, null);
+        assertSame(limiter, GatewayConcurrencyLimiter.update(limiter, true, null));
+        assertNotSame(limiter, GatewayConcurrencyLimiter.update(limiter, true, 10));
+        assertNull(GatewayConcurrencyLimiter.update(limiter, false, null));
+    }
+
+    // Sends requests, and completes them once the current window ended.
+    private static void runWindow(GatewayConcurrencyLimiter limiter, int requestCount,
+                                  long rttMicros, boolean failed) throws InterruptedException {
+        int acquiredCount = 0;
+        for (int i = 0; i < requestCount; i++) {
+            if (limiter.tryAcquire()) {
+                acquiredCount++;
+            }
+        }
+        Thread.sleep(WINDOW_MILLIS);
+        for (int i = 0; i < acquiredCount; i++) {
+            limiter.onResponse(rttMicros, failed);
+        }
+    }
+}
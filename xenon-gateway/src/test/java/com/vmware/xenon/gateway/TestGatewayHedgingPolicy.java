@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.gateway;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TestGatewayHedgingPolicy {
+
+    private static final String PATH = "/core/examples";
+
+    /**
+     * This test verifies that paths are only hedged once enough
+     * latencies were recorded, after the hedging percentile.
+     */
+    @Test
+    public void testDelay() {
+        GatewayHedgingPolicy policy = new GatewayHedgingPolicy();
+        assertEquals(-1, policy.getDelayMicros(PATH, null));
+
+        GatewayLatencyHistogram histogram = new GatewayLatencyHistogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toMicros(10));
+        }
+        assertEquals(-1, policy.getDelayMicros(PATH, histogram));
+
+        histogram.record(TimeUnit.MILLISECONDS.toMicros(10));
+        long delayMicros = policy.getDelayMicros(PATH, histogram);
+        assertTrue(delayMicros >= histogram.getPercentileMicros(0.95));
+        assertTrue(delayMicros <= histogram.getMaxMicros() * 2);
+
+        // Delays are not recomputed right away.
+        for (int i = 0; i < 1000; i++) {
+            histogram.record(TimeUnit.SECONDS.toMicros(1));
+        }
+        assertEquals(delayMicros, policy.getDelayMicros(PATH, histogram));
+    }
+
+    /**
+     * This test verifies that every request earns a fraction of a
+     * hedge, and that unspent hedges are capped.
+     */
+    @Test
+    public void testBudget() {
+        GatewayHedgingPolicy policy = new GatewayHedgingPolicy();
+        assertFalse(policy.tryAcquire());
+
+        for (int i = 0; i < 10; i++) {
+            policy.getDelayMicros(PATH, null);
+        }
+        assertTrue(policy.tryAcquire());
+        assertFalse(policy.tryAcquire());
+
+        for (int i = 0; i < 1000; i++) {
+            policy.getDelayMicros(PATH, null);
+        }
+        for (int i = 0; i < GatewayHedgingPolicy.MAX_BUDGET; i++) {
+            assertTrue(policy.tryAcquire());
+        }
+        assertFalse(policy.tryAcquire());
+        assertEquals(GatewayHedgingPolicy.MAX_BUDGET + 1, policy.getHedgeCount());
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.gateway;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.vmware.xenon.gateway.GatewayConfigService.LoadBalancingStrategy;
+
+public class TestGatewayLoadBalancer {
+
+    private GatewayBackend[] createBackends(int count) {
+        GatewayBackend[] backends = new GatewayBackend[count];
+        for (int i = 0; i < count; i++) {
+            backends[i] = new GatewayBackend(URI.create("http://127.0.0.1:" + (8000 + i)));
+        }
+        return backends;
+    }
+
+    private Map<GatewayBackend, Integer> select(GatewayLoadBalancer lb, int count) {
+        Map<GatewayBackend, Integer> counts = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            counts.merge(lb.select(), 1, Integer::sum);
+        }
+        return counts;
+    }
+
+    /**
+     * This test verifies that round-robin selection honors backend weights.
+     */
+    @Test
+    public void testWeightedRoundRobin() {
+        GatewayBackend[] backends = createBackends(3);
+        GatewayLoadBalancer lb = GatewayLoadBalancer.create(
+                LoadBalancingStrategy.ROUND_ROBIN, backends, new int[] { 1, 2, 3 });
+
+        Map<GatewayBackend, Integer> counts = select(lb, 600);
+        assertEquals(100, (int) counts.get(backends[0]));
+        assertEquals(200, (int) counts.get(backends[1]));
+        assertEquals(300, (int) counts.get(backends[2]));
+    }
+
+    /**
+     * This test verifies that the least-outstanding-requests strategy
+     * avoids busy backends.
+     */
+    @Test
+    public void testLeastOutstandingRequests() {
+        GatewayBackend[] backends = createBackends(3);
+        GatewayLoadBalancer lb = GatewayLoadBalancer.create(
+                LoadBalancingStrategy.LEAST_OUTSTANDING_REQUESTS, backends, new int[] { 1, 1, 1 });
+
+        backends[0].onRequestStart();
+        backends[2].onRequestStart();
+        backends[2].onRequestStart();
+        assertSame(backends[1], lb.select());
+
+        backends[1].onRequestStart();
+        backends[1].onRequestStart();
+        backends[1].onRequestStart();
+        assertSame(backends[0], lb.select());
+    }
+
+    /**
+     * This test verifies that ejected backends are skipped, unless
+     * all backends are ejected.
+     */
+    @Test
+    public void testEjectedBackendsSkipped() {
+        GatewayBackend[] backends = createBackends(3);
+        GatewayLoadBalancer lb = GatewayLoadBalancer.create(
+                LoadBalancingStrategy.ROUND_ROBIN, backends, new int[] { 1, 1, 1 });
+
+        long ejectionMicros = TimeUnit.MINUTES.toMicros(1);
+        backends[1].eject(ejectionMicros, ejectionMicros);
+        assertFalse(backends[1].isAvailable());
+        Map<GatewayBackend, Integer> counts = select(lb, 90);
+        assertNull(counts.get(backends[1]));
+        assertEquals(90, counts.get(backends[0]) + counts.get(backends[2]));
+
+        backends[0].eject(ejectionMicros, ejectionMicros);
+        backends[2].eject(ejectionMicros, ejectionMicros);
+        counts = select(lb, 90);
+        assertEquals(3, counts.size());
+    }
+
+    /**
+     * This test verifies that power-of-two-choices never selects
+     * the most loaded of two backends.
+     */
+    @Test
+    public void testPowerOfTwoChoices() {
+        GatewayBackend[] backends = createBackends(2);
+        GatewayLoadBalancer lb = GatewayLoadBalancer.create(
+                LoadBalancingStrategy.POWER_OF_TWO_CHOICES, backends, new int[] { 1, 1 });
+
+        for (int i = 0; i < 10; i++) {
+            backends[0].onRequestStart();
+        }
+        Map<GatewayBackend, Integer> counts = select(lb, 100);
+        assertEquals(100, (int) counts.get(backends[1]));
+
+        GatewayLoadBalancer empty = GatewayLoadBalancer.create(
+                LoadBalancingStrategy.POWER_OF_TWO_CHOICES, new GatewayBackend[0], new int[0]);
+        assertNull(empty.select());
+        assertTrue(lb.getBackends().length == 2);
+    }
+}
@@ -26,6 +26,7 @@ import java.util.logging.Level;
 import com.vmware.xenon.common.Operation;
 import com.vmware.xenon.common.Service.Action;
 import com.vmware.xenon.common.ServiceHost;
+import com.vmware.xenon.common.UriUtils;
 import com.vmware.xenon.common.test.TestRequestSender;
 import com.vmware.xenon.common.test.VerificationHost;
 
@@ -80,6 +81,38 @@ public class TestGatewayManager {
         return returnVal;
     }
 
+    public String addPath(GatewayPathService.State state) {
+        ServiceHost configHost = this.gatewayHost.getConfigHost();
+        Operation op = Operation
+                .createPost(configHost, GatewayPathFactoryService.SELF_LINK)
+                .setBody(state);
+        GatewayPathService.State rsp = this.sender.sendAndWait(op, GatewayPathService.State.class);
+        this.paths.put(rsp.documentSelfLink, rsp);
+        return rsp.documentSelfLink;
+    }
+
+    public GatewayPathFactoryService.BulkResponse addPathsBulk(List<GatewayPathService.State> states) {
+        ServiceHost configHost = this.gatewayHost.getConfigHost();
+        GatewayPathFactoryService.BulkRequest body = new GatewayPathFactoryService.BulkRequest();
+        body.paths = states;
+        Operation op = Operation
+                .createPost(UriUtils.extendUriWithQuery(
+                        UriUtils.buildUri(configHost, GatewayPathFactoryService.SELF_LINK),
+                        GatewayPathFactoryService.QUERY_PARAM_BULK, Boolean.TRUE.toString()))
+                .setBody(body);
+        GatewayPathFactoryService.BulkResponse rsp = this.sender.sendAndWait(op)
+                .getBody(GatewayPathFactoryService.BulkResponse.class);
+        for (int i = 0; i < states.size(); i++) {
+            GatewayPathFactoryService.BulkResult result = rsp.results.get(i);
+            if (result.statusCode == Operation.STATUS_CODE_OK) {
+                GatewayPathService.State state = states.get(i);
+                state.documentSelfLink = result.documentSelfLink;
+                this.paths.put(result.documentSelfLink, state);
+            }
+        }
+        return rsp;
+    }
+
     public void changeConfigStatus(GatewayStatus status) {
         GatewayConfigService.State state = new GatewayConfigService.State();
         state.status = status;
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.gateway;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.junit.Test;
+
+import com.vmware.xenon.common.ServiceStats;
+
+public class TestGatewayMetrics {
+
+    /**
+     * This test verifies that the percentiles reported by the latency
+     * histogram are within the precision of its buckets.
+     */
+    @Test
+    public void testHistogramPercentiles() {
+        GatewayLatencyHistogram histogram = new GatewayLatencyHistogram();
+        assertEquals(0, histogram.getPercentileMicros(0.5));
+        for (long i = 1; i <= 100000; i++) {
+            histogram.record(i);
+        }
+        histogram.record(-1);
+        assertEquals(100000, histogram.getCount());
+        assertEquals(100000, histogram.getMaxMicros());
+        assertEquals(100000L * 100001 / 2, histogram.getSumMicros());
+        assertWithinPrecision(50000, histogram.getPercentileMicros(0.5));
+        assertWithinPrecision(99000, histogram.getPercentileMicros(0.99));
+        assertWithinPrecision(99900, histogram.getPercentileMicros(0.999));
+        assertEquals(100000, histogram.getPercentileMicros(1.0));
+
+        // Every value maps to a bucket whose highest value is not lower.
+        for (long value = 0; value < 1L << 20; value += 7) {
+            int index = GatewayLatencyHistogram.getIndex(value);
+            assertTrue(GatewayLatencyHistogram.getHighestValue(index) >= value);
+            assertTrue(index == 0 || GatewayLatencyHistogram.getHighestValue(index - 1) < value);
+        }
+    }
+
+    /**
+     * This test verifies that requests are counted per path, per status
+     * class and per status code, and that backend and overhead latencies
+     * are tracked separately.
+     */
+    @Test
+    public void testRecord() {
+        GatewayMetrics metrics = new GatewayMetrics();
+        metrics.record("/a", 200, 1000, 800);
+        metrics.record("/a", 201, 1000, 800);
+        metrics.record("/a", 404, 100, -1);
+        metrics.record(null, 404, 50, -1);
+
+        GatewayMetrics.PathMetrics a = metrics.getMetrics("/a");
+        assertNotNull(a);
+        assertEquals(3, a.getRequestCount());
+        assertEquals(3, a.getLatency().getCount());
+        assertEquals(2, a.getBackendLatency().getCount());
+        assertEquals(1, metrics.getMetrics(GatewayMetrics.UNMATCHED_PATH).getRequestCount());
+        assertNull(metrics.getMetrics("/b"));
+        assertEquals(1, metrics.getStatusCodeCount(200));
+        assertEquals(2, metrics.getStatusCodeCount(404));
+
+        ServiceStats stats = metrics.toServiceStats(Collections.singletonMap("coalescedRequestCount", 5L));
+        assertEquals(4, stats.entries.get(GatewayMetrics.STAT_NAME_REQUEST_COUNT).latestValue, 0);
+        assertEquals(3, stats.entries.get("requestCount:/a").latestValue, 0);
+        assertEquals(2, stats.entries.get("responseCount2xx:/a").latestValue, 0);
+        assertEquals(2, stats.entries.get("responseCount404").latestValue, 0);
+        assertEquals(5, stats.entries.get("coalescedRequestCount").latestValue, 0);
+        assertWithinPrecision(200, (long) stats.entries.get("overheadLatencyMicrosP50").latestValue);
+        assertNotNull(stats.entries.get("backendLatencyMicrosP999:/a"));
+
+        String text = metrics.toPrometheusText(Collections.singletonMap("coalescedRequestCount", 5L));
+        assertTrue(text.contains("xenon_gateway_requests_total{path=\"/a\",status=\"2xx\"} 2\n"));
+        assertTrue(text.contains("xenon_gateway_responses_total{code=\"404\"} 2\n"));
+        assertTrue(text.contains("xenon_gateway_request_latency_seconds_count{path=\"/a\"} 3\n"));
+        assertTrue(text.contains("xenon_gateway_coalesced_request_total 5\n"));
+    }
+
+    private static void assertWithinPrecision(long expected, long actual) {
+        assertTrue("expected " + expected + " but was " + actual,
+                Math.abs(actual - expected) <= expected / 16 + 1);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.gateway;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class TestGatewayPathMatcher {
+
+    private final Map<String, GatewayPathService.State> paths = new HashMap<>();
+
+    private void register(String path) {
+        GatewayPathService.State state = new GatewayPathService.State();
+        state.path = path;
+        this.paths.put(path, state);
+    }
+
+    private String match(GatewayPathMatcher matcher, String path) {
+        GatewayPathService.State state = matcher.match(path);
+        return state != null ? state.path : null;
+    }
+
+    /**
+     * This test verifies exact and longest-prefix matching.
+     */
+    @Test
+    public void testLongestPrefixMatch() {
+        register("/core/examples");
+        register("/core/examples/special");
+        register("/core/other");
+        GatewayPathMatcher matcher = GatewayPathMatcher.build(this.paths);
+
+        assertEquals(3, matcher.size());
+        assertEquals("/core/examples", match(matcher, "/core/examples"));
+        assertEquals("/core/examples", match(matcher, "/core/examples/"));
+        assertEquals("/core/examples", match(matcher, "/core/examples/id"));
+        assertEquals("/core/examples", match(matcher, "/core/examples/id/stats"));
+        assertEquals("/core/examples/special", match(matcher, "/core/examples/special/stats"));
+        assertEquals("/core/other", match(matcher, "/core//other"));
+        assertNull(match(matcher, "/core"));
+        assertNull(match(matcher, "/core/example"));
+        assertNull(match(matcher, "/core/examplesX"));
+        assertNull(match(matcher, "/"));
+        assertNull(match(matcher, ""));
+    }
+
+    /**
+     * This test verifies wildcard and templated segments, and that
+     * literal segments are preferred when both match.
+     */
+    @Test
+    public void testWildcardAndTemplates() {
+        register("/core/tenants/*/examples");
+        register("/core/tenants/{tenant}/examples/{id}/stats");
+        register("/core/tenants/admin/examples");
+        GatewayPathMatcher matcher = GatewayPathMatcher.build(this.paths);
+
+        assertEquals("/core/tenants/*/examples",
+                match(matcher, "/core/tenants/t1/examples"));
+        assertEquals("/core/tenants/*/examples",
+                match(matcher, "/core/tenants/t1/examples/id"));
+        assertEquals("/core/tenants/{tenant}/examples/{id}/stats",
+                match(matcher, "/core/tenants/t1/examples/id/stats/more"));
+        assertEquals("/core/tenants/admin/examples",
+                match(matcher, "/core/tenants/admin/examples/id"));
+        assertEquals("/core/tenants/{tenant}/examples/{id}/stats",
+                match(matcher, "/core/tenants/admin/examples/id/stats"));
+        assertNull(match(matcher, "/core/tenants/t1"));
+        assertNull(match(matcher, "/core/tenants/t1/other"));
+    }
+
+    /**
+     * This test verifies that an empty matcher never matches.
+     */
+    @Test
+    public void testEmptyMatcher() {
+        GatewayPathMatcher matcher = GatewayPathMatcher.build(this.paths);
+        assertEquals(0, matcher.size());
+        assertNull(match(matcher, "/core/examples"));
+        assertNull(match(GatewayPathMatcher.empty(), "/"));
+    }
+
+    /**
+     * This test verifies that request paths are decoded, and that paths
+     * with dot-segments or encoded slashes are rejected.
+     */
+    @Test
+    public void testCanonicalPath() {
+        assertEquals("/core/examples/a b", GatewayPathMatcher.toCanonicalPath("/core/examples/a%20b"));
+        assertEquals("/core/examples/.hidden..",
+                GatewayPathMatcher.toCanonicalPath("/core/examples/.hidden.."));
+        assertEquals("", GatewayPathMatcher.toCanonicalPath(""));
+        assertNull(GatewayPathMatcher.toCanonicalPath("/core/examples/../secret"));
+        assertNull(GatewayPathMatcher.toCanonicalPath("/core/examples/./id"));
+        assertNull(GatewayPathMatcher.toCanonicalPath("/core/examples/%2E%2e/secret"));
+        assertNull(GatewayPathMatcher.toCanonicalPath("/core/examples/.."));
+        assertNull(GatewayPathMatcher.toCanonicalPath("/core/examples%2Fsecret"));
+        assertNull(GatewayPathMatcher.toCanonicalPath("/core/examples%5csecret"));
+        assertNull(GatewayPathMatcher.toCanonicalPath("/core/examples/%zz"));
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.gateway;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TestGatewayRateLimiter {
+
+    /**
+     * This test verifies that a burst of requests is allowed,
+     * and that requests over the burst are rejected.
+     */
+    @Test
+    public void testBurst() {
+        GatewayRateLimiter limiter = GatewayRateLimiter.update(null, 1, 5);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, limiter.tryAcquire());
+        }
+        long waitMicros = limiter.tryAcquire();
+        assertTrue(waitMicros > 0);
+        assertTrue(waitMicros <= TimeUnit.SECONDS.toMicros(1));
+    }
+
+    /**
+     * This test verifies that rate limiters are only recreated
+     * when their settings change.
+     */
+    @Test
+    public void testUpdate() {
+        assertNull(GatewayRateLimiter.update(null, null, 10));
+        GatewayRateLimiter limiter = GatewayRateLimiter.update(null, 100, null);
+        assertEquals(100, limiter.getBurst());
+        assertSame(limiter, GatewayRateLimiter.update(limiter, 100, 100));
+        assertNotSame(limiter, GatewayRateLimiter.update(limiter, 100, 50));
+        assertNull(GatewayRateLimiter.update(limiter, null, null));
+
+        assertTrue(GatewayRateLimiter.isValid(null, null));
+        assertFalse(GatewayRateLimiter.isValid(0, null));
+        assertFalse(GatewayRateLimiter.isValid(10, -1));
+    }
+
+    /**
+     * This test verifies that the limit applies to the total
+     * across concurrent threads.
+     */
+    @Test
+    public void testConcurrentAcquire() throws Throwable {
+        int burst = 1000;
+        GatewayRateLimiter limiter = GatewayRateLimiter.update(null, 1, burst);
+        AtomicInteger permits = new AtomicInteger();
+        int threadCount = 8;
+        CountDownLatch latch = new CountDownLatch(threadCount);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < threadCount; i++) {
+            Thread thread = new Thread(() -> {
+                for (int j = 0; j < burst; j++) {
+                    if (limiter.tryAcquire() == 0) {
+                        permits.incrementAndGet();
+                    }
+                }
+                latch.countDown();
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+
+        // Allow for a few permits refilled while the threads ran.
+        assertTrue(permits.get() >= burst);
+        assertTrue(permits.get() <= burst + threadCount);
+    }
+}
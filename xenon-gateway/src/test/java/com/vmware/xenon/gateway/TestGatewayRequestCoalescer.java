@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.gateway;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.UriUtils;
+
+public class TestGatewayRequestCoalescer {
+
+    /**
+     * This test verifies that requests joining an in-flight request
+     * are handed back once it completes, and that a new request is
+     * forwarded after that.
+     */
+    @Test
+    public void testJoinAndComplete() {
+        GatewayRequestCoalescer coalescer = new GatewayRequestCoalescer();
+        Operation leader = Operation.createGet(UriUtils.buildUri("http://127.0.0.1:8000/a"));
+        assertFalse(coalescer.join("a", leader, 0));
+
+        List<Operation> waiters = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            Operation op = Operation.createGet(UriUtils.buildUri("http://127.0.0.1:8000/a"));
+            assertTrue(coalescer.join("a", op, i));
+            waiters.add(op);
+        }
+        assertFalse(coalescer.join("b", leader, 0));
+        assertEquals(2, coalescer.getInFlightCount());
+
+        List<Operation> completed = new ArrayList<>();
+        coalescer.complete("a", (op, startTimeMicros) -> completed.add(op));
+        assertEquals(waiters, completed);
+        assertEquals(3, coalescer.getCoalescedCount());
+
+        // The next request is forwarded again.
+        assertFalse(coalescer.join("a", leader, 0));
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.gateway;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.UriUtils;
+
+public class TestGatewayResponseCache {
+
+    private static final long TTL_MICROS = TimeUnit.MINUTES.toMicros(1);
+
+    /**
+     * This test verifies that cached responses are served without
+     * copying their body, along with the backend headers that matter
+     * for caching.
+     */
+    @Test
+    public void testServe() {
+        GatewayResponseCache cache = new GatewayResponseCache();
+        Operation response = createResponse("{\"name\":\"cached\"}");
+        response.addResponseHeader("etag", "\"v1\"");
+        response.addResponseHeader("cache-control", "max-age=60");
+        response.addResponseHeader("x-request-id", "1");
+        cache.put("a", "/a", cache.getGeneration("/a"), TTL_MICROS, response);
+
+        Operation first = createGet();
+        Operation second = createGet();
+        assertTrue(cache.serve(first, "a", "/a"));
+        assertTrue(cache.serve(second, "a", "/a"));
+        assertEquals(response.getBodyRaw(), first.getBodyRaw());
+        assertSame(first.getBodyRaw(), second.getBodyRaw());
+        assertEquals(Operation.MEDIA_TYPE_APPLICATION_JSON, first.getContentType());
+        assertEquals("\"v1\"", first.getResponseHeader("etag"));
+        assertEquals("max-age=60", first.getResponseHeader("cache-control"));
+        assertNull(first.getResponseHeader("x-request-id"));
+        assertEquals(2, cache.getHitCount());
+
+        // Updates on the path invalidate the cached response.
+        cache.invalidate("/a");
+        assertFalse(cache.serve(createGet(), "a", "/a"));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getSizeBytes());
+    }
+
+    /**
+     * This test verifies that once the cache is full, entries that were
+     * served since they were cached are evicted after the others.
+     */
+    @Test
+    public void testEviction() {
+        String body = new String(new char[100]).replace('\0', 'x');
+        System.setProperty(GatewayResponseCache.PROPERTY_NAME_MAX_SIZE_BYTES, "800");
+        GatewayResponseCache cache;
+        try {
+            cache = new GatewayResponseCache();
+        } finally {
+            System.clearProperty(GatewayResponseCache.PROPERTY_NAME_MAX_SIZE_BYTES);
+        }
+        for (int i = 0; i < 8; i++) {
+            cache.put("k" + i, "/a", 0, TTL_MICROS, createResponse(body));
+        }
+        assertEquals(800, cache.getSizeBytes());
+        assertTrue(cache.serve(createGet(), "k0", "/a"));
+
+        cache.put("k8", "/a", 0, TTL_MICROS, createResponse(body));
+        assertEquals(8, cache.size());
+        assertTrue(cache.serve(createGet(), "k0", "/a"));
+        assertFalse(cache.serve(createGet(), "k1", "/a"));
+        assertTrue(cache.serve(createGet(), "k8", "/a"));
+    }
+
+    private static Operation createResponse(String body) {
+        return createGet()
+                .setStatusCode(Operation.STATUS_CODE_OK)
+                .setContentType(Operation.MEDIA_TYPE_APPLICATION_JSON)
+                .setBodyNoCloning(body);
+    }
+
+    private static Operation createGet() {
+        return Operation.createGet(UriUtils.buildUri("http://127.0.0.1:8000/a"));
+    }
+}
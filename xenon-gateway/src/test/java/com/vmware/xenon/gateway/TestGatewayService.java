@@ -14,21 +14,37 @@
 package com.vmware.xenon.gateway;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.Array;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
 import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import com.vmware.xenon.common.CommandLineArgumentParser;
 import com.vmware.xenon.common.Operation;
@@ -38,6 +54,8 @@ import com.vmware.xenon.common.ServiceDocumentDescription;
 import com.vmware.xenon.common.ServiceDocumentQueryResult;
 import com.vmware.xenon.common.ServiceErrorResponse;
 import com.vmware.xenon.common.ServiceHost;
+import com.vmware.xenon.common.ServiceStats;
+import com.vmware.xenon.common.StatelessService;
 import com.vmware.xenon.common.UriUtils;
 import com.vmware.xenon.common.Utils;
 import com.vmware.xenon.common.test.MinimalTestServiceState;
@@ -303,6 +321,792 @@ public class TestGatewayService {
         assertTrue(result.name.equals(state.name));
     }
 
+    /**
+     * This test verifies that requests received while the gateway is
+     * PAUSED are queued up to the configured capacity, and forwarded
+     * once the gateway becomes AVAILABLE again. Queued requests are
+     * charged against the rate limit only once, when drained.
+     */
+    @Test
+    public void testPausedRequestQueueing() throws Throwable {
+        setupBackendHost();
+
+        // The burst allows exactly as many requests as the queue holds.
+        int queueCapacity = 8;
+        GatewayConfigService.State configState = createConfigState(GatewayStatus.PAUSED);
+        configState.status = GatewayStatus.PAUSED;
+        configState.pausedQueueCapacity = queueCapacity;
+        configState.pausedQueueDrainRatePerSecond = 100;
+        configState.rateLimitPerSecond = 1;
+        configState.rateLimitBurst = queueCapacity;
+        this.gatewayMgr.addConfig(configState);
+        this.gatewayMgr.addPaths(ExampleService.FACTORY_LINK, 1, null);
+        this.gatewayMgr.verifyGatewayState();
+
+        // Send one request more than the queue can hold. Exactly one
+        // request should get rejected right away.
+        AtomicInteger rejectedCount = new AtomicInteger();
+        TestContext ctx = this.host.testCreate(queueCapacity);
+        for (int i = 0; i <= queueCapacity; i++) {
+            ExampleServiceState state = new ExampleServiceState();
+            state.name = "queued-" + i;
+            Operation postOp = Operation
+                    .createPost(getDispatchUri(ExampleService.FACTORY_LINK))
+                    .setBody(state)
+                    .setReferer(this.host.getUri())
+                    .setCompletion((o, e) -> {
+                        if (e != null && o.getStatusCode() == Operation.STATUS_CODE_UNAVAILABLE) {
+                            rejectedCount.incrementAndGet();
+                            return;
+                        }
+                        if (e != null) {
+                            ctx.failIteration(e);
+                            return;
+                        }
+                        ctx.completeIteration();
+                    });
+            this.host.send(postOp);
+        }
+        this.host.waitFor("Request was not rejected", () -> rejectedCount.get() == 1);
+
+        // Resume the gateway. The queued requests should now succeed.
+        this.gatewayMgr.changeConfigStatus(GatewayStatus.AVAILABLE);
+        ctx.await();
+        assertEquals(1, rejectedCount.get());
+    }
+
+    /**
+     * This test verifies that requests over the configured rate
+     * limit are rejected with http 429 and a Retry-After header.
+     */
+    @Test
+    public void testRateLimiting() throws Throwable {
+        setupBackendHost();
+
+        GatewayConfigService.State configState = createConfigState(GatewayStatus.AVAILABLE);
+        configState.rateLimitPerSecond = 1;
+        configState.rateLimitBurst = 2;
+        this.gatewayMgr.addConfig(configState);
+        this.gatewayMgr.addPaths(ExampleService.FACTORY_LINK, 1, null);
+        this.gatewayMgr.verifyGatewayState();
+
+        // Send more requests than the burst allows.
+        List<Operation> ops = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            ops.add(Operation.createGet(getDispatchUri(ExampleService.FACTORY_LINK)));
+        }
+        Operation rejectedOp = null;
+        for (Operation op : this.sender.sendAndWait(ops, false)) {
+            if (op.getStatusCode() == GatewayService.STATUS_CODE_TOO_MANY_REQUESTS) {
+                rejectedOp = op;
+            }
+        }
+        assertTrue(rejectedOp != null);
+        assertEquals("1", rejectedOp.getResponseHeader(Operation.RETRY_AFTER_HEADER));
+        ServiceErrorResponse rsp = rejectedOp.getBody(ServiceErrorResponse.class);
+        assertEquals(GatewayService.STATUS_CODE_TOO_MANY_REQUESTS, rsp.statusCode);
+    }
+
+    /**
+     * This test verifies that requests fail right away once the circuit
+     * breaker of a path opens, and that the circuit breaker state is
+     * returned by a GET on the gateway.
+     */
+    @Test
+    public void testCircuitBreaker() throws Throwable {
+        setupBackendHost();
+
+        this.gatewayMgr.addConfig(createConfigState(GatewayStatus.AVAILABLE));
+        GatewayPathService.State pathState = new GatewayPathService.State();
+        pathState.path = MINIMAL_SERVICE_LINK;
+        pathState.circuitBreaker = new GatewayPathService.CircuitBreaker();
+        pathState.circuitBreaker.errorThresholdPercent = 50;
+        pathState.circuitBreaker.minRequestCount = 5;
+        pathState.circuitBreaker.openDurationMicros = TimeUnit.MINUTES.toMicros(1);
+        this.gatewayMgr.addPath(pathState);
+        this.gatewayMgr.verifyGatewayState();
+
+        // The minimal service fails these requests with http 500.
+        MinimalTestServiceState body = new MinimalTestServiceState();
+        body.id = MinimalTestService.STRING_MARKER_FAIL_REQUEST;
+        for (int i = 0; i < pathState.circuitBreaker.minRequestCount; i++) {
+            TestRequestSender.FailureResponse response = this.sender.sendAndWaitFailure(
+                    Operation.createDelete(getDispatchUri(MINIMAL_SERVICE_LINK)).setBody(body));
+            assertEquals(Operation.STATUS_CODE_INTERNAL_ERROR, response.op.getStatusCode());
+        }
+        TestRequestSender.FailureResponse response = this.sender.sendAndWaitFailure(
+                Operation.createDelete(getDispatchUri(MINIMAL_SERVICE_LINK)).setBody(body));
+        assertEquals(Operation.STATUS_CODE_UNAVAILABLE, response.op.getStatusCode());
+
+        GatewayCache.CachedState state = this.sender.sendAndWait(
+                Operation.createGet(this.gatewayHost.getDispatchHost().getUri()))
+                .getBody(GatewayCache.CachedState.class);
+        GatewayCircuitBreaker.Status status = state.circuitBreakers
+                .get(this.backendHost.getUri().toString()).get(MINIMAL_SERVICE_LINK);
+        assertEquals(GatewayCircuitBreaker.State.OPEN, status.state);
+        assertEquals(1, status.tripCount);
+        assertEquals(pathState.circuitBreaker.minRequestCount, status.failureCount, 0);
+
+        // Streaming requests are rejected by the same circuit breaker.
+        int streamingPort = this.gatewayHost.getDispatchHost().getStreamingPort();
+        URL url = new URL("http", "127.0.0.1", streamingPort, MINIMAL_SERVICE_LINK);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod(Action.DELETE.name());
+        assertEquals(Operation.STATUS_CODE_UNAVAILABLE, connection.getResponseCode());
+        ServiceStats stats = this.sender.sendAndWait(
+                Operation.createGet(getGatewayStatsUri()))
+                .getBody(ServiceStats.class);
+        assertEquals(2, stats.entries.get("circuitBreakerRejectedCount").latestValue, 0);
+    }
+
+    /**
+     * This test verifies that the circuit breaker of a path with coalescing
+     * turned-on still closes when the probe was taken by a request that
+     * then joined an identical request in flight.
+     */
+    @Test
+    public void testCircuitBreakerWithCoalescing() throws Throwable {
+        setupBackendHost();
+        DelayedTestService slowService = new DelayedTestService();
+        this.backendHost.startServiceAndWait(slowService, DelayedTestService.SELF_LINK, null);
+
+        this.gatewayMgr.addConfig(createConfigState(GatewayStatus.AVAILABLE));
+        GatewayPathService.State pathState = new GatewayPathService.State();
+        pathState.path = DelayedTestService.SELF_LINK;
+        pathState.coalesceRequests = true;
+        pathState.circuitBreaker = new GatewayPathService.CircuitBreaker();
+        pathState.circuitBreaker.errorThresholdPercent = 50;
+        pathState.circuitBreaker.minRequestCount = 2;
+        pathState.circuitBreaker.slowRequestThresholdMicros = TimeUnit.MILLISECONDS.toMicros(200);
+        pathState.circuitBreaker.openDurationMicros = TimeUnit.MILLISECONDS.toMicros(100);
+        this.gatewayMgr.addPath(pathState);
+        this.gatewayMgr.verifyGatewayState();
+
+        // Keep a GET in flight while the circuit opens.
+        URI dispatchUri = getDispatchUri(DelayedTestService.SELF_LINK);
+        slowService.delayMillis = 3000;
+        TestContext ctx = this.host.testCreate(1);
+        this.host.send(Operation.createGet(dispatchUri)
+                .setReferer(this.host.getUri())
+                .setCompletion(ctx.getCompletion()));
+        this.host.waitFor("Request was not received", () -> slowService.getCount.get() == 1);
+
+        // Slow requests count as failures, and open the circuit.
+        slowService.delayMillis = 300;
+        for (int i = 0; i < pathState.circuitBreaker.minRequestCount; i++) {
+            this.sender.sendAndWait(Operation.createGet(
+                    UriUtils.extendUriWithQuery(dispatchUri, "trip", String.valueOf(i))));
+        }
+        slowService.delayMillis = 0;
+        Thread.sleep(TimeUnit.MICROSECONDS.toMillis(pathState.circuitBreaker.openDurationMicros) * 2);
+
+        // This request takes the probe, then joins the GET in flight.
+        this.sender.sendAndWait(Operation.createGet(dispatchUri));
+        ctx.await();
+        GatewayService gatewayService = this.gatewayHost.getDispatchHost().getGatewayService();
+        assertEquals(1, gatewayService.getCoalescedRequestCount());
+
+        // The next request is let through as the probe, and closes the circuit.
+        this.sender.sendAndWait(Operation.createGet(
+                UriUtils.extendUriWithQuery(dispatchUri, "probe", "true")));
+        GatewayCache.CachedState state = this.sender.sendAndWait(
+                Operation.createGet(this.gatewayHost.getDispatchHost().getUri()))
+                .getBody(GatewayCache.CachedState.class);
+        GatewayCircuitBreaker.Status status = state.circuitBreakers
+                .get(this.backendHost.getUri().toString()).get(DelayedTestService.SELF_LINK);
+        assertEquals(GatewayCircuitBreaker.State.CLOSED, status.state);
+        assertEquals(1, status.tripCount);
+    }
+
+    /**
+     * This test verifies that requests on an idempotent path are also
+     * sent to a second backend when the selected backend is slow, and
+     * that the first response is used.
+     */
+    @Test
+    public void testRequestHedging() throws Throwable {
+        setupBackendHost();
+        VerificationHost otherBackendHost = VerificationHost.create(0);
+        try {
+            otherBackendHost.start();
+            DelayedTestService slowService = new DelayedTestService();
+            this.backendHost.startServiceAndWait(slowService, DelayedTestService.SELF_LINK, null);
+            otherBackendHost.startServiceAndWait(
+                    new DelayedTestService(), DelayedTestService.SELF_LINK, null);
+
+            GatewayConfigService.State configState = createConfigState(GatewayStatus.AVAILABLE);
+            configState.backends = new HashMap<>();
+            for (VerificationHost backendHost : Arrays.asList(this.backendHost, otherBackendHost)) {
+                GatewayConfigService.Backend backend = new GatewayConfigService.Backend();
+                backend.uri = backendHost.getUri();
+                configState.backends.put(backendHost.getId(), backend);
+            }
+            this.gatewayMgr.addConfig(configState);
+            GatewayPathService.State pathState = new GatewayPathService.State();
+            pathState.path = DelayedTestService.SELF_LINK;
+            pathState.idempotent = true;
+            this.gatewayMgr.addPath(pathState);
+            this.gatewayMgr.verifyGatewayState();
+
+            // Record enough latencies for the path to get hedged.
+            URI dispatchUri = getDispatchUri(DelayedTestService.SELF_LINK);
+            for (int i = 0; i < 120; i++) {
+                this.sender.sendAndWait(Operation.createGet(dispatchUri));
+            }
+
+            slowService.delayMillis = TimeUnit.SECONDS.toMillis(10);
+            for (int i = 0; i < 4; i++) {
+                ServiceDocument response = this.sender.sendAndWait(
+                        Operation.createGet(dispatchUri)).getBody(ServiceDocument.class);
+                assertEquals(otherBackendHost.getId(), response.documentOwner);
+            }
+
+            ServiceStats stats = this.sender.sendAndWait(
+                    Operation.createGet(getGatewayStatsUri()))
+                    .getBody(ServiceStats.class);
+            assertTrue(stats.entries.get("hedgedRequestCount").latestValue > 0);
+            assertTrue(stats.entries.get("hedgeWinCount").latestValue > 0);
+        } finally {
+            otherBackendHost.tearDown();
+        }
+    }
+
+    /**
+     * This test verifies that requests over the adaptive concurrency
+     * limit are shed with http 503, and that the limit and the number
+     * of requests in flight are exposed through the stats endpoint.
+     */
+    @Test
+    public void testAdaptiveConcurrencyLimit() throws Throwable {
+        setupBackendHost();
+        DelayedTestService slowService = new DelayedTestService();
+        slowService.delayMillis = 500;
+        this.backendHost.startServiceAndWait(slowService, DelayedTestService.SELF_LINK, null);
+
+        GatewayConfigService.State configState = createConfigState(GatewayStatus.AVAILABLE);
+        configState.adaptiveConcurrencyEnabled = true;
+        configState.maxConcurrency = 2;
+        this.gatewayMgr.addConfig(configState);
+        this.gatewayMgr.addPaths(DelayedTestService.SELF_LINK, 1, null);
+        this.gatewayMgr.verifyGatewayState();
+
+        List<Operation> ops = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            ops.add(Operation.createGet(getDispatchUri(DelayedTestService.SELF_LINK)));
+        }
+        int successCount = 0;
+        int rejectedCount = 0;
+        for (Operation op : this.sender.sendAndWait(ops, false)) {
+            if (op.getStatusCode() == Operation.STATUS_CODE_OK) {
+                successCount++;
+            } else if (op.getStatusCode() == Operation.STATUS_CODE_UNAVAILABLE) {
+                rejectedCount++;
+            }
+        }
+        assertTrue(successCount > 0);
+        assertEquals(ops.size(), successCount + rejectedCount);
+
+        ServiceStats stats = this.sender.sendAndWait(
+                Operation.createGet(getGatewayStatsUri()))
+                .getBody(ServiceStats.class);
+        assertEquals(rejectedCount,
+                stats.entries.get("concurrencyLimitRejectedCount").latestValue, 0);
+        assertEquals(configState.maxConcurrency,
+                stats.entries.get(GatewayMetrics.STAT_NAME_CONCURRENCY_LIMIT).latestValue, 0);
+        assertEquals(0, stats.entries.get(GatewayMetrics.STAT_NAME_IN_FLIGHT_REQUESTS).latestValue, 0);
+
+        // Streaming requests are shed once the limit is reached.
+        int getCount = slowService.getCount.get();
+        TestContext ctx = this.host.testCreate(configState.maxConcurrency);
+        for (int i = 0; i < configState.maxConcurrency; i++) {
+            this.host.send(Operation.createGet(getDispatchUri(DelayedTestService.SELF_LINK))
+                    .setReferer(this.host.getUri())
+                    .setCompletion(ctx.getCompletion()));
+        }
+        this.host.waitFor("Requests were not received", () ->
+                slowService.getCount.get() == getCount + configState.maxConcurrency);
+        int streamingPort = this.gatewayHost.getDispatchHost().getStreamingPort();
+        URL url = new URL("http", "127.0.0.1", streamingPort, DelayedTestService.SELF_LINK);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        assertEquals(Operation.STATUS_CODE_UNAVAILABLE, connection.getResponseCode());
+        ctx.await();
+
+        // Relayed streaming requests give their slot back.
+        connection = (HttpURLConnection) url.openConnection();
+        assertEquals(Operation.STATUS_CODE_OK, connection.getResponseCode());
+        stats = this.sender.sendAndWait(
+                Operation.createGet(getGatewayStatsUri()))
+                .getBody(ServiceStats.class);
+        assertEquals(rejectedCount + 1,
+                stats.entries.get("concurrencyLimitRejectedCount").latestValue, 0);
+        assertEquals(0, stats.entries.get(GatewayMetrics.STAT_NAME_IN_FLIGHT_REQUESTS).latestValue, 0);
+    }
+
+    /**
+     * A test service that responds to GETs with the id of its
+     * host, after a delay, and counts the GETs it received.
+     */
+    public static class DelayedTestService extends StatelessService {
+        public static final String SELF_LINK = "/delayed-service";
+
+        public volatile long delayMillis;
+        public final AtomicInteger getCount = new AtomicInteger();
+
+        @Override
+        public void handleGet(Operation get) {
+            this.getCount.incrementAndGet();
+            ServiceDocument body = new ServiceDocument();
+            body.documentOwner = getHost().getId();
+            get.setBody(body);
+            if (this.delayMillis == 0) {
+                get.complete();
+                return;
+            }
+            getHost().schedule(get::complete, this.delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * This test verifies that GET responses are served from the response
+     * cache, and that updates through the gateway invalidate the cache.
+     */
+    @Test
+    public void testResponseCaching() throws Throwable {
+        setupBackendHost();
+
+        this.gatewayMgr.addConfig(createConfigState(GatewayStatus.AVAILABLE));
+        GatewayPathService.State pathState = new GatewayPathService.State();
+        pathState.path = ExampleService.FACTORY_LINK;
+        pathState.responseCacheTtlMicros = TimeUnit.MINUTES.toMicros(1);
+        this.gatewayMgr.addPath(pathState);
+        this.gatewayMgr.verifyGatewayState();
+
+        ExampleServiceState state = new ExampleServiceState();
+        state.name = "initial";
+        state = this.sender.sendAndWait(Operation
+                .createPost(getDispatchUri(ExampleService.FACTORY_LINK))
+                .setBody(state), ExampleServiceState.class);
+        URI dispatchUri = getDispatchUri(state.documentSelfLink);
+        assertEquals("initial", this.sender.sendAndWait(
+                Operation.createGet(dispatchUri), ExampleServiceState.class).name);
+
+        // Update the document on the backend directly. The gateway
+        // should keep serving the cached response.
+        ExampleServiceState patch = new ExampleServiceState();
+        patch.name = "backend";
+        this.sender.sendAndWait(Operation
+                .createPatch(UriUtils.buildUri(this.backendHost, state.documentSelfLink))
+                .setBody(patch));
+        assertEquals("initial", this.sender.sendAndWait(
+                Operation.createGet(dispatchUri), ExampleServiceState.class).name);
+
+        // Update the document through the gateway. The cached
+        // response should get invalidated.
+        patch.name = "gateway";
+        this.sender.sendAndWait(Operation.createPatch(dispatchUri).setBody(patch));
+        assertEquals("gateway", this.sender.sendAndWait(
+                Operation.createGet(dispatchUri), ExampleServiceState.class).name);
+    }
+
+    /**
+     * This test verifies that concurrent identical GETs on a path
+     * with coalescing turned-on all get the same response.
+     */
+    @Test
+    public void testRequestCoalescing() throws Throwable {
+        setupBackendHost();
+
+        // Slow down the backend, so that the identical GETs overlap.
+        DelayedTestService slowService = new DelayedTestService();
+        slowService.delayMillis = 500;
+        this.backendHost.startServiceAndWait(slowService, DelayedTestService.SELF_LINK, null);
+
+        this.gatewayMgr.addConfig(createConfigState(GatewayStatus.AVAILABLE));
+        GatewayPathService.State pathState = new GatewayPathService.State();
+        pathState.path = DelayedTestService.SELF_LINK;
+        pathState.coalesceRequests = true;
+        this.gatewayMgr.addPath(pathState);
+        this.gatewayMgr.verifyGatewayState();
+
+        int requestCount = this.serviceCount * 10;
+        List<Operation> ops = new ArrayList<>();
+        for (int i = 0; i < requestCount; i++) {
+            ops.add(Operation.createGet(getDispatchUri(DelayedTestService.SELF_LINK)));
+        }
+        for (Operation op : this.sender.sendAndWait(ops)) {
+            ServiceDocument result = op.getBody(ServiceDocument.class);
+            assertEquals(this.backendHost.getId(), result.documentOwner);
+        }
+        GatewayService gatewayService = this.gatewayHost.getDispatchHost().getGatewayService();
+        long coalescedCount = gatewayService.getCoalescedRequestCount();
+        assertTrue(coalescedCount > 0);
+        assertTrue(slowService.getCount.get() < requestCount);
+        assertEquals(requestCount, slowService.getCount.get() + coalescedCount);
+    }
+
+    /**
+     * This test verifies that requests are forwarded over pooled HTTP/2
+     * connections when enabled, and that the pool statistics of the
+     * backend are exposed through the stats endpoint of the Gateway.
+     */
+    @Test
+    public void testBackendHttp2Pooling() throws Throwable {
+        setupBackendHost();
+
+        GatewayConfigService.State configState = createConfigState(GatewayStatus.AVAILABLE);
+        configState.backendHttp2Enabled = true;
+        configState.backendConnectionLimit = 2;
+        this.gatewayMgr.addConfig(configState);
+        this.gatewayMgr.addPaths(ExampleService.FACTORY_LINK, 1, null);
+        this.gatewayMgr.verifyGatewayState();
+
+        List<Operation> ops = new ArrayList<>();
+        for (int i = 0; i < this.serviceCount * 10; i++) {
+            ExampleServiceState state = new ExampleServiceState();
+            state.name = "http2-" + i;
+            ops.add(Operation.createPost(getDispatchUri(ExampleService.FACTORY_LINK)).setBody(state));
+        }
+        this.sender.sendAndWait(ops);
+        ServiceDocumentQueryResult result = this.sender.sendAndWait(
+                Operation.createGet(getDispatchUri(ExampleService.FACTORY_LINK)),
+                ServiceDocumentQueryResult.class);
+        assertEquals(ops.size(), (long) result.documentCount);
+
+        ServiceStats stats = this.sender.sendAndWait(
+                Operation.createGet(getGatewayStatsUri()))
+                .getBody(ServiceStats.class);
+        String suffix = ":" + this.backendHost.getUri();
+        ServiceStats.ServiceStat inUse = stats.entries.get(
+                GatewayMetrics.STAT_NAME_BACKEND_CONNECTIONS_IN_USE + suffix);
+        ServiceStats.ServiceStat available = stats.entries.get(
+                GatewayMetrics.STAT_NAME_BACKEND_CONNECTIONS_AVAILABLE + suffix);
+        assertTrue(stats.entries.keySet().toString(), inUse != null && available != null);
+        assertTrue(inUse.latestValue + available.latestValue <= configState.backendConnectionLimit);
+    }
+
+    /**
+     * This test verifies that several dispatch hosts, started in a
+     * separate GatewayHost subscribed to the same config host, all
+     * receive the configuration and dispatch requests.
+     */
+    @Test
+    public void testMultipleDispatchHosts() throws Throwable {
+        setupBackendHost();
+
+        this.gatewayMgr.addConfig(createConfigState(GatewayStatus.AVAILABLE));
+        this.gatewayMgr.addPaths(ExampleService.FACTORY_LINK, 1, null);
+        this.gatewayMgr.verifyGatewayState();
+
+        GatewayHost.Arguments args = createGatewayArguments();
+        args.dispatchHostCount = 2;
+        args.configHostUri = this.gatewayHost.getConfigHost().getUri().toString();
+        GatewayHost dispatchOnlyHost = startGatewayHost(args);
+        try {
+            assertEquals(2, dispatchOnlyHost.getDispatchHosts().size());
+
+            for (ServiceHost dispatchHost : dispatchOnlyHost.getDispatchHosts()) {
+                this.host.waitFor("Gateway cache was not updated", () -> {
+                    Operation rsp = this.sender.sendAndWait(Operation.createGet(dispatchHost.getUri()));
+                    GatewayCache.CachedState cache = rsp.getBody(GatewayCache.CachedState.class);
+                    return cache.configState.status == GatewayStatus.AVAILABLE
+                            && cache.paths.containsKey(ExampleService.FACTORY_LINK);
+                });
+                this.host.createExampleServices(dispatchHost, 1, null, true);
+            }
+        } finally {
+            dispatchOnlyHost.stop();
+        }
+    }
+
+    /**
+     * This test verifies that a restarted dispatch host serves from its
+     * cache snapshot right away, and reconciles it with the config host.
+     * While the config host is unreachable, the snapshot is reported as stale.
+     */
+    @Test
+    public void testDispatchHostSnapshot() throws Throwable {
+        this.gatewayMgr.addConfig(createConfigState(GatewayStatus.AVAILABLE));
+        this.gatewayMgr.addPaths("/core/snapshot-%d", 2, EnumSet.of(Action.GET));
+        this.gatewayMgr.verifyGatewayState();
+
+        TemporaryFolder folder = new TemporaryFolder();
+        folder.create();
+        GatewayHost.Arguments args = createGatewayArguments();
+        args.sandbox = folder.getRoot().toPath();
+        args.dispatchId = "snapshot-test";
+        args.dispatchCacheSnapshot = true;
+        args.configHostUri = this.gatewayHost.getConfigHost().getUri().toString();
+        try {
+            // The first start waits for the replay of the configuration.
+            GatewayHost dispatchOnlyHost = startGatewayHost(args);
+            ServiceHost dispatchHost = dispatchOnlyHost.getDispatchHosts().get(0);
+            waitForCachedPaths(dispatchHost, "/core/snapshot-0", "/core/snapshot-1");
+            dispatchOnlyHost.stop();
+
+            // Remove a path while the dispatch host is down. After the restart,
+            // the dispatch host serves from the snapshot before reconciling.
+            String pathLink = GatewayPathFactoryService.createSelfLinkFromState(
+                    createPathState("/core/snapshot-1"));
+            this.gatewayMgr.deletePaths(Collections.singleton(pathLink));
+            dispatchOnlyHost = startGatewayHost(args);
+            dispatchHost = dispatchOnlyHost.getDispatchHosts().get(0);
+            Operation rsp = this.sender.sendAndWait(Operation.createGet(dispatchHost.getUri()));
+            GatewayCache.CachedState cache = rsp.getBody(GatewayCache.CachedState.class);
+            assertEquals(GatewayStatus.AVAILABLE, cache.configState.status);
+            assertTrue(cache.paths.containsKey("/core/snapshot-0"));
+
+            waitForCachedPaths(dispatchHost, "/core/snapshot-0");
+            rsp = this.sender.sendAndWait(Operation.createGet(dispatchHost.getUri()));
+            assertFalse(rsp.getBody(GatewayCache.CachedState.class).isStale);
+            dispatchOnlyHost.stop();
+
+            // Start with an unreachable config host.
+            int port;
+            try (ServerSocket socket = new ServerSocket(0)) {
+                port = socket.getLocalPort();
+            }
+            args.configHostUri = "http://127.0.0.1:" + port;
+            dispatchOnlyHost = startGatewayHost(args);
+            dispatchHost = dispatchOnlyHost.getDispatchHosts().get(0);
+            ServiceHost staleHost = dispatchHost;
+            this.host.waitFor("Gateway cache was not reported as stale", () -> {
+                Operation op = this.sender.sendAndWait(Operation.createGet(staleHost.getUri()));
+                GatewayCache.CachedState state = op.getBody(GatewayCache.CachedState.class);
+                return state.isStale && state.paths.containsKey("/core/snapshot-0");
+            });
+
+            // Once a config host is reachable, the subscription is retried
+            // and the snapshot reconciled with its empty configuration.
+            GatewayHost.Arguments configArgs = createGatewayArguments();
+            configArgs.port = port;
+            GatewayHost configOnlyHost = startGatewayHost(configArgs);
+            try {
+                this.host.waitFor("Gateway cache was not reconciled", () -> {
+                    Operation op = this.sender.sendAndWait(Operation.createGet(staleHost.getUri()));
+                    GatewayCache.CachedState state = op.getBody(GatewayCache.CachedState.class);
+                    return !state.isStale && state.paths.isEmpty();
+                });
+            } finally {
+                configOnlyHost.stop();
+            }
+            dispatchOnlyHost.stop();
+        } finally {
+            folder.delete();
+        }
+    }
+
+    private GatewayHost startGatewayHost(GatewayHost.Arguments args) throws Throwable {
+        GatewayHost gatewayHost = new GatewayHost();
+        TestContext ctx = this.host.testCreate(1);
+        gatewayHost.start(args, (t) -> {
+            if (t != null) {
+                ctx.failIteration(t);
+                return;
+            }
+            ctx.completeIteration();
+        });
+        ctx.await();
+        return gatewayHost;
+    }
+
+    private void waitForCachedPaths(ServiceHost dispatchHost, String... paths) {
+        this.host.waitFor("Gateway cache was not updated", () -> {
+            Operation rsp = this.sender.sendAndWait(Operation.createGet(dispatchHost.getUri()));
+            GatewayCache.CachedState cache = rsp.getBody(GatewayCache.CachedState.class);
+            return cache.configState.status == GatewayStatus.AVAILABLE
+                    && cache.paths.keySet().equals(new HashSet<>(Arrays.asList(paths)));
+        });
+    }
+
+    private static GatewayPathService.State createPathState(String path) {
+        GatewayPathService.State state = new GatewayPathService.State();
+        state.path = path;
+        return state;
+    }
+
+    /**
+     * This test verifies that paths registered through the bulk endpoint
+     * are all created and cached, and that failures are reported per path.
+     */
+    @Test
+    public void testBulkPathRegistration() throws Throwable {
+        setupBackendHost();
+
+        this.gatewayMgr.addConfig(createConfigState(GatewayStatus.AVAILABLE));
+        int pathCount = 500;
+        List<GatewayPathService.State> states = new ArrayList<>();
+        for (int i = 0; i < pathCount; i++) {
+            GatewayPathService.State state = new GatewayPathService.State();
+            state.path = String.format("/core/bulk-%d", i);
+            state.actions = EnumSet.of(Action.GET);
+            states.add(state);
+        }
+        GatewayPathService.State invalidState = new GatewayPathService.State();
+        invalidState.actions = EnumSet.of(Action.GET);
+        states.add(invalidState);
+
+        GatewayPathFactoryService.BulkResponse rsp = this.gatewayMgr.addPathsBulk(states);
+        assertEquals(states.size(), rsp.results.size());
+        assertEquals(1, rsp.failureCount);
+        for (int i = 0; i < pathCount; i++) {
+            assertEquals(states.get(i).path, rsp.results.get(i).path);
+            assertEquals(Operation.STATUS_CODE_OK, rsp.results.get(i).statusCode);
+        }
+        assertEquals(Operation.STATUS_CODE_BAD_REQUEST, rsp.results.get(pathCount).statusCode);
+        this.gatewayMgr.verifyGatewayState();
+
+        // Registering the same paths again fails for each of them.
+        rsp = this.gatewayMgr.addPathsBulk(new ArrayList<>(states.subList(0, 10)));
+        assertEquals(10, rsp.failureCount);
+
+        // An empty batch is rejected.
+        GatewayPathFactoryService.BulkRequest body = new GatewayPathFactoryService.BulkRequest();
+        body.paths = new ArrayList<>();
+        this.sender.sendAndWaitFailure(Operation
+                .createPost(UriUtils.extendUriWithQuery(
+                        UriUtils.buildUri(this.gatewayHost.getConfigHost(),
+                                GatewayPathFactoryService.SELF_LINK),
+                        GatewayPathFactoryService.QUERY_PARAM_BULK, Boolean.TRUE.toString()))
+                .setBody(body));
+    }
+
+    /**
+     * This test verifies that request metrics are exposed through the
+     * stats endpoint and the Prometheus metrics endpoint of the Gateway.
+     */
+    @Test
+    public void testRequestMetrics() throws Throwable {
+        setupBackendHost();
+
+        this.gatewayMgr.addConfig(createConfigState(GatewayStatus.AVAILABLE));
+        this.gatewayMgr.addPaths(ExampleService.FACTORY_LINK, 1, EnumSet.of(Action.GET));
+        this.gatewayMgr.verifyGatewayState();
+
+        for (int i = 0; i < this.updateCount; i++) {
+            this.sender.sendAndWait(Operation.createGet(getDispatchUri(ExampleService.FACTORY_LINK)));
+        }
+        this.sender.sendAndWaitFailure(Operation.createGet(getDispatchUri("/core/unknown")));
+
+        // Stats paths are forwarded like any other path.
+        this.sender.sendAndWaitFailure(
+                Operation.createGet(getDispatchUri(ServiceHost.SERVICE_URI_SUFFIX_STATS)));
+
+        Operation statsOp = this.sender.sendAndWait(
+                Operation.createGet(getGatewayStatsUri()));
+        ServiceStats stats = statsOp.getBody(ServiceStats.class);
+        String suffix = ":" + ExampleService.FACTORY_LINK;
+        assertEquals(this.updateCount,
+                stats.entries.get(GatewayMetrics.STAT_NAME_REQUEST_COUNT + suffix).latestValue, 0);
+        assertEquals(this.updateCount, stats.entries.get("responseCount200").latestValue, 0);
+        assertEquals(2, stats.entries.get("responseCount404").latestValue, 0);
+        assertTrue(stats.entries.containsKey(GatewayMetrics.STAT_NAME_BACKEND_LATENCY + "P99" + suffix));
+        assertTrue(stats.entries.containsKey(GatewayMetrics.STAT_NAME_OVERHEAD_LATENCY + "P50"));
+
+        Operation metricsOp = this.sender.sendAndWait(
+                Operation.createGet(UriUtils.buildUri(this.gatewayHost.getDispatchHost(),
+                        GatewayService.SELF_LINK, GatewayService.QUERY_PARAM_METRICS)));
+        String text = metricsOp.getBody(String.class);
+        assertTrue(text, text.contains("xenon_gateway_requests_total{path=\""
+                + ExampleService.FACTORY_LINK + "\",status=\"2xx\"} " + this.updateCount));
+        assertTrue(text, text.contains("xenon_gateway_responses_total{code=\"404\"} 2"));
+    }
+
+    /**
+     * This test verifies that requests received on the streaming port
+     * are filtered and relayed to the backend node unchanged.
+     */
+    @Test
+    public void testStreamingRequests() throws Throwable {
+        setupBackendHost();
+
+        this.gatewayMgr.addConfig(createConfigState(GatewayStatus.AVAILABLE));
+        this.gatewayMgr.addPaths(ExampleService.FACTORY_LINK, 1, null);
+        this.gatewayMgr.verifyGatewayState();
+
+        int streamingPort = this.gatewayHost.getDispatchHost().getStreamingPort();
+        assertTrue(streamingPort > 0);
+
+        // POST a body larger than a single chunk, so that it gets relayed
+        // in multiple chunks, but within the document size limit.
+        ExampleServiceState state = new ExampleServiceState();
+        state.name = UUID.randomUUID().toString();
+        state.keyValues = new HashMap<>();
+        for (int i = 0; i < 400; i++) {
+            state.keyValues.put("key-" + i, UUID.randomUUID().toString());
+        }
+        URL url = new URL("http", "127.0.0.1", streamingPort, ExampleService.FACTORY_LINK);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod(Action.POST.name());
+        connection.setRequestProperty("Content-Type", Operation.MEDIA_TYPE_APPLICATION_JSON);
+        connection.setDoOutput(true);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(Utils.toJson(state).getBytes(StandardCharsets.UTF_8));
+        }
+        assertEquals(Operation.STATUS_CODE_OK, connection.getResponseCode());
+        try (InputStream in = connection.getInputStream()) {
+            ExampleServiceState result = Utils.fromJson(
+                    new String(readAll(in), StandardCharsets.UTF_8), ExampleServiceState.class);
+            assertEquals(state.name, result.name);
+            assertEquals(state.keyValues.size(), result.keyValues.size());
+            state.documentSelfLink = result.documentSelfLink;
+        }
+
+        // Sequential requests are relayed over pooled backend connections.
+        for (int i = 0; i < 5; i++) {
+            url = new URL("http", "127.0.0.1", streamingPort, state.documentSelfLink);
+            connection = (HttpURLConnection) url.openConnection();
+            assertEquals(Operation.STATUS_CODE_OK, connection.getResponseCode());
+            try (InputStream in = connection.getInputStream()) {
+                ExampleServiceState result = Utils.fromJson(
+                        new String(readAll(in), StandardCharsets.UTF_8), ExampleServiceState.class);
+                assertEquals(state.name, result.name);
+            }
+        }
+
+        // Backend URIs without a port use the default port of their scheme.
+        assertEquals(80, GatewayStreamingProxy.getPort(URI.create("http://127.0.0.1")));
+        assertEquals(443, GatewayStreamingProxy.getPort(URI.create("https://127.0.0.1/")));
+        assertEquals(8000, GatewayStreamingProxy.getPort(URI.create("https://127.0.0.1:8000")));
+
+        // Requests on paths that are not registered are rejected.
+        url = new URL("http", "127.0.0.1", streamingPort, MINIMAL_SERVICE_LINK);
+        connection = (HttpURLConnection) url.openConnection();
+        assertEquals(Operation.STATUS_CODE_NOT_FOUND, connection.getResponseCode());
+        try (InputStream in = connection.getErrorStream()) {
+            ServiceErrorResponse rsp = Utils.fromJson(
+                    new String(readAll(in), StandardCharsets.UTF_8), ServiceErrorResponse.class);
+            assertEquals(Operation.STATUS_CODE_NOT_FOUND, rsp.statusCode);
+        }
+
+        // Paths with dot-segments are rejected rather than matched on a prefix.
+        url = new URL("http", "127.0.0.1", streamingPort, ExampleService.FACTORY_LINK + "/../secret");
+        connection = (HttpURLConnection) url.openConnection();
+        assertEquals(Operation.STATUS_CODE_BAD_REQUEST, connection.getResponseCode());
+        // The dispatch host receives the path normalized, which matches no path.
+        TestRequestSender.FailureResponse failure = this.sender.sendAndWaitFailure(Operation.createGet(
+                URI.create(getDispatchUri(ExampleService.FACTORY_LINK) + "/%2e%2e/secret")));
+        assertEquals(Operation.STATUS_CODE_NOT_FOUND, failure.op.getStatusCode());
+
+        // Streaming requests are recorded in the metrics as well.
+        ServiceStats stats = this.sender.sendAndWait(
+                Operation.createGet(getGatewayStatsUri()))
+                .getBody(ServiceStats.class);
+        assertEquals(6, stats.entries.get(GatewayMetrics.STAT_NAME_REQUEST_COUNT
+                + ":" + ExampleService.FACTORY_LINK).latestValue, 0);
+        assertEquals(6, stats.entries.get("responseCount200").latestValue, 0);
+        assertEquals(2, stats.entries.get("responseCount404").latestValue, 0);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) > 0) {
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+
     /**
      * This test verifies that the gateway cached state reflects any
      * configuration changes made.
@@ -463,6 +1267,16 @@ public class TestGatewayService {
 
         TestRequestSender.FailureResponse response = this.sender.sendAndWaitFailure(postOp);
         assertEquals(Operation.STATUS_CODE_BAD_REQUEST, response.op.getStatusCode());
+
+        state.status = GatewayStatus.AVAILABLE;
+        state.backendConnectionLimit = 0;
+        response = this.sender.sendAndWaitFailure(Operation.createPost(factoryUri).setBody(state));
+        assertEquals(Operation.STATUS_CODE_BAD_REQUEST, response.op.getStatusCode());
+
+        state.backendConnectionLimit = null;
+        state.maxConcurrency = 0;
+        response = this.sender.sendAndWaitFailure(Operation.createPost(factoryUri).setBody(state));
+        assertEquals(Operation.STATUS_CODE_BAD_REQUEST, response.op.getStatusCode());
     }
 
     @SuppressWarnings("unchecked")
@@ -497,6 +1311,7 @@ public class TestGatewayService {
         // By explicitly setting both ports to 0, we make sure
         // that netty randomly picks ports that are available.
         args.dispatchPort = 0;
+        args.dispatchStreamingPort = 0;
         args.port = 0;
         args.maintenanceIntervalMicros = TimeUnit.MILLISECONDS.toMicros(
                 VerificationHost.FAST_MAINT_INTERVAL_MILLIS);
@@ -516,4 +1331,9 @@ public class TestGatewayService {
     private URI getDispatchUri(String selfLink) {
         return UriUtils.buildUri(this.gatewayHost.getDispatchHost(), selfLink);
     }
+
+    private URI getGatewayStatsUri() {
+        return UriUtils.buildUri(this.gatewayHost.getDispatchHost(),
+                GatewayService.SELF_LINK, GatewayService.QUERY_PARAM_STATS);
+    }
 }